@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import com.lmax.disruptor.ClaimStrategy;
+import com.lmax.disruptor.EventFactory;
+import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.MultiThreadedClaimStrategy;
+import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.SingleThreadedClaimStrategy;
+import com.lmax.disruptor.dsl.Disruptor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares publish cost and publish-to-consume latency of the supported wait strategies, with
+ * both claim strategies.  The latency benchmark waits for each event to be consumed before
+ * publishing the next, so it measures how quickly an idle consumer wakes up.
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaitStrategyBenchmark {
+
+  private static final int BUFFER_SIZE = 1024;
+
+  @Param({"BLOCKING", "SLEEPING", "YIELDING", "BUSY_SPIN"})
+  private WaitStrategyType waitStrategy;
+
+  @Param({"false", "true"})
+  private boolean singleProducer;
+
+  private final AtomicLong consumed = new AtomicLong(-1);
+  private ExecutorService executor;
+  private Disruptor<long[]> disruptor;
+  private RingBuffer<long[]> ringBuffer;
+
+  @Setup
+  public void setUp() {
+    executor = Executors.newSingleThreadExecutor();
+    ClaimStrategy claimStrategy = singleProducer
+                                  ? new SingleThreadedClaimStrategy(BUFFER_SIZE)
+                                  : new MultiThreadedClaimStrategy(BUFFER_SIZE);
+    disruptor = new Disruptor<long[]>(new EventFactory<long[]>() {
+      @Override
+      public long[] newInstance() {
+        return new long[1];
+      }
+    }, executor, claimStrategy, waitStrategy.newWaitStrategy());
+    disruptor.handleEventsWith(new EventHandler<long[]>() {
+      @Override
+      public void onEvent(long[] event, long sequence, boolean endOfBatch) {
+        consumed.lazySet(event[0]);
+      }
+    });
+    ringBuffer = disruptor.start();
+  }
+
+  @TearDown
+  public void tearDown() {
+    disruptor.shutdown();
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  public long publish() {
+    long sequence = ringBuffer.next();
+    ringBuffer.get(sequence)[0] = sequence;
+    ringBuffer.publish(sequence);
+    return sequence;
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  public long publishToConsume() {
+    long sequence = publish();
+    while (consumed.get() < sequence) {
+      // Spin; parking would add the producer's own wake-up to the measurement
+    }
+    return sequence;
+  }
+}
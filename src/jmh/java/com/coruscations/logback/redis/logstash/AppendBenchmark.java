@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.OverflowPolicy;
+import com.coruscations.logback.redis.RedisStandInServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Measures {@code append()} throughput from 1, 4 and 16 logging threads while the appender drains
+ * into an in-process Redis stand-in.  With the BLOCK policy this is the sustained rate of the
+ * whole pipeline; with DROP it is the cost the logging threads see for claiming and publishing a
+ * slot.  With an off-heap buffer, formatting is never deferred, so both deferFormatting values
+ * measure the same thing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AppendBenchmark {
+
+  @Param({"BLOCK", "DROP"})
+  private OverflowPolicy overflowPolicy;
+
+  @Param({"false", "true"})
+  private boolean deferFormatting;
+
+  @Param({"0", "4194304"})
+  private int offHeapBytes;
+
+  private RedisStandInServer server;
+  private RedisLogstashAppender appender;
+  private ILoggingEvent event;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = new RedisStandInServer();
+    appender = new RedisLogstashAppender();
+    appender.setContext(new LoggerContext());
+    appender.setRedisHostName("127.0.0.1");
+    appender.setRedisPort(server.getPort());
+    appender.setType("benchmark");
+    appender.setBufferSize(4096);
+    appender.setOverflowPolicy(overflowPolicy);
+    appender.setDeferFormatting(deferFormatting);
+    appender.setOffHeapBytes(offHeapBytes);
+    appender.start();
+    event = BenchmarkEvents.SHORT_MESSAGE.create();
+  }
+
+  @TearDown
+  public void tearDown() {
+    appender.stop();
+    server.stop();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void append1Thread() {
+    appender.doAppend(event);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void append4Threads() {
+    appender.doAppend(event);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void append16Threads() {
+    appender.doAppend(event);
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+/**
+ * The typical events the benchmarks format and send.
+ */
+public enum BenchmarkEvents {
+  SHORT_MESSAGE {
+    @Override
+    LoggingEvent create(Logger logger) {
+      return event(logger, "Request handled in 12 ms.", null);
+    }
+  },
+  LARGE_MDC {
+    @Override
+    LoggingEvent create(Logger logger) {
+      LoggingEvent event = event(logger, "Request handled in 12 ms.", null);
+      Map<String, String> mdc = new HashMap<String, String>();
+      for (int i = 0; i < 32; i++) {
+        mdc.put("context-key-" + i, "a context value of moderate length #" + i);
+      }
+      mdc.put("tags", "web, checkout, canary");
+      event.setMDCPropertyMap(mdc);
+      return event;
+    }
+  },
+  DEEP_STACK {
+    @Override
+    LoggingEvent create(Logger logger) {
+      return event(logger, "Request failed.", nested(new IllegalStateException("Boom"), 3));
+    }
+  },
+  NON_ASCII {
+    @Override
+    LoggingEvent create(Logger logger) {
+      return event(logger, "Zahlung f\u00fcr Bestellung \u00fcber 12,00 \u20ac abgelehnt: "
+                           + "\u652f\u4ed8\u5931\u8d25 \u0394\u03b5\u03bd \ud83d\ude00",
+                   null);
+    }
+  };
+
+  private static final int STACK_DEPTH = 64;
+
+  abstract LoggingEvent create(Logger logger);
+
+  /**
+   * Creates the event against a logger of its own context, with its fields already computed.
+   */
+  public ILoggingEvent create() {
+    LoggerContext context = new LoggerContext();
+    LoggingEvent event = create(context.getLogger("com.example.checkout.PaymentService"));
+    event.setThreadName("http-nio-8080-exec-17");
+    event.prepareForDeferredProcessing();
+    return event;
+  }
+
+  private static LoggingEvent event(Logger logger, String message, Throwable throwable) {
+    return new LoggingEvent(Logger.class.getName(), logger, Level.WARN, message, throwable,
+                            null);
+  }
+
+  /**
+   * Wraps a cause thrown from {@link #STACK_DEPTH} frames down, the way frameworks tend to.
+   */
+  private static Throwable nested(Throwable cause, int wrappers) {
+    Throwable throwable = deep(cause, STACK_DEPTH);
+    for (int i = 0; i < wrappers; i++) {
+      throwable = deep(new RuntimeException("Wrapped " + i, throwable), STACK_DEPTH);
+    }
+    return throwable;
+  }
+
+  private static Throwable deep(Throwable throwable, int depth) {
+    if (depth > 0) {
+      return deep(throwable, depth - 1);
+    }
+    throwable.fillInStackTrace();
+    return throwable;
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+
+/**
+ * Measures logging through a real logger into an appender that formats on the calling thread,
+ * with caller data off, captured by the appender and extracted by logback itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallerDataBenchmark {
+
+  public enum CallerData {
+    OFF, CACHED, LOGBACK
+  }
+
+  @Param({"OFF", "CACHED", "LOGBACK"})
+  private CallerData callerData;
+
+  private Logger logger;
+  private FormattingAppender appender;
+
+  @Setup
+  public void setUp() {
+    LoggerContext context = new LoggerContext();
+    RedisLogstashAppender redisAppender = new RedisLogstashAppender();
+    redisAppender.setContext(context);
+    redisAppender.setIncludeCallerData(callerData != CallerData.OFF);
+    appender = new FormattingAppender(redisAppender, callerData == CallerData.LOGBACK);
+    appender.setContext(context);
+    appender.start();
+    logger = context.getLogger(CallerDataBenchmark.class);
+    logger.setAdditive(false);
+    logger.addAppender(appender);
+  }
+
+  @Benchmark
+  public int logAndFormat() {
+    logger.info("Request handled in {} ms.", 12);
+    return appender.size;
+  }
+
+  private static final class FormattingAppender extends UnsynchronizedAppenderBase<ILoggingEvent> {
+
+    private final RedisLogstashAppender redisAppender;
+    private final boolean logbackCallerData;
+    private int size;
+
+    private FormattingAppender(RedisLogstashAppender redisAppender, boolean logbackCallerData) {
+      this.redisAppender = redisAppender;
+      this.logbackCallerData = logbackCallerData;
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+      if (logbackCallerData) {
+        event.getCallerData();
+      }
+      size = redisAppender.formatEvent(event).length;
+    }
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.RedisStandInServer;
+import com.coruscations.logback.redis.TransportType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Measures how long a burst of events takes from {@code append()} until the Redis stand-in has
+ * acknowledged every one of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndToEndBenchmark {
+
+  private static final int BURST_EVENTS = 1000;
+  private static final long FLUSH_TIMEOUT_MILLIS = 10000;
+
+  @Param({"SHORT_MESSAGE", "DEEP_STACK"})
+  private BenchmarkEvents events;
+
+  @Param({"1", "4"})
+  private int senderThreads;
+
+  @Param({"1", "4"})
+  private int maxPipelinedCommands;
+
+  @Param({"JEDIS", "NIO"})
+  private TransportType transportType;
+
+  private RedisStandInServer server;
+  private RedisLogstashAppender appender;
+  private ILoggingEvent event;
+  private long expected;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = new RedisStandInServer();
+    appender = new RedisLogstashAppender();
+    appender.setContext(new LoggerContext());
+    appender.setRedisHostName("127.0.0.1");
+    appender.setRedisPort(server.getPort());
+    appender.setType("benchmark");
+    appender.setBufferSize(4096);
+    appender.setSenderThreads(senderThreads);
+    appender.setUnorderedDelivery(senderThreads > 1);
+    appender.setMaxPipelinedCommands(maxPipelinedCommands);
+    appender.setTransportType(transportType);
+    appender.setMaxBatchEvents(100);
+    appender.start();
+    event = events.create();
+  }
+
+  @TearDown
+  public void tearDown() {
+    appender.stop();
+    server.stop();
+  }
+
+  @Benchmark
+  public long flushBurst() {
+    for (int i = 0; i < BURST_EVENTS; i++) {
+      appender.doAppend(event);
+    }
+    expected += BURST_EVENTS;
+    if (!server.awaitPushedCount(expected, FLUSH_TIMEOUT_MILLIS)) {
+      throw new IllegalStateException("Only " + server.getPushedCount() + " of " + expected
+                                      + " events reached Redis");
+    }
+    return expected;
+  }
+}
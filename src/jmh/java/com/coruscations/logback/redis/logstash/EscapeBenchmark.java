@@ -0,0 +1,80 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures JSON escaping of a 200 character string, which is what the old {@code escape()}
+ * became.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EscapeBenchmark {
+
+  public enum Text {
+    PLAIN_ASCII("Request handled in 12 ms for customer 4711 on node web-3. "),
+    QUOTED_MULTILINE("A \"quoted\" value\n\tand a C:\\path\\to\\file on the next line. "),
+    NON_ASCII("Zahlung f\u00fcr Bestellung \u00fcber 12,00 \u20ac \u652f\u4ed8\u5931\u8d25 "
+              + "\ud83d\ude00 ");
+
+    private final String sample;
+
+    private Text(String fragment) {
+      StringBuilder builder = new StringBuilder();
+      while (builder.length() < 200) {
+        builder.append(fragment);
+      }
+      // Never cut a surrogate pair in half
+      sample = builder.substring(0, Character.isHighSurrogate(builder.charAt(199)) ? 199 : 200);
+    }
+  }
+
+  @Param({"PLAIN_ASCII", "QUOTED_MULTILINE", "NON_ASCII"})
+  private Text text;
+
+  private String sample;
+  private Utf8JsonWriter writer;
+
+  @Setup
+  public void setUp() {
+    sample = text.sample;
+    writer = new Utf8JsonWriter(2048, 2048);
+  }
+
+  @Benchmark
+  public int writeEscaped() {
+    writer.reset();
+    writer.writeEscaped(sample);
+    return writer.size();
+  }
+}
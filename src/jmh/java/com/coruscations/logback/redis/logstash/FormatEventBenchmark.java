@@ -0,0 +1,83 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Measures turning one event into its logstash JSON bytes, both as the appender does it (copying
+ * out of the thread's buffer) and into a reused buffer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatEventBenchmark {
+
+  @Param({"SHORT_MESSAGE", "LARGE_MDC", "DEEP_STACK", "NON_ASCII"})
+  private BenchmarkEvents events;
+
+  // 0 renders every stack trace; 60000 renders the first and then only refers to it
+  @Param({"0", "60000"})
+  private long stackTraceDedupWindowMillis;
+
+  @Param({"V0", "V1"})
+  private LogstashSchema schema;
+
+  private RedisLogstashAppender appender;
+  private ILoggingEvent event;
+  private Utf8JsonWriter writer;
+
+  @Setup
+  public void setUp() {
+    appender = new RedisLogstashAppender();
+    appender.setType("benchmark");
+    appender.setHostName("benchmark-host");
+    appender.setFile("benchmark.log");
+    appender.setStackTraceDedupWindowMillis(stackTraceDedupWindowMillis);
+    appender.setSchema(schema);
+    event = events.create();
+    writer = new Utf8JsonWriter(2048, 1 << 20);
+  }
+
+  @Benchmark
+  public byte[] formatEvent() {
+    return appender.formatEvent(event);
+  }
+
+  @Benchmark
+  public int encodeIntoReusedBuffer() {
+    writer.reset();
+    appender.encodeEvent(event, writer);
+    return writer.size();
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.OverflowPolicy;
+import com.coruscations.logback.redis.RedisStandInServer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Compares {@code append()} throughput from 16 and 64 logging threads with and without
+ * thread-local staging, where each thread publishes a ring buffer slot per batch of events
+ * rather than per event.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StagingBenchmark {
+
+  @Param({"0", "16"})
+  private int stagingEvents;
+
+  @Param({"BLOCK", "DROP"})
+  private OverflowPolicy overflowPolicy;
+
+  private RedisStandInServer server;
+  private RedisLogstashAppender appender;
+  private ILoggingEvent event;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = new RedisStandInServer();
+    appender = new RedisLogstashAppender();
+    appender.setContext(new LoggerContext());
+    appender.setRedisHostName("127.0.0.1");
+    appender.setRedisPort(server.getPort());
+    appender.setType("benchmark");
+    appender.setBufferSize(4096);
+    appender.setOverflowPolicy(overflowPolicy);
+    appender.setStagingEvents(stagingEvents);
+    // The benchmark events are warnings, which would otherwise be published at once
+    appender.setStagingFlushLevel("ERROR");
+    appender.setJmx(false);
+    appender.start();
+    event = BenchmarkEvents.SHORT_MESSAGE.create();
+  }
+
+  @TearDown
+  public void tearDown() {
+    appender.stop();
+    server.stop();
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void append16Threads() {
+    appender.doAppend(event);
+  }
+
+  @Benchmark
+  @Threads(64)
+  public void append64Threads() {
+    appender.doAppend(event);
+  }
+}
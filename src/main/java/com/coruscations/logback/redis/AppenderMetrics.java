@@ -0,0 +1,386 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import com.coruscations.logback.redis.AppenderMetricsListener.LossReason;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for one appender's pipeline, from the logging threads through
+ * the ring buffer to Redis' acknowledgement.  Counters bumped by the logging threads are striped
+ * so that instrumentation does not become the contention point; the rest are only touched once
+ * per batch.  Every recorded event is also passed on to the registered listeners.
+ */
+public final class AppenderMetrics implements AppenderMetricsMBean {
+
+  private final RedisAppenderBase<?, ?> appender;
+  private final List<AppenderMetricsListener> listeners =
+      new CopyOnWriteArrayList<AppenderMetricsListener>();
+
+  private final StripedCounter publishedCount = new StripedCounter();
+  private final StripedCounter[] lostCounts = new StripedCounter[LossReason.values().length];
+  private final AtomicLong acknowledgedCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicLong spilledCount = new AtomicLong();
+  private volatile long downstreamLength = -1;
+  private volatile LagState lagState = LagState.NORMAL;
+
+  private final Histogram blockedTime = new Histogram();
+  private final Histogram batchSize = new Histogram();
+  private final Histogram rpushLatency = new Histogram();
+  private final Histogram appendToAckLatency = new Histogram();
+  // With priority lanes, one entry per lane, then the appender's own ring buffer
+  private volatile String[] laneNames = new String[0];
+  private volatile int[] laneBufferSizes = new int[0];
+  private volatile Histogram[] laneWaitTimes = new Histogram[0];
+
+  AppenderMetrics(RedisAppenderBase<?, ?> appender) {
+    this.appender = appender;
+    for (int i = 0; i < lostCounts.length; i++) {
+      lostCounts[i] = new StripedCounter();
+    }
+  }
+
+  void addListener(AppenderMetricsListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Starts a wait time histogram for each priority lane.
+   */
+  void startLanes(String[] names, int[] bufferSizes) {
+    Histogram[] waitTimes = new Histogram[names.length];
+    for (int lane = 0; lane < waitTimes.length; lane++) {
+      waitTimes[lane] = new Histogram();
+    }
+    laneWaitTimes = waitTimes;
+    laneBufferSizes = bufferSizes;
+    laneNames = names;
+  }
+
+  void recordPublished(int events) {
+    publishedCount.add(events);
+  }
+
+  void recordBlocked(long nanos) {
+    blockedTime.record(nanos);
+    for (AppenderMetricsListener listener : listeners) {
+      try {
+        listener.producerBlocked(appender.getName(), nanos);
+      } catch (RuntimeException e) {
+        listenerFailed(listener, e);
+      }
+    }
+  }
+
+  /**
+   * Counts events that will never reach Redis.
+   */
+  public void recordLost(LossReason reason, int events) {
+    lostCounts[reason.ordinal()].add(events);
+    for (AppenderMetricsListener listener : listeners) {
+      try {
+        listener.eventsLost(appender.getName(), reason, events);
+      } catch (RuntimeException e) {
+        listenerFailed(listener, e);
+      }
+    }
+  }
+
+  /**
+   * Records a batch Redis accepted.
+   *
+   * @param appendNanos when the batch's oldest event was appended, by {@link System#nanoTime()},
+   *                    or -1 if unknown
+   */
+  public void recordAcknowledged(RedisEndpoint endpoint, int events, long sendNanos,
+                                 long appendNanos) {
+    long now = System.nanoTime();
+    long rpushNanos = now - sendNanos;
+    long appendToAckNanos = appendNanos < 0 ? -1 : now - appendNanos;
+    acknowledgedCount.addAndGet(events);
+    batchSize.record(events);
+    rpushLatency.record(rpushNanos);
+    if (appendToAckNanos >= 0) {
+      appendToAckLatency.record(appendToAckNanos);
+    }
+    for (AppenderMetricsListener listener : listeners) {
+      try {
+        listener.batchAcknowledged(appender.getName(), endpoint, events, rpushNanos,
+                                   appendToAckNanos);
+      } catch (RuntimeException e) {
+        listenerFailed(listener, e);
+      }
+    }
+  }
+
+  /**
+   * Records a batch that failed with its connection; it may yet be retried or spilled.
+   */
+  public void recordFailed(RedisEndpoint endpoint, int events, Exception cause) {
+    failedCount.addAndGet(events);
+    for (AppenderMetricsListener listener : listeners) {
+      try {
+        listener.batchFailed(appender.getName(), endpoint, events, cause);
+      } catch (RuntimeException e) {
+        listenerFailed(listener, e);
+      }
+    }
+  }
+
+  public void recordSpilled(int events) {
+    spilledCount.addAndGet(events);
+  }
+
+  /**
+   * Records a sample of the key's length and the lag state it put the appender in.
+   */
+  public void recordDownstreamLength(long length, LagState state) {
+    downstreamLength = length;
+    lagState = state;
+  }
+
+  private void listenerFailed(AppenderMetricsListener listener, RuntimeException e) {
+    appender.addError("Metrics listener " + listener + " failed.", e);
+  }
+
+  public Histogram getBlockedTime() {
+    return blockedTime;
+  }
+
+  public Histogram getBatchSize() {
+    return batchSize;
+  }
+
+  public Histogram getRpushLatency() {
+    return rpushLatency;
+  }
+
+  public Histogram getAppendToAckLatency() {
+    return appendToAckLatency;
+  }
+
+  /**
+   * @return how long the slots of a priority lane, or with {@code lane} one past the last, of
+   * the appender's own ring buffer, waited for a sender
+   */
+  public Histogram getLaneWaitTime(int lane) {
+    return laneWaitTimes[lane];
+  }
+
+  public long getLostCount(LossReason reason) {
+    return lostCounts[reason.ordinal()].get();
+  }
+
+  @Override
+  public long getPublishedCount() {
+    return publishedCount.get();
+  }
+
+  @Override
+  public long getAcknowledgedCount() {
+    return acknowledgedCount.get();
+  }
+
+  @Override
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  @Override
+  public long getSpilledCount() {
+    return spilledCount.get();
+  }
+
+  @Override
+  public long getDroppedCount() {
+    return getLostCount(LossReason.OVERFLOW);
+  }
+
+  @Override
+  public long getDroppedDiscardableCount() {
+    return getLostCount(LossReason.OVERFLOW_DISCARDABLE);
+  }
+
+  @Override
+  public long getDroppedAfterWaitCount() {
+    return getLostCount(LossReason.OVERFLOW_AFTER_WAIT);
+  }
+
+  @Override
+  public long getShedCount() {
+    return getLostCount(LossReason.SHED);
+  }
+
+  @Override
+  public long getRejectedCount() {
+    return getLostCount(LossReason.REJECTED);
+  }
+
+  @Override
+  public long getSuppressedCount() {
+    return getLostCount(LossReason.SUPPRESSED);
+  }
+
+  @Override
+  public long getLaggingCount() {
+    return getLostCount(LossReason.LAGGING);
+  }
+
+  @Override
+  public long getStoppedCount() {
+    return getLostCount(LossReason.STOPPED);
+  }
+
+  @Override
+  public long getQueuedCount() {
+    return appender.getQueuedCount();
+  }
+
+  @Override
+  public int getBufferSize() {
+    return appender.getBufferSize();
+  }
+
+  @Override
+  public String getRedisHealth() {
+    CircuitBreaker.State health = appender.getRedisHealth();
+    return health == null ? null : health.name();
+  }
+
+  @Override
+  public long getDownstreamLength() {
+    return downstreamLength;
+  }
+
+  @Override
+  public String getLagState() {
+    return lagState.name();
+  }
+
+  @Override
+  public String[] getLaneNames() {
+    return laneNames.clone();
+  }
+
+  @Override
+  public int[] getLaneBufferSizes() {
+    return laneBufferSizes.clone();
+  }
+
+  @Override
+  public long[] getLaneQueuedCounts() {
+    long[] queued = new long[laneNames.length];
+    for (int lane = 0; lane < queued.length; lane++) {
+      queued[lane] = appender.getLaneQueuedCount(lane);
+    }
+    return queued;
+  }
+
+  @Override
+  public long[] getLaneWaitP50Micros() {
+    return laneWaitMicros(0.5);
+  }
+
+  @Override
+  public long[] getLaneWaitP99Micros() {
+    return laneWaitMicros(0.99);
+  }
+
+  @Override
+  public long[] getLaneWaitMaxMicros() {
+    return laneWaitMicros(1.0);
+  }
+
+  private long[] laneWaitMicros(double percentile) {
+    Histogram[] waitTimes = laneWaitTimes;
+    long[] micros = new long[waitTimes.length];
+    for (int lane = 0; lane < micros.length; lane++) {
+      micros[lane] = micros(percentile < 1.0 ? waitTimes[lane].getPercentile(percentile)
+                                             : waitTimes[lane].getMax());
+    }
+    return micros;
+  }
+
+  @Override
+  public long getBlockedCount() {
+    return blockedTime.getCount();
+  }
+
+  @Override
+  public long getBlockedMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(blockedTime.getSum());
+  }
+
+  @Override
+  public double getBatchSizeMean() {
+    return batchSize.getMean();
+  }
+
+  @Override
+  public long getBatchSizeP99() {
+    return batchSize.getPercentile(0.99);
+  }
+
+  @Override
+  public long getRpushLatencyP50Micros() {
+    return micros(rpushLatency.getPercentile(0.5));
+  }
+
+  @Override
+  public long getRpushLatencyP99Micros() {
+    return micros(rpushLatency.getPercentile(0.99));
+  }
+
+  @Override
+  public long getRpushLatencyMaxMicros() {
+    return micros(rpushLatency.getMax());
+  }
+
+  @Override
+  public long getAppendToAckP50Micros() {
+    return micros(appendToAckLatency.getPercentile(0.5));
+  }
+
+  @Override
+  public long getAppendToAckP99Micros() {
+    return micros(appendToAckLatency.getPercentile(0.99));
+  }
+
+  @Override
+  public long getAppendToAckMaxMicros() {
+    return micros(appendToAckLatency.getMax());
+  }
+
+  @Override
+  public void resetHistograms() {
+    blockedTime.reset();
+    batchSize.reset();
+    rpushLatency.reset();
+    appendToAckLatency.reset();
+    for (Histogram waitTime : laneWaitTimes) {
+      waitTime.reset();
+    }
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+/**
+ * Receives the appender's pipeline events as they happen, for feeding a metrics library or an
+ * alert.  Callbacks run on the appender's own threads, and those that report losses on the
+ * logging threads, so they must be quick and must not log to the appender that calls them.
+ * <p/>
+ * Listeners are added in logback.xml with {@code <metricsListener class="..."/>}.
+ */
+public interface AppenderMetricsListener {
+
+  /**
+   * Why events never reached Redis.
+   */
+  enum LossReason {
+    /**
+     * The ring buffer was full under {@link OverflowPolicy#DROP}.
+     */
+    OVERFLOW,
+    /**
+     * The ring buffer was full under {@link OverflowPolicy#DROP_DISCARDABLE}.
+     */
+    OVERFLOW_DISCARDABLE,
+    /**
+     * The ring buffer stayed full for the whole wait under {@link OverflowPolicy#WAIT}.
+     */
+    OVERFLOW_AFTER_WAIT,
+    /**
+     * Every endpoint was considered down and the events could not be spilled.
+     */
+    SHED,
+    /**
+     * Redis replied to the RPUSH with an error, e.g. because it is out of memory.
+     */
+    REJECTED,
+    /**
+     * A rate limit or sampling rule turned the event away before it was queued.
+     */
+    SUPPRESSED,
+    /**
+     * The key's consumers had fallen behind, so the event was shed before it was queued; see
+     * {@link LagState}.
+     */
+    LAGGING,
+    /**
+     * The appender stopped while the event was staged, so there was no ring buffer left for it.
+     */
+    STOPPED
+  }
+
+  /**
+   * @param events           the number of events in the batch
+   * @param rpushNanos       from writing the RPUSH to reading its reply
+   * @param appendToAckNanos from appending the batch's oldest event to reading the reply, or -1
+   *                         for events replayed from the spill queue
+   */
+  void batchAcknowledged(String appenderName, RedisEndpoint endpoint, int events,
+                         long rpushNanos, long appendToAckNanos);
+
+  /**
+   * Called when a connection fails.  The events are retried elsewhere, spilled or shed.
+   */
+  void batchFailed(String appenderName, RedisEndpoint endpoint, int events, Exception cause);
+
+  void eventsLost(String appenderName, LossReason reason, int events);
+
+  /**
+   * A logging thread waited for a free ring buffer slot.
+   */
+  void producerBlocked(String appenderName, long nanos);
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+/**
+ * The JMX view of one Redis appender, registered as
+ * {@code com.coruscations.logback.redis:type=RedisAppender,context=...,name=...}.  Latencies
+ * are in microseconds and cover everything since the appender started or the histograms were
+ * last reset.
+ */
+public interface AppenderMetricsMBean {
+
+  long getPublishedCount();
+
+  long getAcknowledgedCount();
+
+  long getFailedCount();
+
+  long getSpilledCount();
+
+  long getDroppedCount();
+
+  long getDroppedDiscardableCount();
+
+  long getDroppedAfterWaitCount();
+
+  long getShedCount();
+
+  long getRejectedCount();
+
+  long getSuppressedCount();
+
+  long getLaggingCount();
+
+  long getStoppedCount();
+
+  long getQueuedCount();
+
+  int getBufferSize();
+
+  /**
+   * @return CLOSED, HALF_OPEN or OPEN, as for {@link RedisAppenderBase#getRedisHealth()}
+   */
+  String getRedisHealth();
+
+  /**
+   * @return the length of the appender's key when last sampled, or -1 if it is not monitored
+   */
+  long getDownstreamLength();
+
+  /**
+   * @return one of the {@link LagState} names
+   */
+  String getLagState();
+
+  /**
+   * @return the priority lanes, then the appender's own ring buffer as "default"; the other lane
+   * attributes follow this order; empty without lanes
+   */
+  String[] getLaneNames();
+
+  int[] getLaneBufferSizes();
+
+  long[] getLaneQueuedCounts();
+
+  long[] getLaneWaitP50Micros();
+
+  long[] getLaneWaitP99Micros();
+
+  long[] getLaneWaitMaxMicros();
+
+  long getBlockedCount();
+
+  long getBlockedMillis();
+
+  double getBatchSizeMean();
+
+  long getBatchSizeP99();
+
+  long getRpushLatencyP50Micros();
+
+  long getRpushLatencyP99Micros();
+
+  long getRpushLatencyMaxMicros();
+
+  long getAppendToAckP50Micros();
+
+  long getAppendToAckP99Micros();
+
+  long getAppendToAckMaxMicros();
+
+  void resetHistograms();
+}
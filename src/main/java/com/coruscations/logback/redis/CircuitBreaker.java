@@ -0,0 +1,136 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+/**
+ * Stops sending to Redis after repeated failures, then lets a single probe through after an
+ * exponentially growing backoff.
+ *
+ * <p>While the circuit is {@link State#CLOSED} every request is allowed.  After
+ * {@code failureThreshold} consecutive failures it opens; requests are refused until the
+ * backoff has elapsed, when one request is let through as a probe ({@link State#HALF_OPEN}).  A
+ * successful probe closes the circuit; a failed one reopens it with twice the backoff, up to
+ * {@code maxBackoffMillis}.</p>
+ *
+ * <p>Instances are thread-safe.</p>
+ */
+public final class CircuitBreaker {
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int failureThreshold;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+
+  private volatile State state = State.CLOSED;
+  private volatile int consecutiveFailures;
+  private long backoffMillis;
+  private long retryAtMillis;
+  private long openedCount;
+
+  public CircuitBreaker(int failureThreshold, long initialBackoffMillis, long maxBackoffMillis) {
+    if (failureThreshold < 1) {
+      throw new IllegalArgumentException("failureThreshold must be at least 1.");
+    }
+    this.failureThreshold = failureThreshold;
+    this.initialBackoffMillis = Math.max(1, initialBackoffMillis);
+    this.maxBackoffMillis = Math.max(this.initialBackoffMillis, maxBackoffMillis);
+    this.backoffMillis = this.initialBackoffMillis;
+  }
+
+  /**
+   * @return true if the caller may talk to Redis; the caller must then report the outcome
+   */
+  public boolean allowRequest() {
+    if (state == State.CLOSED) {
+      return true;
+    }
+    synchronized (this) {
+      if (state == State.OPEN && System.currentTimeMillis() >= retryAtMillis) {
+        state = State.HALF_OPEN;
+        return true;
+      }
+      return state == State.CLOSED;
+    }
+  }
+
+  /**
+   * @return true if this success closed the circuit
+   */
+  public boolean recordSuccess() {
+    if (state == State.CLOSED && consecutiveFailures == 0) {
+      return false;
+    }
+    synchronized (this) {
+      boolean closed = state != State.CLOSED;
+      state = State.CLOSED;
+      consecutiveFailures = 0;
+      backoffMillis = initialBackoffMillis;
+      return closed;
+    }
+  }
+
+  /**
+   * @return true if this failure opened the circuit
+   */
+  public synchronized boolean recordFailure() {
+    consecutiveFailures++;
+    switch (state) {
+      case HALF_OPEN:
+        backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+        open();
+        return false;
+      case CLOSED:
+        if (consecutiveFailures >= failureThreshold) {
+          open();
+          return true;
+        }
+        return false;
+      default:
+        return false;
+    }
+  }
+
+  private void open() {
+    state = State.OPEN;
+    retryAtMillis = System.currentTimeMillis() + backoffMillis;
+    openedCount++;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public synchronized int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  /**
+   * @return how long the circuit stays open after the latest failure
+   */
+  public synchronized long getBackoffMillis() {
+    return backoffMillis;
+  }
+
+  /**
+   * @return how many times the circuit has opened, counting failed probes
+   */
+  public synchronized long getOpenedCount() {
+    return openedCount;
+  }
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * A bounded, on-disk FIFO of byte records, used to hold events while Redis is unreachable.
+ *
+ * <p>Records are appended to fixed-size, memory-mapped segment files named
+ * {@code spill-<number>.seg}.  Each record is a 4-byte length followed by its bytes; removing a
+ * record negates its length in place, so a restarted appender skips records that were already
+ * replayed.  A zero length marks the end of the written part of a segment.  When the segments
+ * would exceed the byte quota, the oldest segment is discarded.  There are always at least two
+ * segments, so that one can be discarded while the other is written; under a quota smaller than
+ * two segments they are made smaller to fit.</p>
+ *
+ * <p>Any number of threads may offer records, but only one thread may peek and remove them.</p>
+ */
+public final class DiskSpillQueue {
+
+  private static final String PREFIX = "spill-";
+  private static final String SUFFIX = ".seg";
+  private static final int HEADER_BYTES = 4;
+
+  private final File directory;
+  private final int segmentBytes;
+  private final int maxSegments;
+
+  // Oldest first; the last segment is the one being written
+  private final Deque<Segment> segments = new ArrayDeque<Segment>();
+  private long nextSegmentId;
+  private long size;
+  // Logical index of the oldest record, and its value at the last peek
+  private long headIndex;
+  private long peekedIndex;
+  private long evictedCount;
+  private long rejectedCount;
+
+  /**
+   * Opens the queue, recovering any records left in {@code directory} by a previous run.
+   *
+   * @param directory    where segment files live; created if missing
+   * @param segmentBytes the size of each segment file, or half of {@code maxBytes} if less
+   * @param maxBytes     the most disk space all segments together may use
+   */
+  public DiskSpillQueue(File directory, int segmentBytes, long maxBytes) throws IOException {
+    segmentBytes = (int) Math.min(segmentBytes, maxBytes / 2);
+    if (segmentBytes <= HEADER_BYTES) {
+      throw new IllegalArgumentException("Segments must be larger than " + HEADER_BYTES
+                                         + " bytes, and the quota twice that.");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create spill directory " + directory);
+    }
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = (int) Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes);
+    recover();
+  }
+
+  private void recover() throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+      }
+    });
+    long[] ids = new long[files == null ? 0 : files.length];
+    for (int i = 0; i < ids.length; i++) {
+      String name = files[i].getName();
+      try {
+        ids[i] = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        ids[i] = -1;
+      }
+    }
+    Arrays.sort(ids);
+    for (long id : ids) {
+      if (id < 0) {
+        continue;
+      }
+      Segment segment = new Segment(id);
+      segment.scan();
+      nextSegmentId = id + 1;
+      if (segment.records == 0) {
+        segment.delete();
+      } else {
+        segments.addLast(segment);
+        size += segment.records;
+      }
+    }
+  }
+
+  /**
+   * Appends records, discarding the oldest segments if the quota would be exceeded.
+   *
+   * @return the number of records stored; records larger than a segment are rejected
+   */
+  public synchronized int offer(byte[][] records, int offset, int count) throws IOException {
+    int stored = 0;
+    for (int i = offset; i < offset + count; i++) {
+      byte[] record = records[i];
+      if (record.length + HEADER_BYTES > segmentBytes || record.length == 0) {
+        rejectedCount++;
+        continue;
+      }
+      Segment tail = segments.peekLast();
+      if (tail == null || !tail.hasRoomFor(record.length)) {
+        tail = addSegment();
+      }
+      tail.append(record);
+      size++;
+      stored++;
+    }
+    return stored;
+  }
+
+  private Segment addSegment() throws IOException {
+    while (segments.size() >= maxSegments) {
+      Segment evicted = segments.removeFirst();
+      evictedCount += evicted.records;
+      size -= evicted.records;
+      headIndex += evicted.records;
+      evicted.delete();
+    }
+    Segment segment = new Segment(nextSegmentId++);
+    segments.addLast(segment);
+    return segment;
+  }
+
+  /**
+   * Copies up to {@code max} of the oldest records into {@code into} without removing them.
+   *
+   * @return the number of records copied
+   */
+  public synchronized int peek(byte[][] into, int max) {
+    peekedIndex = headIndex;
+    int copied = 0;
+    for (Segment segment : segments) {
+      copied = segment.peek(into, copied, max);
+      if (copied == max) {
+        break;
+      }
+    }
+    return copied;
+  }
+
+  /**
+   * Removes the first {@code count} records returned by the last {@link #peek}, once they have
+   * been delivered.  Any of them evicted in the meantime are not removed twice.
+   */
+  public synchronized void remove(int count) {
+    count -= (int) Math.min(count, headIndex - peekedIndex);
+    while (count > 0 && !segments.isEmpty()) {
+      Segment head = segments.peekFirst();
+      int removed = head.remove(count);
+      count -= removed;
+      size -= removed;
+      headIndex += removed;
+      if (head.records == 0 && (segments.size() > 1 || head.isFull())) {
+        segments.removeFirst();
+        head.delete();
+      } else if (removed == 0) {
+        break;
+      }
+    }
+    peekedIndex = headIndex;
+  }
+
+  /**
+   * @return the number of records waiting to be removed
+   */
+  public synchronized long size() {
+    return size;
+  }
+
+  /**
+   * @return records discarded because the quota was exceeded
+   */
+  public synchronized long getEvictedCount() {
+    return evictedCount;
+  }
+
+  /**
+   * @return records refused because they are empty or do not fit in a segment
+   */
+  public synchronized long getRejectedCount() {
+    return rejectedCount;
+  }
+
+  /**
+   * Flushes all segments to disk.  Records not yet removed are recovered by the next instance
+   * opened on the same directory.
+   */
+  public synchronized void close() {
+    for (Segment segment : segments) {
+      segment.close();
+    }
+    segments.clear();
+  }
+
+  private final class Segment {
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    private int readPosition;
+    private int records;
+
+    private Segment(long id) throws IOException {
+      this.file = new File(directory, String.format("%s%020d%s", PREFIX, id, SUFFIX));
+      this.randomAccessFile = new RandomAccessFile(file, "rw");
+      randomAccessFile.setLength(segmentBytes);
+      this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                                                      segmentBytes);
+    }
+
+    /**
+     * Finds the write position and the first record not yet removed.
+     */
+    private void scan() {
+      int position = 0;
+      boolean seenLive = false;
+      while (position + HEADER_BYTES <= segmentBytes) {
+        int length = buffer.getInt(position);
+        if (length == 0 || Math.abs((long) length) > segmentBytes - position - HEADER_BYTES) {
+          break;
+        }
+        if (length > 0) {
+          if (!seenLive) {
+            readPosition = position;
+            seenLive = true;
+          }
+          records++;
+        }
+        position += HEADER_BYTES + Math.abs(length);
+      }
+      writePosition = position;
+      if (!seenLive) {
+        readPosition = position;
+      }
+    }
+
+    private boolean hasRoomFor(int length) {
+      return writePosition + HEADER_BYTES + length <= segmentBytes;
+    }
+
+    private boolean isFull() {
+      return writePosition + HEADER_BYTES >= segmentBytes;
+    }
+
+    private void append(byte[] record) {
+      // Write the body before the length so a torn write reads as the end of the segment.
+      buffer.position(writePosition + HEADER_BYTES);
+      buffer.put(record);
+      buffer.putInt(writePosition, record.length);
+      writePosition += HEADER_BYTES + record.length;
+      records++;
+    }
+
+    private int peek(byte[][] into, int offset, int max) {
+      int position = readPosition;
+      while (offset < max && position < writePosition) {
+        int length = buffer.getInt(position);
+        if (length > 0) {
+          byte[] record = new byte[length];
+          buffer.position(position + HEADER_BYTES);
+          buffer.get(record);
+          into[offset++] = record;
+        }
+        position += HEADER_BYTES + Math.abs(length);
+      }
+      return offset;
+    }
+
+    private int remove(int count) {
+      int removed = 0;
+      while (removed < count && readPosition < writePosition) {
+        int length = buffer.getInt(readPosition);
+        if (length > 0) {
+          buffer.putInt(readPosition, -length);
+          removed++;
+          records--;
+        }
+        readPosition += HEADER_BYTES + Math.abs(length);
+      }
+      return removed;
+    }
+
+    private void close() {
+      buffer.force();
+      try {
+        randomAccessFile.close();
+      } catch (IOException e) {
+        // Nothing left to do with it
+      }
+    }
+
+    private void delete() {
+      try {
+        randomAccessFile.close();
+      } catch (IOException e) {
+        // Deleting it anyway
+      }
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+/**
+ * The kind of Redis key events are pushed to.
+ */
+public enum KeyType {
+
+  /**
+   * A list that events are pushed onto with RPUSH.  It grows until its consumers catch up, or
+   * until Redis runs out of memory.
+   */
+  LIST,
+
+  /**
+   * A stream that events are added to with XADD, trimmed to roughly a maximum length so that
+   * Redis holds a bounded window of the most recent events.
+   */
+  STREAM
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+/**
+ * How far the consumers of an appender's Redis key have fallen behind, as judged by its length,
+ * and what the appender sheds because of it.  Each state sheds at least what the one before it
+ * does.
+ */
+public enum LagState {
+
+  /**
+   * The consumers are keeping up; nothing is shed.
+   */
+  NORMAL,
+
+  /**
+   * DEBUG and TRACE events are shed.
+   */
+  SHEDDING_DEBUG,
+
+  /**
+   * Everything below WARN is shed.
+   */
+  SHEDDING_INFO,
+
+  /**
+   * Everything below WARN is shed and WARN events are sampled; ERROR events are always kept.
+   */
+  SAMPLING
+}
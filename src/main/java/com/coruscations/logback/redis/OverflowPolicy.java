@@ -0,0 +1,43 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+/**
+ * What {@link RedisAppenderBase#append} does when the ring buffer has no free slots.
+ */
+public enum OverflowPolicy {
+
+  /**
+   * Block the logging thread until a slot frees up.  Nothing is lost, but a slow Redis stalls
+   * every thread that logs.
+   */
+  BLOCK,
+
+  /**
+   * Drop the new event immediately.
+   */
+  DROP,
+
+  /**
+   * Drop the new event immediately if the appender considers it discardable; block otherwise.
+   */
+  DROP_DISCARDABLE,
+
+  /**
+   * Wait up to {@link RedisAppenderBase#getOverflowWaitMicros()} for a slot, then drop the event.
+   */
+  WAIT
+}
@@ -0,0 +1,65 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+/**
+ * A ring buffer of its own for the events a lane matches, so that a backlog of other events
+ * neither takes their slots nor delays them.  The first lane matching an event takes it; events
+ * no lane matches go to the appender's own ring buffer.  The senders drain the lanes in the
+ * order they were added, then the appender's ring buffer, taking up to {@code weight} slots from
+ * each in turn; the appender's ring buffer has a weight of one.
+ *
+ * @param <E> the type of event the lane matches
+ */
+public abstract class PriorityLane<E> {
+
+  private int bufferSize = 256;
+  private int weight = 1;
+
+  /**
+   * Whether the lane takes an event.  Called on the logging thread.
+   */
+  protected abstract boolean matches(E event);
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * The lane's ring buffer slots; must be a power of two.
+   */
+  public void setBufferSize(int bufferSize) {
+    if (bufferSize < 1 || Integer.bitCount(bufferSize) != 1) {
+      throw new IllegalArgumentException("bufferSize must be a power of two.");
+    }
+    this.bufferSize = bufferSize;
+  }
+
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * How many slots a sender takes from the lane, while it has any, for each slot of the
+   * appender's own ring buffer.
+   */
+  public void setWeight(int weight) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("weight must be at least 1.");
+    }
+    this.weight = weight;
+  }
+}
@@ -15,23 +15,69 @@
  */
 package com.coruscations.logback.redis;
 
-import com.lmax.disruptor.BlockingWaitStrategy;
+import com.coruscations.logback.redis.AppenderMetricsListener.LossReason;
+import com.lmax.disruptor.ClaimStrategy;
 import com.lmax.disruptor.EventFactory;
 import com.lmax.disruptor.EventHandler;
 import com.lmax.disruptor.ExceptionHandler;
+import com.lmax.disruptor.InsufficientCapacityException;
+import com.lmax.disruptor.LifecycleAware;
 import com.lmax.disruptor.MultiThreadedClaimStrategy;
 import com.lmax.disruptor.RingBuffer;
+import com.lmax.disruptor.Sequence;
+import com.lmax.disruptor.Sequencer;
+import com.lmax.disruptor.SingleThreadedClaimStrategy;
 import com.lmax.disruptor.dsl.Disruptor;
 
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import ch.qos.logback.core.UnsynchronizedAppenderBase;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPool;
-import redis.clients.jedis.JedisPoolConfig;
 
 public abstract class RedisAppenderBase<E, M> extends UnsynchronizedAppenderBase<E> {
 
+  // The length before each message kept off heap
+  private static final int LENGTH_BYTES = 4;
+
   // Buffer info
   private int bufferSize = 512;
+  private boolean deferFormatting = false;
+  private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+  private long overflowWaitMicros = 1000;
+  private WaitStrategyType waitStrategy = WaitStrategyType.BLOCKING;
+  private boolean singleProducer = false;
+  private int offHeapBytes = 0;
+
+  // Priority lanes: ring buffers of their own for the events they match
+  private List<PriorityLane<E>> priorityLanes = Collections.emptyList();
+
+  // Staging: each logging thread collects up to stagingEvents events for one slot
+  private int stagingEvents = 0;
+  private long stagingMaxMillis = 10;
+  private volatile ThreadLocal<StagingBuffer[]> stagingBuffer;
+  private final Queue<StagingBuffer> stagingBuffers = new ConcurrentLinkedQueue<StagingBuffer>();
+  private volatile boolean sweeping;
+
+  // Sender info
+  private int senderThreads = 1;
+  private boolean unorderedDelivery = false;
 
   // Jedis info
   private String redisHostName = "127.0.0.1";
@@ -39,100 +85,691 @@ public abstract class RedisAppenderBase<E, M> extends UnsynchronizedAppenderBase
   private int redisTimeout = 5000;
   private String redisPassword = null;
   private int redisDatabase = 0;
+  private String redisEndpoints = null;
+  private ShardingStrategy shardingStrategy = ShardingStrategy.ROUND_ROBIN;
 
-  protected JedisPool pool;
-  private Disruptor<EventWrapper<M>> disruptor;
+  // Circuit breaker info
+  private int circuitBreakerFailureThreshold = 3;
+  private long circuitBreakerInitialBackoffMillis = 500;
+  private long circuitBreakerMaxBackoffMillis = 30000;
+
+  // Instrumentation
+  private final AppenderMetrics metrics = new AppenderMetrics(this);
+  private boolean jmx = true;
+  private ObjectName objectName;
+
+  private volatile List<RedisEndpoint> endpoints = Collections.emptyList();
+  private boolean endpointsShared = false;
+  private final AtomicInteger nextEndpoint = new AtomicInteger();
+  private ExecutorService executor;
+  private Disruptor<EventWrapper> disruptor;
 
   // Must be volatile for shutdown
-  private volatile RingBuffer<EventWrapper<M>> ringBuffer;
+  private volatile RingBuffer<EventWrapper> ringBuffer;
+  // With priority lanes, each lane's ring buffer followed by ringBuffer, and what drains them;
+  // otherwise null
+  private volatile RingBuffer<EventWrapper>[] laneRings;
+  private volatile LaneSender[] laneSenders;
+
+  private final ExceptionHandler exceptionHandler = new ExceptionHandler() {
+    @Override
+    public void handleEventException(Throwable ex, long sequence, Object event) {
+      addWarn("Failed to log even to Redis.", ex);
+    }
+
+    @Override
+    public void handleOnStartException(Throwable ex) {
+      addError("Failed to start Redis appender.", ex);
+    }
+
+    @Override
+    public void handleOnShutdownException(Throwable ex) {
+      addWarn("Failed to stop Redis appender.", ex);
+    }
+  };
 
   @Override
   public void start() {
-    this.pool = startJedisPool();
-    EventFactory<EventWrapper<M>> eventFactory = new EventFactory<EventWrapper<M>>() {
-      public EventWrapper<M> newInstance() {
-        return new EventWrapper<M>();
+    if (senderThreads > 1 && !unorderedDelivery) {
+      addWarn("Using one sender thread; several sender threads reorder events, so " +
+              "unorderedDelivery must be set to allow them.");
+      senderThreads = 1;
+    }
+    if (stagingEvents > 1 && singleProducer) {
+      addWarn("Not staging events; staged events are also published by a background thread, " +
+              "so there is more than a single producer.");
+      stagingEvents = 0;
+    }
+    if (!priorityLanes.isEmpty() && !unorderedDelivery) {
+      addWarn("Not using priority lanes; they send events out of order, so unorderedDelivery " +
+              "must be set to allow them.");
+      priorityLanes = Collections.emptyList();
+    }
+    if (offHeapBytes > 0 && deferFormatting) {
+      addWarn("Not deferring formatting; the off-heap buffer holds formatted events.");
+      deferFormatting = false;
+    }
+    List<RedisEndpoint> endpoints = createEndpoints();
+    if (endpoints == null) {
+      return;
+    }
+    this.endpoints = endpoints;
+    this.executor = createExecutor();
+    final int slotCapacity = Math.max(1, stagingEvents);
+    final ByteBuffer arena = offHeapBytes > 0 ? allocateArena() : null;
+    final int slotBytes = arena == null ? 0 : arena.capacity() / countSlots();
+    EventFactory<EventWrapper> eventFactory = new EventFactory<EventWrapper>() {
+      private int slots = 0;
+
+      public EventWrapper newInstance() {
+        ByteBuffer region = null;
+        if (arena != null) {
+          arena.limit((slots + 1) * slotBytes).position(slots * slotBytes);
+          region = arena.slice();
+          slots++;
+        }
+        return new EventWrapper(slotCapacity, region);
       }
     };
-    Disruptor<EventWrapper<M>> disruptor = createDisruptor(eventFactory);
-    ringBuffer = disruptor.start();
-    this.disruptor = disruptor;
+    if (priorityLanes.isEmpty()) {
+      Disruptor<EventWrapper> disruptor = createDisruptor(eventFactory);
+      ringBuffer = disruptor.start();
+      this.disruptor = disruptor;
+    } else {
+      startLanes(eventFactory);
+    }
+    if (jmx) {
+      registerMBean();
+    }
+    if (slotCapacity > 1) {
+      stagingBuffers.clear();
+      final int lanes = priorityLanes.size() + 1;
+      stagingBuffer = new ThreadLocal<StagingBuffer[]>() {
+        @Override
+        protected StagingBuffer[] initialValue() {
+          // One per lane, since each lane's events go to a ring buffer of their own
+          @SuppressWarnings("unchecked")
+          StagingBuffer[] buffers = new RedisAppenderBase.StagingBuffer[lanes];
+          for (int lane = 0; lane < lanes; lane++) {
+            buffers[lane] = new StagingBuffer(slotCapacity, lane);
+            stagingBuffers.add(buffers[lane]);
+          }
+          return buffers;
+        }
+      };
+      sweeping = true;
+      executor.execute(new StagingSweeper());
+    }
     super.start();
   }
 
-  @SuppressWarnings("unchecked")
-  private Disruptor<EventWrapper<M>> createDisruptor(
-      EventFactory<EventWrapper<M>> eventFactory) {
-    Disruptor<EventWrapper<M>> disruptor =
-        new Disruptor<EventWrapper<M>>(eventFactory, context.getExecutorService(),
-                                       new MultiThreadedClaimStrategy(bufferSize),
-                                       new BlockingWaitStrategy());
-    disruptor.handleExceptionsWith(new ExceptionHandler() {
-      @Override
-      public void handleEventException(Throwable ex, long sequence, Object event) {
-        addWarn("Failed to log even to Redis.", ex);
-      }
+  /**
+   * @return the direct buffer every ring buffer slot gets a share of, or null if it cannot be
+   * had or leaves a slot no room
+   */
+  private ByteBuffer allocateArena() {
+    if (offHeapBytes / countSlots() <= LENGTH_BYTES) {
+      addWarn("Keeping events on the heap; offHeapBytes leaves no room for an event in each of " +
+              "the " + countSlots() + " ring buffer slots.");
+      return null;
+    }
+    try {
+      return ByteBuffer.allocateDirect(offHeapBytes);
+    } catch (OutOfMemoryError e) {
+      addWarn("Keeping events on the heap; cannot allocate " + offHeapBytes +
+              " bytes of direct memory.", e);
+      return null;
+    }
+  }
 
-      @Override
-      public void handleOnStartException(Throwable ex) {
-        addError("Failed to start Redis appender.", ex);
-      }
+  /**
+   * @return the slots of the appender's ring buffer and of its priority lanes
+   */
+  private int countSlots() {
+    int slots = bufferSize;
+    for (PriorityLane<E> lane : priorityLanes) {
+      slots += lane.getBufferSize();
+    }
+    return slots;
+  }
+
+  private void registerMBean() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      String contextName = getContext() == null ? null : getContext().getName();
+      objectName = new ObjectName("com.coruscations.logback.redis:type=RedisAppender,context=" +
+                                  ObjectName.quote(String.valueOf(contextName)) + ",name=" +
+                                  ObjectName.quote(String.valueOf(getName())));
+      server.registerMBean(metrics, objectName);
+    } catch (JMException e) {
+      addWarn("Failed to register the appender's MBean.", e);
+      objectName = null;
+    }
+  }
+
+  private void unregisterMBean() {
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      addWarn("Failed to unregister the appender's MBean.", e);
+    }
+    objectName = null;
+  }
+
+  /**
+   * The consumer threads run on an executor of their own; the context's executor is shared by
+   * every appender and only runs a couple of threads.
+   */
+  private ExecutorService createExecutor() {
+    final String prefix = "redis-appender-" + (getName() == null ? "" : getName() + "-");
+    return Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger threadCount = new AtomicInteger();
 
       @Override
-      public void handleOnShutdownException(Throwable ex) {
-        addWarn("Failed to stop Redis appender.", ex);
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
       }
     });
-    disruptor.handleEventsWith(getEventFlusher());
+  }
+
+  private ClaimStrategy newClaimStrategy(int bufferSize) {
+    return singleProducer
+           ? new SingleThreadedClaimStrategy(bufferSize)
+           : new MultiThreadedClaimStrategy(bufferSize);
+  }
+
+  @SuppressWarnings("unchecked")
+  private Disruptor<EventWrapper> createDisruptor(
+      EventFactory<EventWrapper> eventFactory) {
+    Disruptor<EventWrapper> disruptor =
+        new Disruptor<EventWrapper>(eventFactory, executor, newClaimStrategy(bufferSize),
+                                    waitStrategy.newWaitStrategy());
+    disruptor.handleExceptionsWith(exceptionHandler);
+    EventHandler<EventWrapper>[] flushers = new EventHandler[senderThreads];
+    for (int i = 0; i < senderThreads; i++) {
+      flushers[i] = getEventFlusher(i, senderThreads);
+    }
+    disruptor.handleEventsWith(flushers);
     return disruptor;
   }
 
-  private JedisPool startJedisPool() {
-    JedisPoolConfig jedisPoolConfig = new JedisPoolConfig();
-    // TODO: Add pool configuration properties.
-    JedisPool pool = new JedisPool(jedisPoolConfig, redisHostName, redisPort, redisTimeout,
-                                   redisPassword, redisDatabase);
-    Jedis jedis = pool.getResource();
-    try {
-      jedis.select(0);
-    } catch (Exception e) {
-      addError("Cannot connect to " + redisHostName + ":" + redisPort, e);
-      this.stop();
+  /**
+   * Gives each priority lane a ring buffer of its own, and starts senders that drain them along
+   * with the appender's own.
+   */
+  @SuppressWarnings("unchecked")
+  private void startLanes(EventFactory<EventWrapper> eventFactory) {
+    int lanes = priorityLanes.size() + 1;
+    RingBuffer<EventWrapper>[] rings = new RingBuffer[lanes];
+    int[] weights = new int[lanes];
+    String[] names = new String[lanes];
+    int[] bufferSizes = new int[lanes];
+    for (int lane = 0; lane < lanes; lane++) {
+      PriorityLane<E> priorityLane = lane < lanes - 1 ? priorityLanes.get(lane) : null;
+      bufferSizes[lane] = priorityLane == null ? bufferSize : priorityLane.getBufferSize();
+      weights[lane] = priorityLane == null ? 1 : priorityLane.getWeight();
+      names[lane] = priorityLane == null ? "default" : priorityLane.toString();
+      rings[lane] = new RingBuffer<EventWrapper>(eventFactory, newClaimStrategy(bufferSizes[lane]),
+                                                 waitStrategy.newWaitStrategy());
+    }
+    metrics.startLanes(names, bufferSizes);
+    LaneSender[] senders = new RedisAppenderBase.LaneSender[senderThreads];
+    for (int i = 0; i < senderThreads; i++) {
+      senders[i] = new LaneSender(rings, weights, getEventFlusher(i, senderThreads));
+    }
+    for (int lane = 0; lane < lanes; lane++) {
+      Sequence[] gatingSequences = new Sequence[senderThreads];
+      for (int i = 0; i < senderThreads; i++) {
+        gatingSequences[i] = senders[i].sequences[lane];
+      }
+      rings[lane].setGatingSequences(gatingSequences);
+    }
+    laneSenders = senders;
+    laneRings = rings;
+    ringBuffer = rings[lanes - 1];
+    for (LaneSender sender : senders) {
+      executor.execute(sender);
+    }
+  }
+
+  private List<RedisEndpoint> createEndpoints() {
+    List<RedisEndpoint> shared = sharedEndpoints();
+    endpointsShared = shared != null;
+    if (shared != null) {
+      return shared;
+    }
+    String hostPorts = redisEndpoints == null ? redisHostName + ":" + redisPort : redisEndpoints;
+    // Each sender holds a connection; leave one over for everything else.
+    return RedisEndpoint.createAll(this, hostPorts, senderThreads + 1, redisTimeout,
+                                   redisPassword, redisDatabase, circuitBreakerFailureThreshold,
+                                   circuitBreakerInitialBackoffMillis,
+                                   circuitBreakerMaxBackoffMillis);
+  }
+
+  /**
+   * Lets a subclass send through endpoints it does not own, such as those of a transport shared
+   * with other appenders.  They are not destroyed when the appender stops.
+   *
+   * @return the endpoints to use instead of those configured on this appender, or null
+   */
+  protected List<RedisEndpoint> sharedEndpoints() {
+    return null;
+  }
+
+  /**
+   * @return every endpoint this appender sends to, in configuration order
+   */
+  public List<RedisEndpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  /**
+   * Picks the endpoint for the next batch according to the sharding strategy, skipping
+   * endpoints whose circuit breaker is open.  The caller must report the outcome to the
+   * returned endpoint.
+   *
+   * @param shard for {@link ShardingStrategy#HASH}, the preferred endpoint's index; ignored by
+   *              the other strategies, or if negative
+   * @return the endpoint, or null if every endpoint is considered down
+   */
+  protected RedisEndpoint selectEndpoint(int shard) {
+    List<RedisEndpoint> endpoints = this.endpoints;
+    int size = endpoints.size();
+    if (shardingStrategy == ShardingStrategy.LEAST_OUTSTANDING) {
+      // Try endpoints from least to most loaded until one is available, rotating the
+      // starting point so ties are spread evenly
+      int start = nextEndpoint.getAndIncrement() & Integer.MAX_VALUE;
+      boolean[] tried = new boolean[size];
+      for (int attempt = 0; attempt < size; attempt++) {
+        int best = -1;
+        for (int j = 0; j < size; j++) {
+          int i = (start + j) % size;
+          if (!tried[i] && (best < 0 || endpoints.get(i).getOutstanding() <
+                                        endpoints.get(best).getOutstanding())) {
+            best = i;
+          }
+        }
+        tried[best] = true;
+        if (endpoints.get(best).allowRequest()) {
+          return endpoints.get(best);
+        }
+      }
       return null;
-    } finally {
-      pool.returnResource(jedis);
     }
-    return pool;
+    int start = shardingStrategy == ShardingStrategy.HASH && shard >= 0
+                ? shard : nextEndpoint.getAndIncrement() & Integer.MAX_VALUE;
+    for (int i = 0; i < size; i++) {
+      RedisEndpoint endpoint = endpoints.get((start + i) % size);
+      if (endpoint.allowRequest()) {
+        return endpoint;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The hash that picks an event's endpoint under {@link ShardingStrategy#HASH}.  Called on the
+   * logging thread.
+   */
+  protected int shardHash(E eventObject) {
+    return 0;
+  }
+
+  /**
+   * Which of the appender's destinations, e.g. Redis keys, the event goes to.  Called on the
+   * logging thread.
+   */
+  protected int route(E eventObject) {
+    return 0;
+  }
+
+  /**
+   * Counts events a flusher dropped because the circuit breaker was open.
+   */
+  protected void recordShed(int count) {
+    metrics.recordLost(LossReason.SHED, count);
+  }
+
+  /**
+   * @return the appender's counters and latency histograms, also exposed over JMX
+   */
+  public AppenderMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Adds a listener for pipeline events; see {@link AppenderMetricsListener}.
+   */
+  public void addMetricsListener(AppenderMetricsListener listener) {
+    metrics.addListener(listener);
+  }
+
+  /**
+   * @return the executor the consumer threads run on, for subclasses' own background work
+   */
+  protected ExecutorService getExecutor() {
+    return executor;
   }
 
   public abstract M formatEvent(E eventObject);
 
-  public abstract EventHandler<EventWrapper<M>> getEventFlusher();
+  /**
+   * Called on the logging thread before an event is handed to the consumer unformatted.
+   * Implementations must capture any state that would otherwise be lost once the logging call
+   * returns (thread name, MDC, formatted message, etc.).
+   *
+   * @param eventObject the event about to be queued
+   */
+  protected void prepareForDeferredProcessing(E eventObject) {
+  }
+
+  /**
+   * Called on the logging thread before anything else is done with an event, so that rate
+   * limiting or sampling costs the events it suppresses as little as possible.
+   *
+   * @return false to suppress the event
+   */
+  protected boolean isAdmitted(E eventObject) {
+    return true;
+  }
+
+  /**
+   * Whether an event should be published right away, along with whatever its thread has staged
+   * before it, rather than wait for the staging buffer to fill.  Only asked when staging.
+   */
+  protected boolean isUrgent(E eventObject) {
+    return true;
+  }
+
+  /**
+   * Whether an event may be dropped under the {@link OverflowPolicy#DROP_DISCARDABLE} policy.
+   *
+   * @param eventObject the event that does not fit in the ring buffer
+   * @return true if the event may be dropped; false to block until it can be queued
+   */
+  protected boolean isDiscardable(E eventObject) {
+    return false;
+  }
+
+  /**
+   * Writes a formatted message into its ring buffer slot's share of the off-heap buffer, for
+   * subclasses that support {@link #setOffHeapBytes(int) offHeapBytes}; the default keeps every
+   * message on the heap.  Called on the logging thread.
+   *
+   * @param target positioned where the message goes and limited to the end of the slot's share
+   * @return false to keep the message on the heap, e.g. because it does not fit
+   */
+  protected boolean writeMessage(M message, ByteBuffer target) {
+    return false;
+  }
+
+  /**
+   * Reads back a message written by {@link #writeMessage(Object, ByteBuffer)}.  Called on the
+   * consumer thread.
+   *
+   * @param source positioned at the message and limited to its end
+   */
+  protected M readMessage(ByteBuffer source) {
+    throw new IllegalStateException(getClass().getName() + " does not keep messages off heap.");
+  }
+
+  public abstract EventHandler<EventWrapper> getEventFlusher();
+
+  /**
+   * Creates one of several flushers that share the ring buffer.  Every flusher sees every
+   * sequence; each must only send the sequences {@code s} for which
+   * {@code s % count == ordinal}, but still flush on every {@code endOfBatch}.  With priority
+   * lanes, each lane numbers its slots from zero, and a flusher sees the lanes' sequences
+   * interleaved.
+   *
+   * <p>The default only supports a single sender and returns {@link #getEventFlusher()}.</p>
+   *
+   * @param ordinal this flusher's index, from 0 to {@code count - 1}
+   * @param count   the number of flushers
+   */
+  protected EventHandler<EventWrapper> getEventFlusher(int ordinal, int count) {
+    if (count != 1) {
+      throw new IllegalStateException(getClass().getName() +
+                                      " does not support several sender threads.");
+    }
+    return getEventFlusher();
+  }
+
+  /**
+   * Lets a flusher that is holding back a partial batch check whether more events are already
+   * waiting for it.
+   *
+   * @param sequence the sequence the flusher last processed
+   * @return true if an event after {@code sequence} has been published
+   */
+  protected boolean isPublishedAfter(long sequence) {
+    LaneSender[] laneSenders = this.laneSenders;
+    if (laneSenders != null) {
+      // Any lane will do, and the lanes number their slots separately, so ask the flusher's own
+      // sender instead
+      Thread thread = Thread.currentThread();
+      for (LaneSender sender : laneSenders) {
+        if (sender.thread == thread) {
+          return sender.isAvailable();
+        }
+      }
+      return false;
+    }
+    RingBuffer<EventWrapper> ringBuffer = this.ringBuffer;
+    return ringBuffer != null && ringBuffer.getCursor() > sequence;
+  }
 
   @SuppressWarnings("AssignmentToNull")
   @Override
   public void stop() {
+    if (stagingBuffer != null) {
+      sweeping = false;
+      // Threads still holding the old ThreadLocal publish anything they stage from now on
+      stagingBuffer = null;
+      publishStagedEvents(System.nanoTime() + 1);
+    }
     // Unconditionally set the ringBuffer to null because if events are published after
     //   the disruptor is shutdown, we will deadlock.
     ringBuffer = null;
+    laneRings = null;
+    if (objectName != null) {
+      unregisterMBean();
+    }
     if (disruptor != null) {
       disruptor.shutdown();
       disruptor = null;
     }
-    if (pool != null) {
-      pool.destroy();
-      pool = null;
+    if (laneSenders != null) {
+      // Each sender drains its lanes before it returns
+      for (LaneSender sender : laneSenders) {
+        sender.halt();
+      }
+    }
+    if (executor != null) {
+      executor.shutdown();
+      try {
+        // Let the flushers return their connections before the pool goes away.
+        executor.awaitTermination(redisTimeout, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      executor = null;
     }
+    laneSenders = null;
+    if (!endpointsShared) {
+      for (RedisEndpoint endpoint : endpoints) {
+        endpoint.destroy();
+      }
+    }
+    endpoints = Collections.emptyList();
     super.stop();
   }
 
 
   @Override
   protected final void append(E eventObject) {
-    M message = formatEvent(eventObject);
-    long index = ringBuffer.next();
-    ringBuffer.get(index).setMessage(message);
+    if (!isAdmitted(eventObject)) {
+      return;
+    }
+    int shardHash = shardingStrategy == ShardingStrategy.HASH ? shardHash(eventObject) : 0;
+    int route = route(eventObject);
+    RingBuffer<EventWrapper>[] laneRings = this.laneRings;
+    int lane = laneRings == null ? 0 : lane(eventObject);
+    ThreadLocal<StagingBuffer[]> stagingBuffer = this.stagingBuffer;
+    if (stagingBuffer != null) {
+      boolean blocking = !isDiscardable(eventObject);
+      boolean urgent = isUrgent(eventObject);
+      if (deferFormatting) {
+        prepareForDeferredProcessing(eventObject);
+        stagingBuffer.get()[lane].add(eventObject, null, shardHash, route, blocking, urgent);
+      } else {
+        M message = formatEvent(eventObject);
+        stagingBuffer.get()[lane].add(null, message, shardHash, route, blocking, urgent);
+      }
+      return;
+    }
+    RingBuffer<EventWrapper> ringBuffer = laneRings == null ? this.ringBuffer : laneRings[lane];
+    if (deferFormatting) {
+      prepareForDeferredProcessing(eventObject);
+      long index = claimSlot(ringBuffer, !isDiscardable(eventObject), 1);
+      if (index < 0) {
+        return;
+      }
+      EventWrapper wrapper = ringBuffer.get(index);
+      wrapper.setEvent(eventObject);
+      wrapper.setShardHash(shardHash);
+      wrapper.setRoute(route);
+      wrapper.setAppendNanos(System.nanoTime());
+      publish(ringBuffer, index, 1);
+    } else {
+      M message = formatEvent(eventObject);
+      long index = claimSlot(ringBuffer, !isDiscardable(eventObject), 1);
+      if (index < 0) {
+        return;
+      }
+      EventWrapper wrapper = ringBuffer.get(index);
+      wrapper.setMessage(message);
+      wrapper.setShardHash(shardHash);
+      wrapper.setRoute(route);
+      wrapper.setAppendNanos(System.nanoTime());
+      publish(ringBuffer, index, 1);
+    }
+  }
+
+  /**
+   * @return the index of the first priority lane matching the event, or of the appender's own
+   * ring buffer, which comes after them, if none does
+   */
+  private int lane(E eventObject) {
+    List<PriorityLane<E>> priorityLanes = this.priorityLanes;
+    int lanes = priorityLanes.size();
+    for (int lane = 0; lane < lanes; lane++) {
+      if (priorityLanes.get(lane).matches(eventObject)) {
+        return lane;
+      }
+    }
+    return lanes;
+  }
+
+  /**
+   * Publishes a claimed slot, waking any lane sender that is waiting for one.
+   */
+  private void publish(RingBuffer<EventWrapper> ringBuffer, long index, int events) {
     ringBuffer.publish(index);
+    metrics.recordPublished(events);
+    LaneSender[] laneSenders = this.laneSenders;
+    if (laneSenders != null) {
+      for (LaneSender sender : laneSenders) {
+        if (sender.idle) {
+          LockSupport.unpark(sender.thread);
+        }
+      }
+    }
+  }
+
+  /**
+   * Publishes every staging buffer holding an event staged before {@code cutoffNanos}, and
+   * forgets the buffers of threads that have died.
+   */
+  private void publishStagedEvents(long cutoffNanos) {
+    for (Iterator<StagingBuffer> iterator = stagingBuffers.iterator(); iterator.hasNext(); ) {
+      StagingBuffer buffer = iterator.next();
+      if (buffer.publishIfStagedBefore(cutoffNanos)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Claims the next slot of a ring buffer according to the overflow policy.
+   *
+   * @param blocking whether the events must wait for a slot under
+   *                 {@link OverflowPolicy#DROP_DISCARDABLE}
+   * @param events   the number of events the slot is for, which are lost if it is not claimed
+   * @return the claimed sequence, or -1 if the events were dropped
+   */
+  private long claimSlot(RingBuffer<EventWrapper> ringBuffer, boolean blocking, int events) {
+    switch (overflowPolicy) {
+      case DROP:
+        try {
+          return ringBuffer.tryNext(1);
+        } catch (InsufficientCapacityException e) {
+          metrics.recordLost(LossReason.OVERFLOW, events);
+          return -1;
+        }
+      case DROP_DISCARDABLE:
+        if (blocking) {
+          return nextBlocking(ringBuffer);
+        }
+        try {
+          return ringBuffer.tryNext(1);
+        } catch (InsufficientCapacityException e) {
+          metrics.recordLost(LossReason.OVERFLOW_DISCARDABLE, events);
+          return -1;
+        }
+      case WAIT:
+        long start = 0;
+        long deadline = 0;
+        while (true) {
+          try {
+            long sequence = ringBuffer.tryNext(1);
+            if (start != 0) {
+              metrics.recordBlocked(System.nanoTime() - start);
+            }
+            return sequence;
+          } catch (InsufficientCapacityException e) {
+            long now = System.nanoTime();
+            if (start == 0) {
+              start = now;
+              deadline = now + TimeUnit.MICROSECONDS.toNanos(overflowWaitMicros);
+            } else if (now - deadline >= 0) {
+              metrics.recordBlocked(now - start);
+              metrics.recordLost(LossReason.OVERFLOW_AFTER_WAIT, events);
+              return -1;
+            }
+            LockSupport.parkNanos(1000);
+          }
+        }
+      default:
+        return nextBlocking(ringBuffer);
+    }
+  }
+
+  /**
+   * Claims the next slot, waiting as long as it takes.  Only a claim that actually has to wait
+   * pays for timing it.
+   */
+  private long nextBlocking(RingBuffer<EventWrapper> ringBuffer) {
+    try {
+      return ringBuffer.tryNext(1);
+    } catch (InsufficientCapacityException e) {
+      long start = System.nanoTime();
+      long sequence = ringBuffer.next();
+      metrics.recordBlocked(System.nanoTime() - start);
+      return sequence;
+    }
   }
 
   public int getBufferSize() {
@@ -143,6 +780,253 @@ public abstract class RedisAppenderBase<E, M> extends UnsynchronizedAppenderBase
     this.bufferSize = bufferSize;
   }
 
+  public boolean isDeferFormatting() {
+    return deferFormatting;
+  }
+
+  /**
+   * When true, events are formatted by the consumer thread rather than by the thread that logs
+   * them.  This takes formatting out of the caller's latency at the cost of keeping the event
+   * itself in the ring buffer until it is flushed.
+   */
+  public void setDeferFormatting(boolean deferFormatting) {
+    this.deferFormatting = deferFormatting;
+  }
+
+  public OverflowPolicy getOverflowPolicy() {
+    return overflowPolicy;
+  }
+
+  public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+    this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.BLOCK : overflowPolicy;
+  }
+
+  public WaitStrategyType getWaitStrategy() {
+    return waitStrategy;
+  }
+
+  public void setWaitStrategy(WaitStrategyType waitStrategy) {
+    this.waitStrategy = waitStrategy == null ? WaitStrategyType.BLOCKING : waitStrategy;
+  }
+
+  public int getStagingEvents() {
+    return stagingEvents;
+  }
+
+  /**
+   * When above one, each logging thread collects up to this many events and publishes them to
+   * the ring buffer as a single slot, so that many threads logging at once contend for a slot
+   * once per batch rather than once per event.  Staged events are published when the buffer is
+   * full, when an urgent event arrives, or {@link #getStagingMaxMillis() stagingMaxMillis}
+   * after the oldest was staged, whichever comes first.
+   */
+  public void setStagingEvents(int stagingEvents) {
+    this.stagingEvents = stagingEvents;
+  }
+
+  public long getStagingMaxMillis() {
+    return stagingMaxMillis;
+  }
+
+  /**
+   * The longest an event may wait in a staging buffer.
+   */
+  public void setStagingMaxMillis(long stagingMaxMillis) {
+    if (stagingMaxMillis < 1) {
+      throw new IllegalArgumentException("stagingMaxMillis must be at least 1.");
+    }
+    this.stagingMaxMillis = stagingMaxMillis;
+  }
+
+  public boolean isSingleProducer() {
+    return singleProducer;
+  }
+
+  /**
+   * Use a claim strategy that assumes only one thread ever logs to this appender.  This avoids
+   * the compare-and-set on every publish, but corrupts the ring buffer if several threads log.
+   */
+  public void setSingleProducer(boolean singleProducer) {
+    this.singleProducer = singleProducer;
+  }
+
+  public int getOffHeapBytes() {
+    return offHeapBytes;
+  }
+
+  /**
+   * When above zero, formatted events wait for a sender in a direct buffer of this many bytes
+   * instead of on the heap, so that a large buffer is not something the garbage collector has to
+   * trace.  Every ring buffer slot, the priority lanes' included, gets an equal share of it; an
+   * event larger than its slot's share is kept on the heap.  Formatting is then never deferred.
+   */
+  public void setOffHeapBytes(int offHeapBytes) {
+    this.offHeapBytes = offHeapBytes;
+  }
+
+  /**
+   * Sets the priority lanes to use from the next start, highest priority first.  Lanes send
+   * events out of order, so they require {@link #setUnorderedDelivery(boolean)
+   * unorderedDelivery}.
+   */
+  protected void setPriorityLanes(List<? extends PriorityLane<E>> priorityLanes) {
+    this.priorityLanes = Collections.unmodifiableList(
+        new ArrayList<PriorityLane<E>>(priorityLanes));
+  }
+
+  /**
+   * @return whether events are being sent to Redis ({@code CLOSED}), shed because it is down
+   * ({@code OPEN}), or being used to probe it ({@code HALF_OPEN}); with several endpoints, the
+   * healthiest of them; null before start
+   */
+  public CircuitBreaker.State getRedisHealth() {
+    List<RedisEndpoint> endpoints = this.endpoints;
+    if (endpoints.isEmpty()) {
+      return null;
+    }
+    boolean probing = false;
+    for (RedisEndpoint endpoint : endpoints) {
+      CircuitBreaker.State state = endpoint.getHealth();
+      if (state == CircuitBreaker.State.CLOSED) {
+        return state;
+      }
+      probing |= state == CircuitBreaker.State.HALF_OPEN;
+    }
+    return probing ? CircuitBreaker.State.HALF_OPEN : CircuitBreaker.State.OPEN;
+  }
+
+  /**
+   * @return slots published to the ring buffer but not yet taken by a sender, each holding one
+   * event or, when staging, several; 0 when stopped
+   */
+  public long getQueuedCount() {
+    RingBuffer<EventWrapper>[] laneRings = this.laneRings;
+    if (laneRings != null) {
+      long queued = 0;
+      for (RingBuffer<EventWrapper> ring : laneRings) {
+        queued += ring.getBufferSize() - ring.remainingCapacity();
+      }
+      return queued;
+    }
+    RingBuffer<EventWrapper> ringBuffer = this.ringBuffer;
+    return ringBuffer == null ? 0 : bufferSize - ringBuffer.remainingCapacity();
+  }
+
+  /**
+   * @return slots published to a priority lane, or with {@code lane} one past the last, to the
+   * appender's own ring buffer, but not yet taken by a sender; 0 without lanes or when stopped
+   */
+  public long getLaneQueuedCount(int lane) {
+    RingBuffer<EventWrapper>[] laneRings = this.laneRings;
+    if (laneRings == null) {
+      return 0;
+    }
+    return laneRings[lane].getBufferSize() - laneRings[lane].remainingCapacity();
+  }
+
+  /**
+   * @return events dropped, rather than sent or spilled, because Redis was considered down
+   */
+  public long getShedCount() {
+    return metrics.getShedCount();
+  }
+
+  public int getCircuitBreakerFailureThreshold() {
+    return circuitBreakerFailureThreshold;
+  }
+
+  /**
+   * How many consecutive failures make the appender stop talking to Redis.
+   */
+  public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+    this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+  }
+
+  public long getCircuitBreakerInitialBackoffMillis() {
+    return circuitBreakerInitialBackoffMillis;
+  }
+
+  /**
+   * How long to wait before the first reconnection attempt; doubled after every failed one.
+   */
+  public void setCircuitBreakerInitialBackoffMillis(long circuitBreakerInitialBackoffMillis) {
+    this.circuitBreakerInitialBackoffMillis = circuitBreakerInitialBackoffMillis;
+  }
+
+  public long getCircuitBreakerMaxBackoffMillis() {
+    return circuitBreakerMaxBackoffMillis;
+  }
+
+  public void setCircuitBreakerMaxBackoffMillis(long circuitBreakerMaxBackoffMillis) {
+    this.circuitBreakerMaxBackoffMillis = circuitBreakerMaxBackoffMillis;
+  }
+
+  public int getSenderThreads() {
+    return senderThreads;
+  }
+
+  /**
+   * How many threads send events to Redis, each over its own connection.  More than one
+   * requires {@link #setUnorderedDelivery(boolean) unorderedDelivery}.
+   */
+  public void setSenderThreads(int senderThreads) {
+    if (senderThreads < 1) {
+      throw new IllegalArgumentException("senderThreads must be at least 1.");
+    }
+    this.senderThreads = senderThreads;
+  }
+
+  public boolean isUnorderedDelivery() {
+    return unorderedDelivery;
+  }
+
+  /**
+   * Allows events to reach Redis in a different order than they were logged.
+   */
+  public void setUnorderedDelivery(boolean unorderedDelivery) {
+    this.unorderedDelivery = unorderedDelivery;
+  }
+
+  public long getOverflowWaitMicros() {
+    return overflowWaitMicros;
+  }
+
+  public void setOverflowWaitMicros(long overflowWaitMicros) {
+    this.overflowWaitMicros = overflowWaitMicros;
+  }
+
+  /**
+   * @return events dropped under the {@link OverflowPolicy#DROP} policy
+   */
+  public long getDroppedCount() {
+    return metrics.getDroppedCount();
+  }
+
+  /**
+   * @return events dropped under the {@link OverflowPolicy#DROP_DISCARDABLE} policy
+   */
+  public long getDroppedDiscardableCount() {
+    return metrics.getDroppedDiscardableCount();
+  }
+
+  /**
+   * @return events dropped under the {@link OverflowPolicy#WAIT} policy
+   */
+  public long getDroppedAfterWaitCount() {
+    return metrics.getDroppedAfterWaitCount();
+  }
+
+  public boolean isJmx() {
+    return jmx;
+  }
+
+  /**
+   * Whether to register the appender's {@link AppenderMetricsMBean} while it runs.
+   */
+  public void setJmx(boolean jmx) {
+    this.jmx = jmx;
+  }
+
   public String getRedisHostName() {
     return redisHostName;
   }
@@ -175,6 +1059,28 @@ public abstract class RedisAppenderBase<E, M> extends UnsynchronizedAppenderBase
     this.redisPassword = redisPassword;
   }
 
+  public String getRedisEndpoints() {
+    return redisEndpoints;
+  }
+
+  /**
+   * A comma-separated list of {@code host:port} endpoints to spread events across.  When set,
+   * redisHostName and redisPort are ignored; the other redis properties apply to every
+   * endpoint.
+   */
+  public void setRedisEndpoints(String redisEndpoints) {
+    this.redisEndpoints = redisEndpoints;
+  }
+
+  public ShardingStrategy getShardingStrategy() {
+    return shardingStrategy;
+  }
+
+  public void setShardingStrategy(ShardingStrategy shardingStrategy) {
+    this.shardingStrategy = shardingStrategy == null
+                            ? ShardingStrategy.ROUND_ROBIN : shardingStrategy;
+  }
+
   public int getRedisDatabase() {
     return redisDatabase;
   }
@@ -183,16 +1089,391 @@ public abstract class RedisAppenderBase<E, M> extends UnsynchronizedAppenderBase
     this.redisDatabase = redisDatabase;
   }
 
-  public final class EventWrapper<E> {
+  /**
+   * One ring buffer slot.  It holds a single event, or when staging, the events one logging
+   * thread staged together; the accessors without an index refer to the first.  When buffering
+   * off heap, the slot's formatted messages are kept one after the other in its share of the
+   * direct buffer, each after its length.
+   */
+  public final class EventWrapper {
+
+    private int size = 1;
+    private final M[] messages;
+    private final E[] events;
+    private final int[] shardHashes;
+    private final int[] routes;
+    private final long[] appendNanos;
+    // The slot's share of the off-heap buffer, or null, and where each message starts in it, or
+    // -1 for a message kept on the heap
+    private final ByteBuffer region;
+    private final int[] offsets;
+
+    @SuppressWarnings("unchecked")
+    private EventWrapper(int capacity, ByteBuffer region) {
+      this.region = region;
+      offsets = new int[capacity];
+      messages = (M[]) new Object[capacity];
+      events = (E[]) new Object[capacity];
+      shardHashes = new int[capacity];
+      routes = new int[capacity];
+      appendNanos = new long[capacity];
+    }
+
+    /**
+     * @return the number of events in this slot
+     */
+    public int size() {
+      return size;
+    }
+
+    public M getMessage() {
+      return getMessage(0);
+    }
+
+    /**
+     * Returns the formatted message of an event in this slot, formatting a deferred event on
+     * first access, and reading one kept off heap back on every access.  Only the consumer
+     * thread should call this.
+     */
+    public M getMessage(int index) {
+      if (events[index] != null) {
+        messages[index] = formatEvent(events[index]);
+        events[index] = null;
+      }
+      int offset = offsets[index];
+      if (offset >= 0) {
+        int start = offset + LENGTH_BYTES;
+        region.limit(region.capacity());
+        region.limit(start + region.getInt(offset)).position(start);
+        return readMessage(region);
+      }
+      return messages[index];
+    }
+
+    /**
+     * Makes a formatted message this slot's only event.
+     */
+    public void setMessage(final M message) {
+      this.size = 1;
+      this.events[0] = null;
+      store(0, message, 0);
+    }
+
+    /**
+     * Makes an event to be formatted by the consumer this slot's only event.
+     */
+    public void setEvent(final E event) {
+      this.size = 1;
+      this.events[0] = event;
+      this.messages[0] = null;
+      this.offsets[0] = -1;
+    }
+
+    /**
+     * Keeps a message in the slot's share of the off-heap buffer, from {@code offset}, if it
+     * fits; otherwise on the heap.
+     *
+     * @return where the next message may start in the slot's share
+     */
+    private int store(int index, M message, int offset) {
+      if (region != null && message != null && region.capacity() - offset > LENGTH_BYTES) {
+        region.limit(region.capacity()).position(offset + LENGTH_BYTES);
+        if (writeMessage(message, region)) {
+          region.putInt(offset, region.position() - offset - LENGTH_BYTES);
+          offsets[index] = offset;
+          messages[index] = null;
+          return region.position();
+        }
+      }
+      offsets[index] = -1;
+      messages[index] = message;
+      return offset;
+    }
+
+    public int getShardHash() {
+      return shardHashes[0];
+    }
+
+    public int getShardHash(int index) {
+      return shardHashes[index];
+    }
+
+    public void setShardHash(int shardHash) {
+      this.shardHashes[0] = shardHash;
+    }
+
+    public int getRoute() {
+      return routes[0];
+    }
+
+    public int getRoute(int index) {
+      return routes[index];
+    }
+
+    public void setRoute(int route) {
+      this.routes[0] = route;
+    }
+
+    /**
+     * @return when the event was appended, by {@link System#nanoTime()}
+     */
+    public long getAppendNanos() {
+      return appendNanos[0];
+    }
+
+    public long getAppendNanos(int index) {
+      return appendNanos[index];
+    }
+
+    public void setAppendNanos(long appendNanos) {
+      this.appendNanos[0] = appendNanos;
+    }
+
+    private void copyFrom(StagingBuffer buffer) {
+      size = buffer.count;
+      int offset = 0;
+      for (int i = 0; i < size; i++) {
+        offset = store(i, buffer.messages[i], offset);
+      }
+      System.arraycopy(buffer.events, 0, events, 0, size);
+      System.arraycopy(buffer.shardHashes, 0, shardHashes, 0, size);
+      System.arraycopy(buffer.routes, 0, routes, 0, size);
+      System.arraycopy(buffer.appendNanos, 0, appendNanos, 0, size);
+    }
+  }
+
+  /**
+   * The events one logging thread has staged for its next slot.  Its own thread and the sweeper
+   * both publish it, so it is locked; the lock is only contended when the sweeper visits.  A
+   * buffer is published under its lock so that its thread's events stay in order.
+   */
+  private final class StagingBuffer {
+
+    private final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+    private final M[] messages;
+    private final E[] events;
+    private final int[] shardHashes;
+    private final int[] routes;
+    private final long[] appendNanos;
+    private final int lane;
+    private int count = 0;
+    private boolean blocking = false;
+
+    @SuppressWarnings("unchecked")
+    private StagingBuffer(int capacity, int lane) {
+      this.lane = lane;
+      messages = (M[]) new Object[capacity];
+      events = (E[]) new Object[capacity];
+      shardHashes = new int[capacity];
+      routes = new int[capacity];
+      appendNanos = new long[capacity];
+    }
 
-    private E message;
+    /**
+     * Stages an event, or its message if formatting is not deferred.
+     *
+     * @param blocking whether the event must not be dropped under DROP_DISCARDABLE
+     * @param urgent   whether to publish the buffer now
+     */
+    private synchronized void add(E event, M message, int shardHash, int route,
+                                  boolean blocking, boolean urgent) {
+      long now = System.nanoTime();
+      messages[count] = message;
+      events[count] = event;
+      shardHashes[count] = shardHash;
+      routes[count] = route;
+      appendNanos[count] = now;
+      count++;
+      this.blocking |= blocking;
+      // Once stop() has cleared stagingBuffer its sweep may already have passed this buffer
+      if (urgent || count == messages.length || stagingBuffer == null
+          || now - appendNanos[0] >= TimeUnit.MILLISECONDS.toNanos(stagingMaxMillis)) {
+        publish();
+      }
+    }
 
-    public E getMessage() {
-      return message;
+    /**
+     * @return true if the buffer is empty and its thread has died, so it can be forgotten
+     */
+    private synchronized boolean publishIfStagedBefore(long cutoffNanos) {
+      if (count > 0 && appendNanos[0] - cutoffNanos < 0) {
+        publish();
+      }
+      Thread thread = owner.get();
+      return count == 0 && (thread == null || !thread.isAlive());
     }
 
-    public void setMessage(final E message) {
-      this.message = message;
+    private void publish() {
+      RingBuffer<EventWrapper>[] laneRings = RedisAppenderBase.this.laneRings;
+      RingBuffer<EventWrapper> ringBuffer = laneRings == null
+                                            ? RedisAppenderBase.this.ringBuffer
+                                            : laneRings[lane];
+      if (ringBuffer != null) {
+        long index = claimSlot(ringBuffer, blocking, count);
+        if (index >= 0) {
+          ringBuffer.get(index).copyFrom(this);
+          RedisAppenderBase.this.publish(ringBuffer, index, count);
+        }
+      } else {
+        metrics.recordLost(LossReason.STOPPED, count);
+      }
+      Arrays.fill(messages, 0, count, null);
+      Arrays.fill(events, 0, count, null);
+      count = 0;
+      blocking = false;
+    }
+  }
+
+  /**
+   * Drains the priority lanes and the appender's own ring buffer into one flusher, taking up to
+   * each lane's weight in slots from it in turn.  Like the disruptor's event processors, every
+   * sender sees every slot and its flusher picks out its own.
+   */
+  private final class LaneSender implements Runnable {
+
+    private final RingBuffer<EventWrapper>[] rings;
+    private final int[] weights;
+    private final EventHandler<EventWrapper> flusher;
+    private final Histogram[] waitTimes;
+    // For each lane, the last slot the flusher is done with, gating the lane's publishers, and
+    // the next slot to hand it
+    private final Sequence[] sequences;
+    private final long[] next;
+    private volatile Thread thread;
+    // Set while parked, so that publishers know to wake the sender
+    private volatile boolean idle;
+    private volatile boolean running = true;
+
+    private LaneSender(RingBuffer<EventWrapper>[] rings, int[] weights,
+                       EventHandler<EventWrapper> flusher) {
+      this.rings = rings;
+      this.weights = weights;
+      this.flusher = flusher;
+      this.waitTimes = new Histogram[rings.length];
+      this.sequences = new Sequence[rings.length];
+      this.next = new long[rings.length];
+      for (int lane = 0; lane < rings.length; lane++) {
+        waitTimes[lane] = metrics.getLaneWaitTime(lane);
+        sequences[lane] = new Sequence(Sequencer.INITIAL_CURSOR_VALUE);
+        next[lane] = Sequencer.INITIAL_CURSOR_VALUE + 1;
+      }
+    }
+
+    @Override
+    public void run() {
+      thread = Thread.currentThread();
+      if (flusher instanceof LifecycleAware) {
+        try {
+          ((LifecycleAware) flusher).onStart();
+        } catch (RuntimeException e) {
+          exceptionHandler.handleOnStartException(e);
+        }
+      }
+      while (running || isAvailable()) {
+        if (!drain()) {
+          await();
+        }
+      }
+      if (flusher instanceof LifecycleAware) {
+        try {
+          ((LifecycleAware) flusher).onShutdown();
+        } catch (RuntimeException e) {
+          exceptionHandler.handleOnShutdownException(e);
+        }
+      }
+    }
+
+    /**
+     * Hands the flusher up to each lane's weight in slots, highest priority first.  The last
+     * slot a priority lane has ends a batch, so that its events are sent at once rather than
+     * held in a partial batch behind the backlog.
+     *
+     * @return false if there was nothing to hand it
+     */
+    private boolean drain() {
+      boolean drained = false;
+      for (int lane = 0; lane < rings.length; lane++) {
+        RingBuffer<EventWrapper> ring = rings[lane];
+        long available = ring.getCursor();
+        long last = Math.min(available, next[lane] + weights[lane] - 1);
+        if (last < next[lane]) {
+          continue;
+        }
+        long now = System.nanoTime();
+        for (long sequence = next[lane]; sequence <= last; sequence++) {
+          next[lane] = sequence + 1;
+          EventWrapper event = ring.get(sequence);
+          waitTimes[lane].record(now - event.getAppendNanos());
+          boolean endOfBatch = sequence == available
+                               && (lane < rings.length - 1 || !isAvailable());
+          try {
+            flusher.onEvent(event, sequence, endOfBatch);
+          } catch (Exception e) {
+            exceptionHandler.handleEventException(e, sequence, event);
+          }
+        }
+        sequences[lane].set(last);
+        drained = true;
+      }
+      return drained;
+    }
+
+    /**
+     * @return true if a slot this sender has not handed its flusher has been published
+     */
+    private boolean isAvailable() {
+      for (int lane = 0; lane < rings.length; lane++) {
+        if (rings[lane].getCursor() >= next[lane]) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Waits for a slot in any lane.  The lanes cannot share the disruptor's wait strategies, so
+     * blocking and sleeping senders park until a publisher wakes them.
+     */
+    private void await() {
+      switch (waitStrategy) {
+        case BUSY_SPIN:
+          break;
+        case YIELDING:
+          Thread.yield();
+          break;
+        default:
+          // Checking again after raising the flag means a publisher either sees it or its slot
+          // is seen here
+          idle = true;
+          if (running && !isAvailable()) {
+            LockSupport.park(this);
+          }
+          idle = false;
+      }
+    }
+
+    private void halt() {
+      running = false;
+      Thread thread = this.thread;
+      if (thread != null) {
+        LockSupport.unpark(thread);
+      }
+    }
+  }
+
+  /**
+   * Publishes staged events that have waited stagingMaxMillis, for threads that have stopped
+   * logging.
+   */
+  private class StagingSweeper implements Runnable {
+
+    @Override
+    public void run() {
+      long maxNanos = TimeUnit.MILLISECONDS.toNanos(stagingMaxMillis);
+      while (sweeping) {
+        LockSupport.parkNanos(maxNanos / 2);
+        publishStagedEvents(System.nanoTime() - maxNanos);
+      }
     }
   }
 }
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.core.spi.ContextAware;
+import ch.qos.logback.core.spi.ContextAwareBase;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * One Redis instance an appender sends to: its connection pool, its circuit breaker and its
+ * delivery counters.
+ */
+public final class RedisEndpoint extends ContextAwareBase {
+
+  private final String hostName;
+  private final int port;
+  private final JedisPool pool;
+  private final CircuitBreaker circuitBreaker;
+
+  private final AtomicLong sentCount = new AtomicLong();
+  private final AtomicLong failedCount = new AtomicLong();
+  private final AtomicInteger outstanding = new AtomicInteger();
+
+  RedisEndpoint(ContextAware owner, String hostName, int port, JedisPoolConfig poolConfig,
+                int timeout, String password, int database, CircuitBreaker circuitBreaker) {
+    super(owner);
+    setContext(owner.getContext());
+    this.hostName = hostName;
+    this.port = port;
+    this.pool = new JedisPool(poolConfig, hostName, port, timeout, password, database);
+    this.circuitBreaker = circuitBreaker;
+  }
+
+  /**
+   * Creates and connects an endpoint for each entry of a comma-separated {@code host:port} list.
+   *
+   * @param connections the connections each endpoint's pool must be able to hand out at once
+   * @return the endpoints in list order, or null if the list is invalid, which is reported to
+   * the owner
+   */
+  public static List<RedisEndpoint> createAll(ContextAware owner, String hostPorts,
+                                              int connections, int timeout, String password,
+                                              int database, int failureThreshold,
+                                              long initialBackoffMillis,
+                                              long maxBackoffMillis) {
+    JedisPoolConfig jedisPoolConfig = new JedisPoolConfig();
+    // TODO: Add pool configuration properties.
+    jedisPoolConfig.setMaxActive(Math.max(jedisPoolConfig.getMaxActive(), connections));
+    List<RedisEndpoint> endpoints = new ArrayList<RedisEndpoint>();
+    for (String hostPort : hostPorts.split(",")) {
+      hostPort = hostPort.trim();
+      if (hostPort.length() == 0) {
+        continue;
+      }
+      int colon = hostPort.lastIndexOf(':');
+      String hostName = colon < 0 ? hostPort : hostPort.substring(0, colon);
+      int port;
+      try {
+        port = colon < 0 ? 6379 : Integer.parseInt(hostPort.substring(colon + 1));
+      } catch (NumberFormatException e) {
+        owner.addError("Invalid Redis endpoint \"" + hostPort + "\".", e);
+        for (RedisEndpoint endpoint : endpoints) {
+          endpoint.destroy();
+        }
+        return null;
+      }
+      CircuitBreaker circuitBreaker = new CircuitBreaker(failureThreshold, initialBackoffMillis,
+                                                         maxBackoffMillis);
+      endpoints.add(new RedisEndpoint(owner, hostName, port, jedisPoolConfig, timeout, password,
+                                      database, circuitBreaker));
+    }
+    if (endpoints.isEmpty()) {
+      owner.addError("No Redis endpoints configured.");
+      return null;
+    }
+    for (RedisEndpoint endpoint : endpoints) {
+      endpoint.connect();
+    }
+    return Collections.unmodifiableList(endpoints);
+  }
+
+  /**
+   * Checks that Redis answers.  Being down at startup is just another outage; the circuit
+   * breaker takes it from there.
+   */
+  void connect() {
+    Jedis jedis = null;
+    try {
+      jedis = pool.getResource();
+      jedis.ping();
+      pool.returnResource(jedis);
+    } catch (Exception e) {
+      if (jedis != null) {
+        pool.returnBrokenResource(jedis);
+      }
+      addWarn("Cannot connect to " + this + " yet.", e);
+      recordFailure(0);
+    }
+  }
+
+  /**
+   * Closes the pool; only the owner that created the endpoint may call this.
+   */
+  public void destroy() {
+    pool.destroy();
+  }
+
+  public JedisPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Asks the circuit breaker whether to talk to this endpoint.  A true answer must be followed
+   * by {@link #recordSuccess(int)} or {@link #recordFailure(int)}.
+   *
+   * @return false if the endpoint is considered down
+   */
+  public boolean allowRequest() {
+    return circuitBreaker.allowRequest();
+  }
+
+  /**
+   * @param events the number of events Redis accepted
+   */
+  public void recordSuccess(int events) {
+    sentCount.addAndGet(events);
+    if (circuitBreaker.recordSuccess()) {
+      addInfo("Reconnected to " + this + ".");
+    }
+  }
+
+  /**
+   * @param events the number of events that were not delivered
+   */
+  public void recordFailure(int events) {
+    failedCount.addAndGet(events);
+    if (circuitBreaker.recordFailure()) {
+      addWarn("Giving up on " + this + " after " + circuitBreaker.getConsecutiveFailures() +
+              " failures; retrying in " + circuitBreaker.getBackoffMillis() + "ms.");
+    }
+  }
+
+  /**
+   * Tracks batches written but not yet acknowledged, for least-outstanding selection.
+   */
+  public void addOutstanding(int batches) {
+    outstanding.addAndGet(batches);
+  }
+
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  public CircuitBreaker.State getHealth() {
+    return circuitBreaker.getState();
+  }
+
+  /**
+   * @return events Redis has acknowledged
+   */
+  public long getSentCount() {
+    return sentCount.get();
+  }
+
+  /**
+   * @return events this endpoint failed to deliver; they may since have been sent elsewhere,
+   * spilled or dropped
+   */
+  public long getFailedCount() {
+    return failedCount.get();
+  }
+
+  public String getHostName() {
+    return hostName;
+  }
+
+  public int getPort() {
+    return port;
+  }
+
+  @Override
+  public String toString() {
+    return hostName + ":" + port;
+  }
+}
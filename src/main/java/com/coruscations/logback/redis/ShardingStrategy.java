@@ -0,0 +1,39 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+/**
+ * How batches are spread across several Redis endpoints.  Whatever the strategy, endpoints whose
+ * circuit breaker is open are skipped.
+ */
+public enum ShardingStrategy {
+
+  /**
+   * Each batch goes to the next endpoint in turn.
+   */
+  ROUND_ROBIN,
+
+  /**
+   * Each batch goes to the endpoint with the fewest unacknowledged batches.
+   */
+  LEAST_OUTSTANDING,
+
+  /**
+   * Each event goes to the endpoint picked by the hash of its logger name or of an MDC value, so
+   * related events stay together on one endpoint while it is healthy.
+   */
+  HASH
+}
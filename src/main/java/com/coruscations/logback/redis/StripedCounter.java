@@ -0,0 +1,58 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for the logging threads' hot path.  Each thread adds to one of several cells, each on
+ * a cache line of its own, so concurrent loggers rarely contend; reading sums the cells.
+ */
+final class StripedCounter {
+
+  // Longs per cell: 64 bytes keeps neighbouring cells off each other's cache lines
+  private static final int PADDING = 8;
+  private static final int STRIPES = stripes();
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  void add(long delta) {
+    cells.addAndGet(index(), delta);
+  }
+
+  long get() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+
+  private static int index() {
+    // Thread ids are sequential; the multiplication spreads them across the cells
+    long id = Thread.currentThread().getId();
+    int hash = (int) ((id * 0x9E3779B97F4A7C15L) >>> 32);
+    return (hash & (STRIPES - 1)) * PADDING;
+  }
+
+  private static int stripes() {
+    int stripes = 1;
+    while (stripes < 2 * Runtime.getRuntime().availableProcessors() && stripes < 64) {
+      stripes <<= 1;
+    }
+    return stripes;
+  }
+}
@@ -0,0 +1,35 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+/**
+ * How senders talk to Redis.  Probes, lag sampling and spill replay always go through the Jedis
+ * pool; only the batches themselves take the chosen transport.
+ */
+public enum TransportType {
+
+  /**
+   * A pooled Jedis connection per sender; replies are read back in bulk once the pipeline is
+   * full or the ring buffer is empty.
+   */
+  JEDIS,
+
+  /**
+   * A non-blocking socket per sender that writes each command with one gathering write straight
+   * from the encoded events, and acknowledges batches as their replies arrive.
+   */
+  NIO
+}
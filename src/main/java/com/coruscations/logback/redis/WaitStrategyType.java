@@ -0,0 +1,72 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import com.lmax.disruptor.BlockingWaitStrategy;
+import com.lmax.disruptor.BusySpinWaitStrategy;
+import com.lmax.disruptor.SleepingWaitStrategy;
+import com.lmax.disruptor.WaitStrategy;
+import com.lmax.disruptor.YieldingWaitStrategy;
+
+/**
+ * How the consumer thread waits for new events.  The cheaper the wait is for the publisher, the
+ * more CPU the consumer burns while idle.
+ */
+public enum WaitStrategyType {
+
+  /**
+   * Lock and condition; the consumer sleeps until signalled.  Lowest CPU use, but every publish
+   * takes the lock.
+   */
+  BLOCKING {
+    @Override
+    public WaitStrategy newWaitStrategy() {
+      return new BlockingWaitStrategy();
+    }
+  },
+
+  /**
+   * Spin, then yield, then park briefly.  Publishing is lock-free; idle CPU use is low.
+   */
+  SLEEPING {
+    @Override
+    public WaitStrategy newWaitStrategy() {
+      return new SleepingWaitStrategy();
+    }
+  },
+
+  /**
+   * Spin, then yield.  Publishing is lock-free; the consumer occupies a core while idle.
+   */
+  YIELDING {
+    @Override
+    public WaitStrategy newWaitStrategy() {
+      return new YieldingWaitStrategy();
+    }
+  },
+
+  /**
+   * Spin continuously.  Lowest latency; only use with a core to spare for the consumer.
+   */
+  BUSY_SPIN {
+    @Override
+    public WaitStrategy newWaitStrategy() {
+      return new BusySpinWaitStrategy();
+    }
+  };
+
+  public abstract WaitStrategy newWaitStrategy();
+}
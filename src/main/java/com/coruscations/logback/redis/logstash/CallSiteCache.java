@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.coruscations.logback.redis.logstash.Utf8JsonWriter.ascii;
+
+/**
+ * Keeps the caller fields of each call site already rendered, so logging from the same line
+ * again costs a map lookup rather than escaping and encoding four strings.
+ */
+final class CallSiteCache {
+
+  private static final byte[] CLASS_FIELD = ascii("\"class\":\"");
+  private static final byte[] METHOD_FIELD = ascii("\",\"method\":\"");
+  private static final byte[] FILE_FIELD = ascii("\",\"file\":\"");
+  private static final byte[] LINE_FIELD = ascii("\",\"line\":");
+
+  private final int maxSites;
+  private final ConcurrentMap<StackTraceElement, byte[]> sites =
+      new ConcurrentHashMap<StackTraceElement, byte[]>();
+
+  CallSiteCache(int maxSites) {
+    this.maxSites = maxSites;
+  }
+
+  /**
+   * @return the rendered {@code class}, {@code method}, {@code file} and {@code line} fields
+   * of a call site, followed by a comma
+   */
+  byte[] fields(StackTraceElement caller) {
+    byte[] fields = sites.get(caller);
+    if (fields == null) {
+      fields = render(caller);
+      // Beyond the limit new sites are rendered every time rather than evicting anything
+      if (sites.size() < maxSites) {
+        sites.putIfAbsent(caller, fields);
+      }
+    }
+    return fields;
+  }
+
+  private static byte[] render(StackTraceElement caller) {
+    Utf8JsonWriter writer = new Utf8JsonWriter(256, 256);
+    writer.write(CLASS_FIELD);
+    writer.writeEscaped(caller.getClassName());
+    writer.write(METHOD_FIELD);
+    writer.writeEscaped(caller.getMethodName());
+    writer.write(FILE_FIELD);
+    if (caller.getFileName() != null) {
+      writer.writeEscaped(caller.getFileName());
+    }
+    writer.write(LINE_FIELD);
+    writer.writeAscii(Integer.toString(caller.getLineNumber()));
+    writer.write((byte) ',');
+    return writer.toByteArray();
+  }
+}
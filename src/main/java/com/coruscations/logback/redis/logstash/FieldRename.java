@@ -0,0 +1,66 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+/**
+ * Sends one of the schema's fields under another name.
+ * <p/>
+ * Configured in logback.xml as, for example:
+ * <pre>
+ * &lt;rename&gt;
+ *   &lt;field&gt;logger_name&lt;/field&gt;
+ *   &lt;to&gt;logger&lt;/to&gt;
+ * &lt;/rename&gt;
+ * </pre>
+ */
+public class FieldRename {
+
+  private String field = null;
+  private String to = null;
+
+  public String getField() {
+    return field;
+  }
+
+  /**
+   * The field's name in the schema, such as {@code @message} or {@code stack_trace}.  Required.
+   */
+  public void setField(String field) {
+    if (field == null || field.length() == 0) {
+      throw new IllegalArgumentException("Field cannot be null or empty.");
+    }
+    this.field = field;
+  }
+
+  public String getTo() {
+    return to;
+  }
+
+  /**
+   * The name to send it under.  Required.
+   */
+  public void setTo(String to) {
+    if (to == null || to.length() == 0) {
+      throw new IllegalArgumentException("To cannot be null or empty.");
+    }
+    this.to = to;
+  }
+
+  @Override
+  public String toString() {
+    return "rename[field=\"" + field + "\", to=\"" + to + "\"]";
+  }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import java.io.IOException;
+
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Sends through a connection borrowed from an endpoint's Jedis pool.  Jedis reads only when
+ * asked to, so replies are never picked up without blocking.
+ */
+final class JedisTransport implements Transport {
+
+  private final JedisPool pool;
+  private final Jedis jedis;
+
+  JedisTransport(JedisPool pool) {
+    this.pool = pool;
+    this.jedis = pool.getResource();
+  }
+
+  @Override
+  public void rpush(byte[] key, byte[][] values) {
+    jedis.getClient().rpush(key, values);
+  }
+
+  @Override
+  public void xadd(XAddCommandWriter writer, byte[] key, byte[][] values) throws IOException {
+    // The XADDs bypass the client's buffer, so anything it holds must go first or the commands
+    // would reach Redis out of order, or interleaved.
+    jedis.getClient().getAll(Integer.MAX_VALUE);
+    writer.write(jedis.getClient().getSocket().getOutputStream(), key, values, values.length);
+  }
+
+  @Override
+  public void flush() {
+    // Reads no replies; just pushes the buffered commands onto the wire.
+    jedis.getClient().getAll(Integer.MAX_VALUE);
+  }
+
+  @Override
+  public Object readReply(boolean block) {
+    if (!block) {
+      return null;
+    }
+    Client client = jedis.getClient();
+    try {
+      return client.getOne();
+    } catch (JedisDataException e) {
+      return e;
+    }
+  }
+
+  @Override
+  public void close(boolean broken) {
+    if (broken) {
+      pool.returnBrokenResource(jedis);
+    } else {
+      pool.returnResource(jedis);
+    }
+  }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import redis.clients.util.SafeEncoder;
+
+import static com.coruscations.logback.redis.logstash.Utf8JsonWriter.escaped;
+
+/**
+ * Sends the events of the loggers under a name prefix, at or above a level, or with an MDC value,
+ * to a Redis key of their own.  The first route matching an event decides its key; events no
+ * route matches go to the appender's {@code key}.  Each key is batched separately.
+ * <p/>
+ * Configured in logback.xml as, for example:
+ * <pre>
+ * &lt;route&gt;
+ *   &lt;key&gt;logstash-billing&lt;/key&gt;
+ *   &lt;mdcKey&gt;application&lt;/mdcKey&gt;
+ *   &lt;mdcValue&gt;billing&lt;/mdcValue&gt;
+ * &lt;/route&gt;
+ * </pre>
+ */
+public class KeyRoute {
+
+  private String key = null;
+  private byte[] keyBytes = null;
+  private String loggerPrefix = "";
+  private Level minLevel = null;
+  private String mdcKey = null;
+  private String mdcValue = null;
+
+  boolean matches(ILoggingEvent event) {
+    if (!event.getLoggerName().startsWith(loggerPrefix)
+        || (minLevel != null && !event.getLevel().isGreaterOrEqual(minLevel))) {
+      return false;
+    }
+    if (mdcKey == null) {
+      return true;
+    }
+    String value = event.getMDCPropertyMap().get(mdcKey);
+    return value != null && (mdcValue == null || mdcValue.equals(value));
+  }
+
+  byte[] getKeyBytes() {
+    return keyBytes;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  /**
+   * The Redis key matching events are sent to.  Required.
+   */
+  public void setKey(String key) {
+    if (key == null || key.length() == 0) {
+      throw new IllegalArgumentException("Key cannot be null or empty.");
+    }
+    this.key = SafeEncoder.encode(escaped(key));
+    this.keyBytes = SafeEncoder.encode(this.key);
+  }
+
+  public String getLoggerPrefix() {
+    return loggerPrefix;
+  }
+
+  /**
+   * The route applies to loggers whose names start with this; all loggers by default.
+   */
+  public void setLoggerPrefix(String loggerPrefix) {
+    this.loggerPrefix = loggerPrefix == null ? "" : loggerPrefix;
+  }
+
+  public String getMinLevel() {
+    return minLevel == null ? null : minLevel.toString();
+  }
+
+  /**
+   * The route applies to events at this level and above; all levels by default.
+   */
+  public void setMinLevel(String minLevel) {
+    this.minLevel = minLevel == null ? null : Level.toLevel(minLevel);
+  }
+
+  public String getMdcKey() {
+    return mdcKey;
+  }
+
+  /**
+   * The route applies only to events with this MDC key.
+   */
+  public void setMdcKey(String mdcKey) {
+    this.mdcKey = mdcKey;
+  }
+
+  public String getMdcValue() {
+    return mdcValue;
+  }
+
+  /**
+   * The value {@code mdcKey} must have; any value by default.
+   */
+  public void setMdcValue(String mdcValue) {
+    this.mdcValue = mdcValue;
+  }
+
+  @Override
+  public String toString() {
+    return "route[key=\"" + key + "\", loggerPrefix=\"" + loggerPrefix + "\"" +
+           (minLevel == null ? "" : ", level>=" + minLevel) +
+           (mdcKey == null ? "" : ", mdcKey=" + mdcKey) +
+           (mdcValue == null ? "" : ", mdcValue=" + mdcValue) + "]";
+  }
+}
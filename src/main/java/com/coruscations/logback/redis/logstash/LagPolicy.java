@@ -0,0 +1,84 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.LagState;
+
+import java.util.Random;
+
+import ch.qos.logback.classic.Level;
+
+/**
+ * Decides the {@link LagState} from sampled lengths of the appender's key, and which events that
+ * state admits.  The appender escalates as soon as a threshold is crossed, but only relaxes once
+ * the length has fallen to half the current state's threshold, so a key hovering around a
+ * threshold does not flip the policy back and forth on every sample.
+ */
+final class LagPolicy {
+
+  private final long[] thresholds = new long[LagState.values().length];
+  private final double sampleRate;
+
+  /**
+   * @param shedDebugLength the length at which DEBUG is shed, or 0 to never
+   * @param shedInfoLength  the length at which INFO is shed, or 0 to never
+   * @param sampleLength    the length at which WARN is sampled, or 0 to never
+   * @param sampleRate      the fraction of WARN events kept while sampling
+   */
+  LagPolicy(long shedDebugLength, long shedInfoLength, long sampleLength, double sampleRate) {
+    thresholds[LagState.NORMAL.ordinal()] = 0;
+    thresholds[LagState.SHEDDING_DEBUG.ordinal()] = threshold(shedDebugLength);
+    thresholds[LagState.SHEDDING_INFO.ordinal()] = threshold(shedInfoLength);
+    thresholds[LagState.SAMPLING.ordinal()] = threshold(sampleLength);
+    this.sampleRate = sampleRate;
+  }
+
+  private static long threshold(long length) {
+    return length <= 0 ? Long.MAX_VALUE : length;
+  }
+
+  /**
+   * @return the state after sampling {@code length} in {@code current}
+   */
+  LagState next(LagState current, long length) {
+    LagState[] states = LagState.values();
+    // Escalate straight to the worst state the length calls for
+    for (int i = states.length - 1; i > current.ordinal(); i--) {
+      if (length >= thresholds[i]) {
+        return states[i];
+      }
+    }
+    int next = current.ordinal();
+    while (next > 0 && length < thresholds[next] / 2) {
+      next--;
+    }
+    return states[next];
+  }
+
+  boolean admits(LagState state, Level level, Random random) {
+    switch (state) {
+      case SHEDDING_DEBUG:
+        return level.isGreaterOrEqual(Level.INFO);
+      case SHEDDING_INFO:
+        return level.isGreaterOrEqual(Level.WARN);
+      case SAMPLING:
+        return level.isGreaterOrEqual(Level.ERROR)
+               || (level.isGreaterOrEqual(Level.WARN) && random.nextDouble() < sampleRate);
+      default:
+        return true;
+    }
+  }
+}
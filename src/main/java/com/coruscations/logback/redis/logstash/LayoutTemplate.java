@@ -0,0 +1,225 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An event layout compiled into a flat list of steps: pre-encoded literal chunks, with the parts
+ * of each event written between them.  The schema, renamed fields and static fields are resolved
+ * once, when the template is built, so encoding an event is a walk down an array.
+ * <p/>
+ * The optional parts, the stack trace, MDC and caller fields, each end with a comma, so each of
+ * them is followed by a field that is always present.
+ */
+final class LayoutTemplate {
+
+  static final int LITERAL = 0;
+  static final int TAGS = 1;
+  static final int STACK_TRACE = 2;
+  static final int MDC = 3;
+  static final int CALLER = 4;
+  static final int LOGGER_NAME = 5;
+  static final int THREAD_NAME = 6;
+  static final int LEVEL = 7;
+  static final int TIMESTAMP = 8;
+  static final int MESSAGE = 9;
+
+  // The step at each index, and the bytes of each LITERAL step
+  final int[] steps;
+  final byte[][] literals;
+  // The total length of the literals
+  final int literalLength;
+  // The opening of each stack trace field
+  final byte[] stackTraceField;
+  final byte[] stackHashField;
+  final byte[] stackRepeatCountField;
+  // Whether the MDC's tags entry is also sent as a field; false where it would clash with the
+  // tags array
+  final boolean tagsField;
+  // The schema's field names, before renaming
+  final Set<String> fieldNames;
+
+  private LayoutTemplate(Builder builder) {
+    int count = builder.steps.size();
+    steps = new int[count];
+    literals = new byte[count][];
+    int literalLength = 0;
+    for (int i = 0; i < count; i++) {
+      steps[i] = builder.steps.get(i);
+      literals[i] = builder.literals.get(i);
+      if (literals[i] != null) {
+        literalLength += literals[i].length;
+      }
+    }
+    this.literalLength = literalLength;
+    stackTraceField = builder.stackTraceField;
+    stackHashField = builder.stackHashField;
+    stackRepeatCountField = builder.stackRepeatCountField;
+    fieldNames = builder.fieldNames;
+    tagsField = builder.tagsField;
+  }
+
+  /**
+   * @param renames the name to send each renamed schema field under
+   * @param hostName the host name, or null if it is not known
+   */
+  static LayoutTemplate compile(LogstashSchema schema, Map<String, String> renames,
+                                List<StaticField> staticFields, String type, String hostName,
+                                String file) {
+    Builder builder = new Builder(renames);
+    String host = String.valueOf(hostName);
+    if (file == null) {
+      file = "logback";
+    }
+    switch (schema) {
+      case V0:
+        String source = (type.length() == 0 ? "" : type + "://") + host + "/" + file;
+        builder.literal("{").stringField("@source", source).literal(",")
+            .name("@tags").literal("[").step(TAGS).literal("],")
+            .name("@fields").literal("{");
+        builder.optionalFields(staticFields)
+            .stringStep("logger_name", LOGGER_NAME).literal(",")
+            .stringStep("thread_name", THREAD_NAME).literal(",")
+            .stringStep("level", LEVEL).literal("},")
+            .stringStep("@timestamp", TIMESTAMP).literal(",")
+            .stringStep("@message", MESSAGE).literal(",")
+            .stringField("@type", type).literal("}");
+        break;
+      case V1:
+        builder.literal("{").stringStep("@timestamp", TIMESTAMP).literal(",")
+            .stringField("@version", "1").literal(",")
+            .stringStep("message", MESSAGE).literal(",")
+            .stringStep("logger_name", LOGGER_NAME).literal(",")
+            .stringStep("thread_name", THREAD_NAME).literal(",")
+            .stringStep("level", LEVEL).literal(",");
+        builder.tagsField = false;
+        builder.optionalFields(staticFields)
+            .name("tags").literal("[").step(TAGS).literal("],")
+            .stringField("host", host).literal(",")
+            .stringField("path", file).literal(",")
+            .stringField("type", type).literal("}");
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown schema " + schema + ".");
+    }
+    return builder.build();
+  }
+
+  private static final class Builder {
+
+    private final Map<String, String> renames;
+    private final List<Integer> steps = new ArrayList<Integer>();
+    private final List<byte[]> literals = new ArrayList<byte[]>();
+    private final Utf8JsonWriter literal = new Utf8JsonWriter(256, 0);
+    private final Set<String> fieldNames = new HashSet<String>();
+    private byte[] stackTraceField;
+    private byte[] stackHashField;
+    private byte[] stackRepeatCountField;
+    private boolean tagsField = true;
+
+    private Builder(Map<String, String> renames) {
+      this.renames = renames;
+    }
+
+    /**
+     * Appends JSON punctuation to the current literal.
+     */
+    private Builder literal(String json) {
+      literal.writeAscii(json);
+      return this;
+    }
+
+    /**
+     * Appends a field's name, as renamed, and the colon after it.
+     */
+    private Builder name(String field) {
+      literal.write((byte) '"');
+      literal.writeEscaped(renamed(field));
+      literal.writeAscii("\":");
+      return this;
+    }
+
+    private String renamed(String field) {
+      fieldNames.add(field);
+      String name = renames.get(field);
+      return name == null ? field : name;
+    }
+
+    private Builder stringField(String field, String value) {
+      name(field).literal("\"");
+      literal.writeEscaped(value);
+      return literal("\"");
+    }
+
+    /**
+     * Appends a string field whose value is written by a step.
+     */
+    private Builder stringStep(String field, int step) {
+      return name(field).literal("\"").step(step).literal("\"");
+    }
+
+    /**
+     * Appends the static fields, then the stack trace, MDC and caller fields, each of them
+     * ending with a comma.
+     */
+    private Builder optionalFields(List<StaticField> staticFields) {
+      for (StaticField field : staticFields) {
+        literal.write((byte) '"');
+        literal.writeEscaped(field.getName());
+        literal.writeAscii("\":\"");
+        literal.writeEscaped(field.getValue());
+        literal.writeAscii("\",");
+      }
+      stackTraceField = opening("stack_trace", "\"");
+      stackHashField = opening("stack_hash", "\"");
+      stackRepeatCountField = opening("stack_repeat_count", "");
+      return step(STACK_TRACE).step(MDC).step(CALLER);
+    }
+
+    private byte[] opening(String field, String quote) {
+      Utf8JsonWriter writer = new Utf8JsonWriter(64, 0);
+      writer.write((byte) '"');
+      writer.writeEscaped(renamed(field));
+      writer.writeAscii("\":" + quote);
+      return writer.toByteArray();
+    }
+
+    private Builder step(int step) {
+      flushLiteral();
+      steps.add(step);
+      literals.add(null);
+      return this;
+    }
+
+    private LayoutTemplate build() {
+      flushLiteral();
+      return new LayoutTemplate(this);
+    }
+
+    private void flushLiteral() {
+      if (literal.size() > 0) {
+        steps.add(LITERAL);
+        literals.add(literal.toByteArray());
+        literal.reset();
+      }
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.PriorityLane;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * A priority lane for the events at or above a level, so that errors and warnings are neither
+ * dropped nor held back while the appender works through a backlog of debug events.
+ * <p/>
+ * Configured in logback.xml as, for example:
+ * <pre>
+ * &lt;lane&gt;
+ *   &lt;minLevel&gt;WARN&lt;/minLevel&gt;
+ *   &lt;bufferSize&gt;128&lt;/bufferSize&gt;
+ *   &lt;weight&gt;8&lt;/weight&gt;
+ * &lt;/lane&gt;
+ * </pre>
+ */
+public class LevelLane extends PriorityLane<ILoggingEvent> {
+
+  private Level minLevel = null;
+
+  @Override
+  protected boolean matches(ILoggingEvent event) {
+    return event.getLevel().isGreaterOrEqual(minLevel);
+  }
+
+  public String getMinLevel() {
+    return minLevel == null ? null : minLevel.toString();
+  }
+
+  /**
+   * The lane takes events at this level and above.  Required.
+   */
+  public void setMinLevel(String minLevel) {
+    this.minLevel = minLevel == null ? null : Level.toLevel(minLevel);
+  }
+
+  @Override
+  public String toString() {
+    return "lane[level>=" + minLevel + "]";
+  }
+}
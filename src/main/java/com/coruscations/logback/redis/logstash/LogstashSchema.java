@@ -0,0 +1,36 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+/**
+ * The shape of the JSON events are sent as.
+ */
+public enum LogstashSchema {
+
+  /**
+   * The original json_event format: {@code @source}, {@code @tags}, {@code @fields},
+   * {@code @timestamp}, {@code @message} and {@code @type}, with the MDC and the other fields
+   * nested in {@code @fields}.
+   */
+  V0,
+
+  /**
+   * The flat format of logstash 1.2 and later: {@code @timestamp}, {@code @version},
+   * {@code message}, the logger, thread, level, stack trace and MDC fields at the top level, then
+   * {@code tags}, {@code host}, {@code path} and {@code type}.
+   */
+  V1
+}
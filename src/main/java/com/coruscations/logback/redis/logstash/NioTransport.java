@@ -0,0 +1,373 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Speaks RESP over a non-blocking socket channel, without Jedis.
+ * <p/>
+ * A command is a list of buffers: the headers are encoded into a shared scratch array and the
+ * events are wrapped where they lie, so each flush is one gathering write with no copying.
+ * Replies are parsed from whatever has arrived, so a sender can acknowledge batches between
+ * sends instead of waiting on them.  While Redis is not taking more, the socket is read as well,
+ * so that neither side waits on the other.
+ */
+final class NioTransport implements Transport {
+
+  private static final byte[] RPUSH = SafeEncoder.encode("RPUSH");
+  // Arguments shorter than this are copied into the scratch array rather than wrapped
+  private static final int COPY_THRESHOLD = 64;
+  // Returned by the parser when the reply has not fully arrived
+  private static final Object INCOMPLETE = new Object();
+  // A nil bulk or multi-bulk reply
+  private static final Object NIL = new Object();
+
+  private final SocketChannel channel;
+  private final Selector selector;
+  private final SelectionKey selectionKey;
+  private final int timeoutMillis;
+
+  private byte[] scratch = new byte[4096];
+  private int scratchPosition = 0;
+  // Start of the scratch bytes not yet added to the outgoing buffers
+  private int scratchStart = 0;
+  private ByteBuffer[] outgoing = new ByteBuffer[64];
+  private int outgoingCount = 0;
+  // Received bytes from position to limit have not been parsed yet
+  private ByteBuffer incoming = ByteBuffer.allocate(16384);
+
+  /**
+   * Connects, authenticates and selects the database.
+   *
+   * @param timeoutMillis how long to wait on Redis before giving up on the connection
+   * @param password the password to AUTH with, or null
+   * @param database the database to SELECT, if not 0
+   */
+  NioTransport(String hostName, int port, int timeoutMillis, String password, int database)
+      throws IOException {
+    this.timeoutMillis = timeoutMillis;
+    incoming.flip();
+    channel = SocketChannel.open();
+    Selector selector = null;
+    try {
+      channel.configureBlocking(false);
+      channel.socket().setTcpNoDelay(true);
+      selector = Selector.open();
+      selectionKey = channel.register(selector, 0);
+      this.selector = selector;
+      if (!channel.connect(new InetSocketAddress(hostName, port))) {
+        await(SelectionKey.OP_CONNECT);
+        channel.finishConnect();
+      }
+      if (password != null) {
+        call("AUTH", password);
+      }
+      if (database != 0) {
+        call("SELECT", Integer.toString(database));
+      }
+    } catch (IOException e) {
+      channel.close();
+      if (selector != null) {
+        selector.close();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Sends a command and waits for its reply.
+   */
+  private void call(String... arguments) throws IOException {
+    beginCommand(arguments.length);
+    for (String argument : arguments) {
+      addArgument(SafeEncoder.encode(argument));
+    }
+    flush();
+    Object reply = readReply(true);
+    if (reply instanceof Exception) {
+      throw new IOException("Redis refused " + arguments[0] + ".", (Exception) reply);
+    }
+  }
+
+  @Override
+  public void rpush(byte[] key, byte[][] values) throws IOException {
+    beginCommand(2 + values.length);
+    addArgument(RPUSH);
+    addArgument(key);
+    for (byte[] value : values) {
+      addArgument(value);
+    }
+  }
+
+  @Override
+  public void xadd(XAddCommandWriter writer, byte[] key, byte[][] values) throws IOException {
+    closeScratchSegment();
+    int length = writer.encode(key, values, values.length);
+    addOutgoing(ByteBuffer.wrap(writer.getBuffer(), 0, length));
+    // The writer reuses its buffer, so the commands go out before it can
+    flush();
+  }
+
+  private void beginCommand(int arguments) {
+    ensureScratch(13);
+    scratch[scratchPosition++] = '*';
+    writeDecimal(arguments);
+    writeCrlf();
+  }
+
+  private void addArgument(byte[] argument) {
+    ensureScratch(13 + (argument.length < COPY_THRESHOLD ? argument.length + 2 : 0));
+    scratch[scratchPosition++] = '$';
+    writeDecimal(argument.length);
+    writeCrlf();
+    if (argument.length < COPY_THRESHOLD) {
+      System.arraycopy(argument, 0, scratch, scratchPosition, argument.length);
+      scratchPosition += argument.length;
+    } else {
+      closeScratchSegment();
+      addOutgoing(ByteBuffer.wrap(argument));
+      ensureScratch(2);
+    }
+    // Goes out with the next header
+    writeCrlf();
+  }
+
+  private void writeCrlf() {
+    scratch[scratchPosition++] = '\r';
+    scratch[scratchPosition++] = '\n';
+  }
+
+  private void writeDecimal(int value) {
+    int digits = 1;
+    for (int remaining = value / 10; remaining > 0; remaining /= 10) {
+      digits++;
+    }
+    for (int i = scratchPosition + digits - 1; i >= scratchPosition; i--) {
+      scratch[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    scratchPosition += digits;
+  }
+
+  /**
+   * Makes room for {@code length} more bytes of headers.  Buffers already queued keep the old
+   * array.
+   */
+  private void ensureScratch(int length) {
+    if (scratchPosition + length > scratch.length) {
+      closeScratchSegment();
+      scratch = new byte[Math.max(scratch.length, length)];
+      scratchPosition = 0;
+      scratchStart = 0;
+    }
+  }
+
+  private void closeScratchSegment() {
+    if (scratchPosition > scratchStart) {
+      addOutgoing(ByteBuffer.wrap(scratch, scratchStart, scratchPosition - scratchStart));
+      scratchStart = scratchPosition;
+    }
+  }
+
+  private void addOutgoing(ByteBuffer buffer) {
+    if (outgoingCount == outgoing.length) {
+      outgoing = Arrays.copyOf(outgoing, outgoingCount * 2);
+    }
+    outgoing[outgoingCount++] = buffer;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    closeScratchSegment();
+    int first = 0;
+    while (first < outgoingCount) {
+      long written = channel.write(outgoing, first, outgoingCount - first);
+      while (first < outgoingCount && !outgoing[first].hasRemaining()) {
+        outgoing[first++] = null;
+      }
+      if (first < outgoingCount && written == 0) {
+        await(SelectionKey.OP_WRITE | SelectionKey.OP_READ);
+        if (selectionKey.isReadable() && receive() < 0) {
+          throw new EOFException("Redis closed the connection.");
+        }
+      }
+    }
+    outgoingCount = 0;
+    scratchPosition = 0;
+    scratchStart = 0;
+  }
+
+  @Override
+  public Object readReply(boolean block) throws IOException {
+    while (true) {
+      int start = incoming.position();
+      Object reply = parse();
+      if (reply != INCOMPLETE) {
+        return reply;
+      }
+      incoming.position(start);
+      int received = receive();
+      if (received < 0) {
+        throw new EOFException("Redis closed the connection.");
+      }
+      if (received == 0) {
+        if (!block) {
+          return null;
+        }
+        await(SelectionKey.OP_READ);
+      }
+    }
+  }
+
+  /**
+   * Reads whatever has arrived, growing the buffer if a reply does not fit.
+   *
+   * @return the number of bytes read, or -1 at the end of the stream
+   */
+  private int receive() throws IOException {
+    incoming.compact();
+    if (!incoming.hasRemaining()) {
+      ByteBuffer larger = ByteBuffer.allocate(incoming.capacity() * 2);
+      incoming.flip();
+      larger.put(incoming);
+      incoming = larger;
+    }
+    int received;
+    try {
+      received = channel.read(incoming);
+    } finally {
+      incoming.flip();
+    }
+    return received;
+  }
+
+  /**
+   * Parses one reply from the received bytes.
+   *
+   * @return the reply, or INCOMPLETE with the buffer part way through it
+   */
+  private Object parse() throws IOException {
+    if (!incoming.hasRemaining()) {
+      return INCOMPLETE;
+    }
+    byte type = incoming.get();
+    String line = readLine();
+    if (line == null) {
+      return INCOMPLETE;
+    }
+    switch (type) {
+      case '+':
+        return line;
+      case '-':
+        return new RedisErrorReply(line);
+      case ':':
+        return Long.valueOf(line);
+      case '$': {
+        int length = Integer.parseInt(line);
+        if (length < 0) {
+          return NIL;
+        }
+        if (incoming.remaining() < length + 2) {
+          return INCOMPLETE;
+        }
+        byte[] value = new byte[length];
+        incoming.get(value);
+        incoming.position(incoming.position() + 2);
+        return value;
+      }
+      case '*': {
+        int count = Integer.parseInt(line);
+        if (count < 0) {
+          return NIL;
+        }
+        List<Object> replies = new ArrayList<Object>(count);
+        for (int i = 0; i < count; i++) {
+          Object reply = parse();
+          if (reply == INCOMPLETE) {
+            return INCOMPLETE;
+          }
+          replies.add(reply);
+        }
+        return replies;
+      }
+      default:
+        throw new IOException("Unexpected reply type '" + (char) type + "' from Redis.");
+    }
+  }
+
+  /**
+   * @return the line up to the next CRLF, or null if it has not fully arrived
+   */
+  private String readLine() {
+    int start = incoming.position();
+    for (int i = start; i < incoming.limit() - 1; i++) {
+      if (incoming.get(i) == '\r' && incoming.get(i + 1) == '\n') {
+        byte[] line = new byte[i - start];
+        incoming.get(line);
+        incoming.position(i + 2);
+        return SafeEncoder.encode(line);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Waits until the channel is ready for one of the operations.
+   */
+  private void await(int operations) throws IOException {
+    selectionKey.interestOps(operations);
+    int ready = selector.select(timeoutMillis);
+    selector.selectedKeys().clear();
+    if (ready == 0) {
+      throw new SocketTimeoutException("No answer from Redis within " + timeoutMillis + "ms.");
+    }
+  }
+
+  @Override
+  public void close(boolean broken) {
+    try {
+      selector.close();
+      channel.close();
+    } catch (IOException e) {
+      // Nothing more to do with it
+    }
+  }
+
+  /**
+   * An error reply from Redis.  The command was refused; the connection is still good.
+   */
+  static final class RedisErrorReply extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    RedisErrorReply(String message) {
+      super(message);
+    }
+  }
+}
@@ -0,0 +1,328 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.AppenderMetricsListener.LossReason;
+import com.coruscations.logback.redis.CircuitBreaker;
+import com.coruscations.logback.redis.KeyType;
+import com.coruscations.logback.redis.RedisEndpoint;
+import com.coruscations.logback.redis.TransportType;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * One sender's connection to one endpoint, with the batches awaiting a reply on it.  Each batch
+ * belongs to the appender that built it, which is credited with its replies; when a
+ * {@link SharedTransport} sends for several appenders, their batches share the pipeline.
+ */
+final class PipelinedConnection {
+
+  /**
+   * Takes back the batches a connection could not deliver.
+   */
+  interface Failover {
+
+    void failover(RedisLogstashAppender owner, RedisEndpoint failed, byte[] key, byte[][] values,
+                  long appendNanos);
+  }
+
+  private final RedisEndpoint endpoint;
+  private final TransportType transportType;
+  private final int timeout;
+  private final String password;
+  private final int database;
+  private final Failover failover;
+  private Transport transport;
+  // One per appender with a stream key
+  private final Map<RedisLogstashAppender, XAddCommandWriter> streamWriters =
+      new IdentityHashMap<RedisLogstashAppender, XAddCommandWriter>();
+  // The batches awaiting a reply, oldest at head, wrapping around
+  private final RedisLogstashAppender[] pipelinedOwners;
+  private final byte[][] pipelinedKeys;
+  private final byte[][][] pipelinedBatches;
+  // For each pipelined batch, whether it went out as one XADD per event, when it was written
+  // and when its oldest event was appended
+  private final boolean[] pipelinedStreams;
+  private final long[] pipelinedSendNanos;
+  private final long[] pipelinedAppendNanos;
+  // For each pipelined batch, the replies still to come, the events accepted so far and why
+  // any were not
+  private final int[] pipelinedReplies;
+  private final int[] pipelinedAccepted;
+  private final Exception[] pipelinedRejections;
+  private int head = 0;
+  private int pipelined = 0;
+
+  /**
+   * @param maxPipelined the most batches that may await a reply
+   */
+  PipelinedConnection(RedisEndpoint endpoint, TransportType transportType, int timeout,
+                      String password, int database, int maxPipelined, Failover failover) {
+    this.endpoint = endpoint;
+    this.transportType = transportType;
+    this.timeout = timeout;
+    this.password = password;
+    this.database = database;
+    this.failover = failover;
+    pipelinedOwners = new RedisLogstashAppender[maxPipelined];
+    pipelinedKeys = new byte[maxPipelined][];
+    pipelinedBatches = new byte[maxPipelined][][];
+    pipelinedStreams = new boolean[maxPipelined];
+    pipelinedSendNanos = new long[maxPipelined];
+    pipelinedAppendNanos = new long[maxPipelined];
+    pipelinedReplies = new int[maxPipelined];
+    pipelinedAccepted = new int[maxPipelined];
+    pipelinedRejections = new Exception[maxPipelined];
+  }
+
+  /**
+   * Sends the batch.  While more events are waiting the reply is left outstanding so the
+   * next batch can be built during the round trip; replies that have already arrived are
+   * taken as they come.
+   *
+   * @param idle true if no more events are waiting and every reply should be read now
+   */
+  void send(RedisLogstashAppender owner, byte[] key, byte[][] values, long appendNanos,
+            boolean idle) {
+    if (write(owner, key, values, appendNanos)) {
+      flush(idle);
+    }
+  }
+
+  /**
+   * Writes the batch without putting it on the wire, so that several can go out together on
+   * the next {@link #flush(boolean)}.
+   *
+   * @return false if the connection failed and its batches were failed over
+   */
+  boolean write(RedisLogstashAppender owner, byte[] key, byte[][] values, long appendNanos) {
+    try {
+      if (transport == null) {
+        transport = transportType == TransportType.NIO
+            ? new NioTransport(endpoint.getHostName(), endpoint.getPort(), timeout, password,
+                               database)
+            : new JedisTransport(endpoint.getPool());
+      }
+      if (pipelined == pipelinedBatches.length) {
+        transport.flush();
+        readReplies(true);
+      }
+      XAddCommandWriter streamWriter = streamWriter(owner);
+      if (streamWriter == null) {
+        transport.rpush(key, values);
+      } else {
+        transport.xadd(streamWriter, key, values);
+      }
+      int tail = (head + pipelined) % pipelinedBatches.length;
+      pipelinedOwners[tail] = owner;
+      pipelinedKeys[tail] = key;
+      pipelinedStreams[tail] = streamWriter != null;
+      pipelinedSendNanos[tail] = System.nanoTime();
+      pipelinedAppendNanos[tail] = appendNanos;
+      // One XADD, and so one reply, per event
+      pipelinedReplies[tail] = streamWriter == null ? 1 : values.length;
+      pipelinedBatches[tail] = values;
+      pipelined++;
+      endpoint.addOutstanding(1);
+      return true;
+    } catch (Exception e) {
+      failed(owner, key, values, appendNanos, e);
+      return false;
+    }
+  }
+
+  /**
+   * Puts the batches written so far on the wire and takes the replies that have arrived.
+   *
+   * @param idle true if no more events are waiting and every reply should be read now
+   */
+  void flush(boolean idle) {
+    if (transport == null) {
+      return;
+    }
+    try {
+      transport.flush();
+      // Settle a reconnection probe right away rather than pipelining behind it
+      readReplies(idle || pipelined == pipelinedBatches.length
+                  || endpoint.getHealth() != CircuitBreaker.State.CLOSED);
+    } catch (Exception e) {
+      failed(null, null, null, 0, e);
+    }
+  }
+
+  void awaitReplies() {
+    if (pipelined == 0) {
+      return;
+    }
+    try {
+      readReplies(true);
+    } catch (Exception e) {
+      failed(null, null, null, 0, e);
+    }
+  }
+
+  /**
+   * Takes the replies that have already arrived without waiting for the rest, so the endpoint's
+   * count of outstanding batches is current.
+   */
+  void takeReplies() {
+    if (pipelined == 0) {
+      return;
+    }
+    try {
+      readReplies(false);
+    } catch (Exception e) {
+      failed(null, null, null, 0, e);
+    }
+  }
+
+  private XAddCommandWriter streamWriter(RedisLogstashAppender owner) {
+    if (owner.getKeyType() != KeyType.STREAM) {
+      return null;
+    }
+    XAddCommandWriter streamWriter = streamWriters.get(owner);
+    if (streamWriter == null) {
+      streamWriter = owner.newStreamWriter();
+      streamWriters.put(owner, streamWriter);
+    }
+    return streamWriter;
+  }
+
+  /**
+   * Reads replies, settling each batch once all of its replies are in.
+   *
+   * @param block whether to wait for every outstanding reply, rather than only take those that
+   *              have arrived
+   */
+  private void readReplies(boolean block) throws IOException {
+    while (pipelined > 0) {
+      Object reply = transport.readReply(block);
+      if (reply == null) {
+        return;
+      }
+      if (reply instanceof Exception) {
+        pipelinedRejections[head] = (Exception) reply;
+      } else {
+        pipelinedAccepted[head] += pipelinedStreams[head] ? 1 : pipelinedBatches[head].length;
+      }
+      if (--pipelinedReplies[head] == 0) {
+        settle();
+      }
+    }
+  }
+
+  /**
+   * Accounts for the oldest pipelined batch, whose replies are all in.
+   */
+  private void settle() {
+    RedisLogstashAppender owner = pipelinedOwners[head];
+    int events = pipelinedBatches[head].length;
+    int accepted = pipelinedAccepted[head];
+    if (accepted < events) {
+      owner.addError("Redis rejected " + (events - accepted) + " log messages.",
+                     pipelinedRejections[head]);
+      owner.getMetrics().recordLost(LossReason.REJECTED, events - accepted);
+    }
+    if (accepted > 0) {
+      owner.getMetrics().recordAcknowledged(endpoint, accepted, pipelinedSendNanos[head],
+                                            pipelinedAppendNanos[head]);
+    }
+    pipelinedOwners[head] = null;
+    pipelinedKeys[head] = null;
+    pipelinedBatches[head] = null;
+    pipelinedAccepted[head] = 0;
+    pipelinedRejections[head] = null;
+    head = (head + 1) % pipelinedBatches.length;
+    pipelined--;
+    endpoint.addOutstanding(-1);
+    endpoint.recordSuccess(accepted);
+  }
+
+  /**
+   * Gives up on the connection and fails every batch awaiting a reply on it over to another
+   * endpoint, or spills it.
+   *
+   * @param unsent a batch that was not written, or null
+   */
+  private void failed(RedisLogstashAppender unsentOwner, byte[] unsentKey, byte[][] unsent,
+                      long unsentAppendNanos, Exception e) {
+    // Take the batches off this connection first; failing over may come back to it.
+    RedisLogstashAppender[] failedOwners = new RedisLogstashAppender[pipelined + 1];
+    byte[][] failedKeys = new byte[pipelined + 1][];
+    byte[][][] failedBatches = new byte[pipelined + 1][][];
+    long[] failedAppendNanos = new long[pipelined + 1];
+    int failedCount = 0;
+    for (int i = 0; i < pipelined; i++) {
+      int index = (head + i) % pipelinedBatches.length;
+      failedOwners[failedCount] = pipelinedOwners[index];
+      failedKeys[failedCount] = pipelinedKeys[index];
+      failedAppendNanos[failedCount] = pipelinedAppendNanos[index];
+      failedBatches[failedCount++] = pipelinedBatches[index];
+    }
+    // A failure after writing can leave the unsent batch among the pipelined ones
+    if (unsent != null && (failedCount == 0 || failedBatches[failedCount - 1] != unsent)) {
+      failedOwners[failedCount] = unsentOwner;
+      failedKeys[failedCount] = unsentKey;
+      failedAppendNanos[failedCount] = unsentAppendNanos;
+      failedBatches[failedCount++] = unsent;
+    }
+    endpoint.addOutstanding(-pipelined);
+    Arrays.fill(pipelinedOwners, null);
+    Arrays.fill(pipelinedKeys, null);
+    Arrays.fill(pipelinedBatches, null);
+    Arrays.fill(pipelinedAccepted, 0);
+    Arrays.fill(pipelinedRejections, null);
+    head = 0;
+    pipelined = 0;
+    if (transport != null) {
+      transport.close(true);
+      transport = null;
+    }
+    int lost = 0;
+    for (int i = 0; i < failedCount; i++) {
+      lost += failedBatches[i].length;
+    }
+    endpoint.recordFailure(lost);
+    // Each appender hears about its own batches
+    for (int i = 0; i < failedCount; i++) {
+      RedisLogstashAppender owner = failedOwners[i];
+      if (Arrays.asList(failedOwners).subList(0, i).contains(owner)) {
+        continue;
+      }
+      int ownerLost = 0;
+      for (int j = i; j < failedCount; j++) {
+        ownerLost += failedOwners[j] == owner ? failedBatches[j].length : 0;
+      }
+      owner.getMetrics().recordFailed(endpoint, ownerLost, e);
+      owner.addError("Failed to flush " + ownerLost + " log messages to " + endpoint + ".", e);
+    }
+    for (int i = 0; i < failedCount; i++) {
+      failover.failover(failedOwners[i], endpoint, failedKeys[i], failedBatches[i],
+                        failedAppendNanos[i]);
+    }
+  }
+
+  void close() {
+    awaitReplies();
+    if (transport != null) {
+      transport.close(false);
+      transport = null;
+    }
+  }
+}
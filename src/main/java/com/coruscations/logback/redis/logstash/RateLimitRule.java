@@ -0,0 +1,211 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Limits and samples the events of the loggers under a name prefix, at or below a level.  The
+ * first rule matching an event decides its fate: it is first sampled, then has to take a token
+ * from the rule's bucket, or from the bucket for its value of {@code mdcKey} if one is set.
+ * <p/>
+ * Configured in logback.xml as, for example:
+ * <pre>
+ * &lt;rateLimit&gt;
+ *   &lt;loggerPrefix&gt;com.example.chatty&lt;/loggerPrefix&gt;
+ *   &lt;level&gt;DEBUG&lt;/level&gt;
+ *   &lt;eventsPerSecond&gt;100&lt;/eventsPerSecond&gt;
+ *   &lt;sampleRate&gt;0.1&lt;/sampleRate&gt;
+ * &lt;/rateLimit&gt;
+ * </pre>
+ */
+public class RateLimitRule {
+
+  // Distinct MDC values with a bucket of their own; the rest share one
+  private static final int MAX_KEYED_BUCKETS = 1024;
+
+  private String loggerPrefix = "";
+  private Level level = null;
+  private String mdcKey = null;
+  private double eventsPerSecond = 0;
+  private int burst = 0;
+  private double sampleRate = 1;
+
+  private TokenBucket bucket;
+  private TokenBucket overflowBucket;
+  private final ConcurrentMap<String, TokenBucket> keyedBuckets =
+      new ConcurrentHashMap<String, TokenBucket>();
+  private final AtomicLong rateLimitedCount = new AtomicLong();
+  private final AtomicLong sampledOutCount = new AtomicLong();
+
+  /**
+   * Resets the buckets to full.  Called when the appender starts.
+   */
+  void reset() {
+    long now = System.nanoTime();
+    bucket = eventsPerSecond > 0 ? newBucket(now) : null;
+    overflowBucket = eventsPerSecond > 0 ? newBucket(now) : null;
+    keyedBuckets.clear();
+    rateLimitedCount.set(0);
+    sampledOutCount.set(0);
+  }
+
+  boolean matches(ILoggingEvent event) {
+    return event.getLoggerName().startsWith(loggerPrefix)
+           && (level == null || level.isGreaterOrEqual(event.getLevel()));
+  }
+
+  /**
+   * Decides whether a matching event may be sent.
+   */
+  boolean admit(ILoggingEvent event, Random random) {
+    if (sampleRate < 1 && random.nextDouble() >= sampleRate) {
+      sampledOutCount.incrementAndGet();
+      return false;
+    }
+    TokenBucket bucket = bucket(event);
+    if (bucket != null && !bucket.tryAcquire(System.nanoTime())) {
+      rateLimitedCount.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  private TokenBucket bucket(ILoggingEvent event) {
+    if (mdcKey == null || bucket == null) {
+      return bucket;
+    }
+    String value = event.getMDCPropertyMap().get(mdcKey);
+    if (value == null) {
+      return bucket;
+    }
+    TokenBucket keyed = keyedBuckets.get(value);
+    if (keyed == null) {
+      if (keyedBuckets.size() >= MAX_KEYED_BUCKETS) {
+        return overflowBucket;
+      }
+      TokenBucket created = newBucket(System.nanoTime());
+      keyed = keyedBuckets.putIfAbsent(value, created);
+      if (keyed == null) {
+        keyed = created;
+      }
+    }
+    return keyed;
+  }
+
+  private TokenBucket newBucket(long now) {
+    int burst = this.burst > 0 ? this.burst : Math.max(1, (int) Math.ceil(eventsPerSecond));
+    return new TokenBucket(eventsPerSecond, burst, now);
+  }
+
+  /**
+   * @return events refused a token since the last call
+   */
+  long takeRateLimitedCount() {
+    return rateLimitedCount.getAndSet(0);
+  }
+
+  /**
+   * @return events sampled out since the last call
+   */
+  long takeSampledOutCount() {
+    return sampledOutCount.getAndSet(0);
+  }
+
+  public String getLoggerPrefix() {
+    return loggerPrefix;
+  }
+
+  /**
+   * The rule applies to loggers whose names start with this; all loggers by default.
+   */
+  public void setLoggerPrefix(String loggerPrefix) {
+    this.loggerPrefix = loggerPrefix == null ? "" : loggerPrefix;
+  }
+
+  public String getLevel() {
+    return level == null ? null : level.toString();
+  }
+
+  /**
+   * The rule applies to events at this level and below; all levels by default.
+   */
+  public void setLevel(String level) {
+    this.level = level == null ? null : Level.toLevel(level);
+  }
+
+  public String getMdcKey() {
+    return mdcKey;
+  }
+
+  /**
+   * Gives each value of this MDC key a bucket of its own, e.g. to limit each tenant separately.
+   */
+  public void setMdcKey(String mdcKey) {
+    this.mdcKey = mdcKey;
+  }
+
+  public double getEventsPerSecond() {
+    return eventsPerSecond;
+  }
+
+  /**
+   * The sustained rate allowed through; 0 for no limit.
+   */
+  public void setEventsPerSecond(double eventsPerSecond) {
+    this.eventsPerSecond = eventsPerSecond;
+  }
+
+  public int getBurst() {
+    return burst;
+  }
+
+  /**
+   * How many events may pass at once after a quiet spell; one second's worth by default.
+   */
+  public void setBurst(int burst) {
+    this.burst = burst;
+  }
+
+  public double getSampleRate() {
+    return sampleRate;
+  }
+
+  /**
+   * The fraction of matching events to keep, from 0 to 1.
+   */
+  public void setSampleRate(double sampleRate) {
+    if (sampleRate < 0 || sampleRate > 1) {
+      throw new IllegalArgumentException("sampleRate must be between 0 and 1.");
+    }
+    this.sampleRate = sampleRate;
+  }
+
+  @Override
+  public String toString() {
+    return "rateLimit[loggerPrefix=\"" + loggerPrefix + "\"" +
+           (level == null ? "" : ", level<=" + level) +
+           (mdcKey == null ? "" : ", mdcKey=" + mdcKey) +
+           (eventsPerSecond > 0 ? ", eventsPerSecond=" + eventsPerSecond : "") +
+           (sampleRate < 1 ? ", sampleRate=" + sampleRate : "") + "]";
+  }
+}
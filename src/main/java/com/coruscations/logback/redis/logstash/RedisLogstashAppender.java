@@ -15,48 +15,169 @@
  */
 package com.coruscations.logback.redis.logstash;
 
+import com.coruscations.logback.redis.AppenderMetricsListener.LossReason;
+import com.coruscations.logback.redis.CircuitBreaker;
+import com.coruscations.logback.redis.DiskSpillQueue;
+import com.coruscations.logback.redis.KeyType;
+import com.coruscations.logback.redis.LagState;
 import com.coruscations.logback.redis.RedisAppenderBase;
+import com.coruscations.logback.redis.RedisEndpoint;
+import com.coruscations.logback.redis.ShardingStrategy;
+import com.coruscations.logback.redis.TransportType;
 import com.lmax.disruptor.EventHandler;
+import com.lmax.disruptor.LifecycleAware;
 
 import org.slf4j.Marker;
+import org.slf4j.MarkerFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
 import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.CoreConstants;
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
 
-public class RedisLogstashAppender extends RedisAppenderBase<ILoggingEvent, String> {
+import static com.coruscations.logback.redis.logstash.Utf8JsonWriter.ascii;
+import static com.coruscations.logback.redis.logstash.Utf8JsonWriter.escaped;
 
-  private static final String[] ESCAPE_STRINGS = new String[]{
-      "\\\\u0000", "\\\\u0001", "\\\\u0002", "\\\\u0003", "\\\\u0004", "\\\\u0005", "\\\\u0006",
-      "\\\\u0007", "\\\\b", "\\\\t", "\\\\n", "\\\\u000B", "\\\\f", "\\\\r", "\\\\u000E",
-      "\\\\u000F", "\\\\u0010", "\\\\u0011", "\\\\u0012", "\\\\u0013", "\\\\u0014", "\\\\u0015",
-      "\\\\u0016", "\\\\u0017", "\\\\u0018", "\\\\u0019", "\\\\u001A", "\\\\u001B", "\\\\u001C",
-      "\\\\u001D", "\\\\u001E", "\\\\u001F"};
+public class RedisLogstashAppender extends RedisAppenderBase<ILoggingEvent, byte[]> {
+
+  // Pre-encoded JSON around the MDC fields
+  private static final byte[] FIELD_NAME_END = ascii("\":\"");
+  private static final byte[] FIELD_END_NEXT = ascii("\",");
+  // Ends a message, stack trace or MDC value that was cut short
+  private static final byte[] TRUNCATED = ascii("...");
+  // yyyy-MM-dd'T'HH:mm:ss.SSS'Z'
+  private static final int TIMESTAMP_LENGTH = 24;
+
+  // Tags the summaries of suppressed events, which are never suppressed themselves
+  private static final Marker RATE_LIMIT_SUMMARY =
+      MarkerFactory.getDetachedMarker("rate-limit-summary");
+
+  // Formatting buffers are kept small between events; see Utf8JsonWriter.reset()
+  private static final int INITIAL_EVENT_CAPACITY = 2048;
+  private static final int RETAINED_EVENT_CAPACITY = 64 * 1024;
+
+  // Caller data; call sites beyond the cache limit are rendered every time
+  private static final int MAX_CACHED_CALL_SITES = 4096;
 
   boolean includeCallerData = false;
+  private final CallSiteCache callSites = new CallSiteCache(MAX_CACHED_CALL_SITES);
+
+  // Events below this level may be dropped under OverflowPolicy.DROP_DISCARDABLE
+  private Level discardBelowLevel = Level.WARN;
+
+  // Events at or above this level publish their thread's staged events at once
+  private Level stagingFlushLevel = Level.WARN;
+
+  // Repeated stack traces are sent once per window; 0 sends every one
+  private long stackTraceDedupWindowMillis = 0;
+  private int stackTraceDedupCacheSize = 1024;
+  private volatile StackTraceDeduplicator stackTraceDeduplicator;
+
+  // Payload budget; a zero leaves that part of the event unbounded
+  private String mdcIncludeKeys = null;
+  private String mdcExcludeKeys = null;
+  private Set<String> mdcIncludeKeySet = null;
+  private Set<String> mdcExcludeKeySet = Collections.emptySet();
+  private int maxMessageLength = 0;
+  private int maxStackDepth = 0;
+  private int maxEventBytes = 0;
+
+  // Rate limiting and sampling, checked in order before an event is queued
+  private final List<RateLimitRule> rateLimitRules = new ArrayList<RateLimitRule>();
+  private volatile RateLimitRule[] rateLimits = new RateLimitRule[0];
+  private long rateLimitSummaryIntervalMillis = 60000;
+  private volatile boolean summarizing;
+
+  // Shedding by level as the key's consumers fall behind; monitoring is off unless an interval
+  // is set
+  private long lagMonitorIntervalMillis = 0;
+  private long lagShedDebugLength = 100000;
+  private long lagShedInfoLength = 500000;
+  private long lagSampleLength = 1000000;
+  private double lagSampleRate = 0.1;
+  private volatile LagPolicy lagPolicy;
+  // The worst state of any route, so admission only looks up the event's route while some
+  // route is behind
+  private volatile LagState lagState = LagState.NORMAL;
+  // The state of each route's key, replaced whole on every sample
+  private volatile LagState[] lagStates = new LagState[0];
+  private volatile boolean monitoringLag;
+
+  // Routes to other keys, checked in order; events no route matches go to key
+  private final List<KeyRoute> keyRouteList = new ArrayList<KeyRoute>();
+  private final List<LevelLane> laneList = new ArrayList<LevelLane>();
+  private volatile KeyRoute[] keyRoutes = new KeyRoute[0];
+  // The key of each route, with key itself first
+  private volatile byte[][] routeKeys;
+
+  // MDC key whose value picks the endpoint under hash sharding; the logger name if unset
+  private String shardKey = null;
+
+  // Batching
+  private int maxBatchEvents = 1000;
+  private int maxBatchBytes = 1024 * 1024;
+  private long lingerMillis = 0;
+  private int maxPipelinedCommands = 1;
+  private TransportType transportType = TransportType.JEDIS;
+  // The name of a transport shared with other appenders, and the transport while started
+  private String sharedTransport = null;
+  private volatile SharedTransport activeSharedTransport;
+
+  // Disk spill for batches Redis did not accept
+  private String spillDirectory = null;
+  private int spillSegmentBytes = 16 * 1024 * 1024;
+  private long spillMaxBytes = 256L * 1024 * 1024;
+  private int spillReplayEventsPerSecond = 5000;
+  private DiskSpillQueue spillQueue;
+  private volatile boolean replaying;
 
   // Logstash information
   private String key = "logstash";
+  private KeyType keyType = KeyType.LIST;
+  private long streamMaxLength = 1000000;
   private String type = "";
   private String hostName = null;
   private String file = "logback";
-  private String source;
+  private byte[] keyBytes = SafeEncoder.encode(key);
+
+  // The event layout, compiled again whenever anything it is built from changes
+  private LogstashSchema schema = LogstashSchema.V0;
+  private final List<StaticField> staticFields = new ArrayList<StaticField>();
+  private final Map<String, String> renames = new HashMap<String, String>();
+  private volatile LayoutTemplate template;
 
   public RedisLogstashAppender() {
     String hostName = null;
@@ -88,9 +209,25 @@ public class RedisLogstashAppender extends RedisAppenderBase<ILoggingEvent, Stri
       }
     }
     this.hostName = hostName;
-    updateSource();
+    updateTemplate();
   }
 
+  private final ThreadLocal<Random> random =
+      new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+          return new Random();
+        }
+      };
+
+  private final ThreadLocal<Utf8JsonWriter> jsonWriter =
+      new ThreadLocal<Utf8JsonWriter>() {
+        @Override
+        protected Utf8JsonWriter initialValue() {
+          return new Utf8JsonWriter(INITIAL_EVENT_CAPACITY, RETAINED_EVENT_CAPACITY);
+        }
+      };
+
   private final ThreadLocal<ISO8601Formatter> iso8601DateFormat =
       new ThreadLocal<ISO8601Formatter>() {
         @Override
@@ -101,8 +238,125 @@ public class RedisLogstashAppender extends RedisAppenderBase<ILoggingEvent, Stri
 
 
   @Override
-  public EventHandler<EventWrapper<String>> getEventFlusher() {
-    return new LogstashEventFlusher();
+  public void start() {
+    if (sharedTransport != null) {
+      SharedTransport transport = SharedTransport.lookup(getContext(), sharedTransport);
+      if (transport == null) {
+        addError("No shared transport named \"" + sharedTransport + "\".");
+        return;
+      }
+      if (!transport.acquire()) {
+        addError("Cannot start " + transport + ".");
+        return;
+      }
+      activeSharedTransport = transport;
+    }
+    if (spillDirectory != null) {
+      if (spillMaxBytes < 2L * spillSegmentBytes) {
+        addWarn("spillMaxBytes holds fewer than two segments of spillSegmentBytes; spilling to "
+                + "segments of " + spillMaxBytes / 2 + " bytes instead.");
+      }
+      try {
+        spillQueue = new DiskSpillQueue(new File(spillDirectory), spillSegmentBytes,
+                                        spillMaxBytes);
+      } catch (IOException e) {
+        addError("Cannot open spill directory " + spillDirectory + "; not spilling.", e);
+      } catch (IllegalArgumentException e) {
+        addError("Cannot spill to " + spillDirectory + "; " + e.getMessage(), e);
+      }
+    }
+    for (RateLimitRule rule : rateLimitRules) {
+      rule.reset();
+    }
+    rateLimits = rateLimitRules.toArray(new RateLimitRule[rateLimitRules.size()]);
+    List<KeyRoute> routes = new ArrayList<KeyRoute>();
+    for (KeyRoute route : keyRouteList) {
+      if (route.getKeyBytes() == null) {
+        addError(route + " has no key; ignoring it.");
+      } else {
+        routes.add(route);
+      }
+    }
+    byte[][] routeKeys = new byte[routes.size() + 1][];
+    routeKeys[0] = keyBytes;
+    for (int i = 0; i < routes.size(); i++) {
+      routeKeys[i + 1] = routes.get(i).getKeyBytes();
+    }
+    this.routeKeys = routeKeys;
+    keyRoutes = routes.toArray(new KeyRoute[routes.size()]);
+    List<LevelLane> lanes = new ArrayList<LevelLane>();
+    for (LevelLane lane : laneList) {
+      if (lane.getMinLevel() == null) {
+        addError(lane + " has no minLevel; ignoring it.");
+      } else {
+        lanes.add(lane);
+      }
+    }
+    setPriorityLanes(lanes);
+    for (String field : renames.keySet()) {
+      if (!template.fieldNames.contains(field)) {
+        addWarn("The " + schema + " schema has no field " + field + " to rename.");
+      }
+    }
+    lagState = LagState.NORMAL;
+    lagStates = new LagState[routeKeys.length];
+    Arrays.fill(lagStates, LagState.NORMAL);
+    lagPolicy = new LagPolicy(lagShedDebugLength, lagShedInfoLength, lagSampleLength,
+                              lagSampleRate);
+    super.start();
+    if (!isStarted() && activeSharedTransport != null) {
+      activeSharedTransport.release();
+      activeSharedTransport = null;
+    }
+    if (spillQueue != null && isStarted()) {
+      replaying = true;
+      getExecutor().execute(new SpillReplayer());
+    }
+    if (rateLimits.length > 0 && rateLimitSummaryIntervalMillis > 0 && isStarted()) {
+      summarizing = true;
+      getExecutor().execute(new RateLimitSummarizer());
+    }
+    if (lagMonitorIntervalMillis > 0 && isStarted()) {
+      if (keyType == KeyType.STREAM) {
+        addWarn("Not monitoring lag; a stream key is already trimmed to streamMaxLength.");
+      } else {
+        monitoringLag = true;
+        getExecutor().execute(new LagMonitor());
+      }
+    }
+  }
+
+  @Override
+  public void stop() {
+    replaying = false;
+    summarizing = false;
+    monitoringLag = false;
+    super.stop();
+    if (activeSharedTransport != null) {
+      // Batches already handed over may still fail over or spill
+      activeSharedTransport.release();
+      activeSharedTransport = null;
+    }
+    if (spillQueue != null) {
+      spillQueue.close();
+      spillQueue = null;
+    }
+  }
+
+  @Override
+  protected List<RedisEndpoint> sharedEndpoints() {
+    SharedTransport transport = activeSharedTransport;
+    return transport == null ? null : transport.getEndpoints();
+  }
+
+  @Override
+  public EventHandler<EventWrapper> getEventFlusher() {
+    return new LogstashEventFlusher(0, 1);
+  }
+
+  @Override
+  protected EventHandler<EventWrapper> getEventFlusher(int ordinal, int count) {
+    return new LogstashEventFlusher(ordinal, count);
   }
 
 
@@ -110,10 +364,397 @@ public class RedisLogstashAppender extends RedisAppenderBase<ILoggingEvent, Stri
     return includeCallerData;
   }
 
+  /**
+   * Adds the {@code class}, {@code method}, {@code file} and {@code line} of the logging call
+   * to every event.  This costs a stack capture on the logging thread for each event that is
+   * not suppressed by a rate limit.
+   */
   public void setIncludeCallerData(boolean includeCallerData) {
     this.includeCallerData = includeCallerData;
   }
 
+  public String getDiscardBelowLevel() {
+    return discardBelowLevel.toString();
+  }
+
+  public void setDiscardBelowLevel(String level) {
+    this.discardBelowLevel = Level.toLevel(level, Level.WARN);
+  }
+
+  public String getStagingFlushLevel() {
+    return stagingFlushLevel.toString();
+  }
+
+  /**
+   * When staging, an event at or above this level is published at once with whatever its
+   * thread staged before it.
+   */
+  public void setStagingFlushLevel(String level) {
+    this.stagingFlushLevel = Level.toLevel(level, Level.WARN);
+  }
+
+  public long getStackTraceDedupWindowMillis() {
+    return stackTraceDedupWindowMillis;
+  }
+
+  /**
+   * When positive, a stack trace is sent in full only the first time it is seen in each window
+   * of this many milliseconds.  Every event with a throwable carries a {@code stack_hash}; the
+   * repeats carry it with a {@code stack_repeat_count} instead of the trace.
+   */
+  public void setStackTraceDedupWindowMillis(long stackTraceDedupWindowMillis) {
+    this.stackTraceDedupWindowMillis = stackTraceDedupWindowMillis;
+    updateStackTraceDeduplicator();
+  }
+
+  public int getStackTraceDedupCacheSize() {
+    return stackTraceDedupCacheSize;
+  }
+
+  /**
+   * How many distinct stack traces to remember; the least recently seen are forgotten first.
+   */
+  public void setStackTraceDedupCacheSize(int stackTraceDedupCacheSize) {
+    if (stackTraceDedupCacheSize < 1) {
+      throw new IllegalArgumentException("stackTraceDedupCacheSize must be at least 1.");
+    }
+    this.stackTraceDedupCacheSize = stackTraceDedupCacheSize;
+    updateStackTraceDeduplicator();
+  }
+
+  public String getMdcIncludeKeys() {
+    return mdcIncludeKeys;
+  }
+
+  /**
+   * A comma-separated list of the only MDC keys to send as fields.  Unset sends every key not
+   * excluded.  The {@code tags} key is read for tags either way.
+   */
+  public void setMdcIncludeKeys(String mdcIncludeKeys) {
+    this.mdcIncludeKeys = mdcIncludeKeys;
+    this.mdcIncludeKeySet = mdcIncludeKeys == null ? null : splitKeys(mdcIncludeKeys);
+  }
+
+  public String getMdcExcludeKeys() {
+    return mdcExcludeKeys;
+  }
+
+  /**
+   * A comma-separated list of MDC keys never to send as fields.
+   */
+  public void setMdcExcludeKeys(String mdcExcludeKeys) {
+    this.mdcExcludeKeys = mdcExcludeKeys;
+    this.mdcExcludeKeySet = mdcExcludeKeys == null
+                            ? Collections.<String>emptySet() : splitKeys(mdcExcludeKeys);
+  }
+
+  private static Set<String> splitKeys(String keys) {
+    Set<String> set = new HashSet<String>();
+    for (String key : keys.split(",")) {
+      key = key.trim();
+      if (key.length() > 0) {
+        set.add(key);
+      }
+    }
+    return set;
+  }
+
+  public int getMaxMessageLength() {
+    return maxMessageLength;
+  }
+
+  /**
+   * The most characters of a message to send; a longer one is cut and ends with "...".  Zero
+   * sends every message whole.
+   */
+  public void setMaxMessageLength(int maxMessageLength) {
+    if (maxMessageLength < 0) {
+      throw new IllegalArgumentException("maxMessageLength cannot be negative.");
+    }
+    this.maxMessageLength = maxMessageLength;
+  }
+
+  public int getMaxStackDepth() {
+    return maxStackDepth;
+  }
+
+  /**
+   * The most frames to send of each throwable in a stack trace, causes included; the rest are
+   * counted in a "... N frames omitted" line.  Zero sends every frame.
+   */
+  public void setMaxStackDepth(int maxStackDepth) {
+    if (maxStackDepth < 0) {
+      throw new IllegalArgumentException("maxStackDepth cannot be negative.");
+    }
+    this.maxStackDepth = maxStackDepth;
+  }
+
+  public int getMaxEventBytes() {
+    return maxEventBytes;
+  }
+
+  /**
+   * The most bytes an encoded event may take.  The message comes first; the stack trace and then
+   * the MDC values get what is left, and whatever does not fit is cut.  The other fields are
+   * always sent, so a tiny budget can be exceeded.  Zero leaves events unbounded.
+   */
+  public void setMaxEventBytes(int maxEventBytes) {
+    if (maxEventBytes < 0) {
+      throw new IllegalArgumentException("maxEventBytes cannot be negative.");
+    }
+    this.maxEventBytes = maxEventBytes;
+  }
+
+  private void updateStackTraceDeduplicator() {
+    stackTraceDeduplicator = stackTraceDedupWindowMillis <= 0
+                             ? null
+                             : new StackTraceDeduplicator(stackTraceDedupCacheSize,
+                                                          stackTraceDedupWindowMillis);
+  }
+
+  /**
+   * Adds a rate limit or sampling rule; an event is governed by the first rule it matches.
+   */
+  public void addRateLimit(RateLimitRule rule) {
+    rateLimitRules.add(rule);
+  }
+
+  public long getRateLimitSummaryIntervalMillis() {
+    return rateLimitSummaryIntervalMillis;
+  }
+
+  /**
+   * How often to log a summary of the events each rate limit suppressed; 0 for never.
+   */
+  public void setRateLimitSummaryIntervalMillis(long rateLimitSummaryIntervalMillis) {
+    this.rateLimitSummaryIntervalMillis = rateLimitSummaryIntervalMillis;
+  }
+
+  public long getLagMonitorIntervalMillis() {
+    return lagMonitorIntervalMillis;
+  }
+
+  /**
+   * How often to sample the length of the key and adjust what is shed.  Lag monitoring is off
+   * unless this is set, and does not apply to stream keys.
+   */
+  public void setLagMonitorIntervalMillis(long lagMonitorIntervalMillis) {
+    this.lagMonitorIntervalMillis = lagMonitorIntervalMillis;
+  }
+
+  public long getLagShedDebugLength() {
+    return lagShedDebugLength;
+  }
+
+  /**
+   * The key length at which DEBUG and TRACE events are shed; 0 never sheds them on its own.
+   */
+  public void setLagShedDebugLength(long lagShedDebugLength) {
+    this.lagShedDebugLength = lagShedDebugLength;
+  }
+
+  public long getLagShedInfoLength() {
+    return lagShedInfoLength;
+  }
+
+  /**
+   * The key length at which everything below WARN is shed; 0 never sheds INFO on its own.
+   */
+  public void setLagShedInfoLength(long lagShedInfoLength) {
+    this.lagShedInfoLength = lagShedInfoLength;
+  }
+
+  public long getLagSampleLength() {
+    return lagSampleLength;
+  }
+
+  /**
+   * The key length at which WARN events are sampled as well; 0 never samples them.
+   */
+  public void setLagSampleLength(long lagSampleLength) {
+    this.lagSampleLength = lagSampleLength;
+  }
+
+  public double getLagSampleRate() {
+    return lagSampleRate;
+  }
+
+  /**
+   * The fraction of WARN events kept while sampling.
+   */
+  public void setLagSampleRate(double lagSampleRate) {
+    if (lagSampleRate < 0 || lagSampleRate > 1) {
+      throw new IllegalArgumentException("lagSampleRate must be between 0 and 1.");
+    }
+    this.lagSampleRate = lagSampleRate;
+  }
+
+  /**
+   * @return what is being shed from the route whose key's consumers are furthest behind
+   */
+  public LagState getLagState() {
+    return lagState;
+  }
+
+  /**
+   * @return the longest any key was on any endpoint when last sampled, or -1 if lag is not
+   * monitored
+   */
+  public long getDownstreamLength() {
+    return getMetrics().getDownstreamLength();
+  }
+
+  /**
+   * Adds a route sending matching events to another key; an event goes to the key of the first
+   * route it matches.
+   */
+  public void addRoute(KeyRoute route) {
+    keyRouteList.add(route);
+  }
+
+  /**
+   * Adds a priority lane with a ring buffer of its own for events at or above its level; an
+   * event goes to the first lane it matches.
+   */
+  public void addLane(LevelLane lane) {
+    laneList.add(lane);
+  }
+
+  public String getShardKey() {
+    return shardKey;
+  }
+
+  /**
+   * The MDC key whose value picks an event's endpoint under {@link ShardingStrategy#HASH}.  Events
+   * without it, or all events if this is not set, are sharded by logger name.
+   */
+  public void setShardKey(String shardKey) {
+    this.shardKey = shardKey;
+  }
+
+  public int getMaxBatchEvents() {
+    return maxBatchEvents;
+  }
+
+  public void setMaxBatchEvents(int maxBatchEvents) {
+    if (maxBatchEvents < 1) {
+      throw new IllegalArgumentException("maxBatchEvents must be at least 1.");
+    }
+    this.maxBatchEvents = maxBatchEvents;
+  }
+
+  public int getMaxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  public void setMaxBatchBytes(int maxBatchBytes) {
+    this.maxBatchBytes = maxBatchBytes;
+  }
+
+  public long getLingerMillis() {
+    return lingerMillis;
+  }
+
+  /**
+   * How long a partial batch may wait for more events before it is pushed.  Zero pushes as soon
+   * as the consumer runs out of events.
+   */
+  public void setLingerMillis(long lingerMillis) {
+    this.lingerMillis = lingerMillis;
+  }
+
+  public int getMaxPipelinedCommands() {
+    return maxPipelinedCommands;
+  }
+
+  /**
+   * How many batches each sender may have in flight before it waits for replies.  One waits for
+   * every reply, as a plain synchronous client would.
+   */
+  public void setMaxPipelinedCommands(int maxPipelinedCommands) {
+    if (maxPipelinedCommands < 1) {
+      throw new IllegalArgumentException("maxPipelinedCommands must be at least 1.");
+    }
+    this.maxPipelinedCommands = maxPipelinedCommands;
+  }
+
+  public TransportType getTransportType() {
+    return transportType;
+  }
+
+  /**
+   * How senders write batches: through the Jedis pool, the default, or over their own
+   * non-blocking sockets.
+   */
+  public void setTransportType(TransportType transportType) {
+    this.transportType = transportType == null ? TransportType.JEDIS : transportType;
+  }
+
+  public String getSharedTransport() {
+    return sharedTransport;
+  }
+
+  /**
+   * The name of a {@link SharedTransport} to send through instead of this appender's own
+   * connections.  Its endpoints and connection settings then replace the appender's.
+   */
+  public void setSharedTransport(String sharedTransport) {
+    this.sharedTransport = sharedTransport;
+  }
+
+  public String getSpillDirectory() {
+    return spillDirectory;
+  }
+
+  /**
+   * Where batches Redis did not accept are kept until they can be replayed.  Spilling is off
+   * unless this is set.
+   */
+  public void setSpillDirectory(String spillDirectory) {
+    this.spillDirectory = spillDirectory;
+  }
+
+  public int getSpillSegmentBytes() {
+    return spillSegmentBytes;
+  }
+
+  /**
+   * The size of each spill file; halved as far as needed to fit two in spillMaxBytes.
+   */
+  public void setSpillSegmentBytes(int spillSegmentBytes) {
+    this.spillSegmentBytes = spillSegmentBytes;
+  }
+
+  public long getSpillMaxBytes() {
+    return spillMaxBytes;
+  }
+
+  /**
+   * The most disk space spilled events may use; the oldest are discarded beyond it.
+   */
+  public void setSpillMaxBytes(long spillMaxBytes) {
+    this.spillMaxBytes = spillMaxBytes;
+  }
+
+  public int getSpillReplayEventsPerSecond() {
+    return spillReplayEventsPerSecond;
+  }
+
+  public void setSpillReplayEventsPerSecond(int spillReplayEventsPerSecond) {
+    if (spillReplayEventsPerSecond < 1) {
+      throw new IllegalArgumentException("spillReplayEventsPerSecond must be at least 1.");
+    }
+    this.spillReplayEventsPerSecond = spillReplayEventsPerSecond;
+  }
+
+  /**
+   * @return events waiting on disk to be replayed, or 0 if spilling is off
+   */
+  public long getSpilledCount() {
+    DiskSpillQueue spillQueue = this.spillQueue;
+    return spillQueue == null ? 0 : spillQueue.size();
+  }
+
   public String getKey() {
     return key;
   }
@@ -122,9 +763,35 @@ public class RedisLogstashAppender extends RedisAppenderBase<ILoggingEvent, Stri
     if (key == null || key.length() == 0) {
       throw new IllegalArgumentException("Key cannot be null or empty.");
     }
-    StringBuilder sb = new StringBuilder(key.length());
-    escape(key, sb);
-    this.key = sb.toString();
+    this.key = SafeEncoder.encode(escaped(key));
+    this.keyBytes = SafeEncoder.encode(this.key);
+  }
+
+  public KeyType getKeyType() {
+    return keyType;
+  }
+
+  /**
+   * Whether events are pushed onto a list, the default, or added to a stream trimmed to about
+   * {@link #getStreamMaxLength() streamMaxLength} entries.
+   */
+  public void setKeyType(KeyType keyType) {
+    this.keyType = keyType == null ? KeyType.LIST : keyType;
+  }
+
+  public long getStreamMaxLength() {
+    return streamMaxLength;
+  }
+
+  /**
+   * The number of entries a stream key is trimmed to.  Redis trims lazily, so the stream may run
+   * somewhat longer.  Zero never trims it.
+   */
+  public void setStreamMaxLength(long streamMaxLength) {
+    if (streamMaxLength < 0) {
+      throw new IllegalArgumentException("streamMaxLength cannot be negative.");
+    }
+    this.streamMaxLength = streamMaxLength;
   }
 
   public String getType() {
@@ -133,7 +800,7 @@ public class RedisLogstashAppender extends RedisAppenderBase<ILoggingEvent, Stri
 
   public void setType(String type) {
     this.type = type == null ? "" : type;
-    updateSource();
+    updateTemplate();
   }
 
   public String getHostName() {
@@ -142,7 +809,7 @@ public class RedisLogstashAppender extends RedisAppenderBase<ILoggingEvent, Stri
 
   public void setHostName(String hostName) {
     this.hostName = hostName;
-    updateSource();
+    updateTemplate();
   }
 
   public String getFile() {
@@ -151,164 +818,990 @@ public class RedisLogstashAppender extends RedisAppenderBase<ILoggingEvent, Stri
 
   public void setFile(String file) {
     this.file = file;
-    updateSource();
+    updateTemplate();
+  }
+
+  public LogstashSchema getSchema() {
+    return schema;
+  }
+
+  /**
+   * The JSON layout of events: the original json_event format, V0 and the default, or the flat
+   * V1 format of logstash 1.2 and later.
+   */
+  public void setSchema(LogstashSchema schema) {
+    this.schema = schema == null ? LogstashSchema.V0 : schema;
+    updateTemplate();
+  }
+
+  /**
+   * Adds a field with the same value in every event.  In the V0 schema it goes in
+   * {@code @fields}.
+   */
+  public void addStaticField(StaticField field) {
+    if (field.getName() == null) {
+      addError(field + " has no name; ignoring it.");
+      return;
+    }
+    staticFields.add(field);
+    updateTemplate();
+  }
+
+  /**
+   * Sends one of the schema's fields under another name.
+   */
+  public void addRename(FieldRename rename) {
+    if (rename.getField() == null || rename.getTo() == null) {
+      addError(rename + " needs both a field and a name to send it as; ignoring it.");
+      return;
+    }
+    renames.put(rename.getField(), rename.getTo());
+    updateTemplate();
+  }
+
+  private void updateTemplate() {
+    template = LayoutTemplate.compile(schema, renames, staticFields, type, hostName, file);
+  }
+
+  @Override
+  protected void prepareForDeferredProcessing(ILoggingEvent event) {
+    // Snapshots the formatted message, thread name and MDC; the level, logger name, timestamp,
+    // marker and throwable proxy are already immutable.
+    event.prepareForDeferredProcessing();
+    if (includeCallerData) {
+      // Logback finds the caller from the logging thread's stack, so it must be captured here
+      event.getCallerData();
+    }
+  }
+
+  @Override
+  protected boolean isAdmitted(ILoggingEvent event) {
+    if (event.getMarker() == RATE_LIMIT_SUMMARY) {
+      return true;
+    }
+    if (lagState != LagState.NORMAL) {
+      // Only the key the event goes to being behind sheds it
+      LagState state = lagStates[route(event)];
+      if (state != LagState.NORMAL && !lagPolicy.admits(state, event.getLevel(), random.get())) {
+        getMetrics().recordLost(LossReason.LAGGING, 1);
+        return false;
+      }
+    }
+    RateLimitRule[] rateLimits = this.rateLimits;
+    for (RateLimitRule rule : rateLimits) {
+      if (rule.matches(event)) {
+        if (rule.admit(event, random.get())) {
+          return true;
+        }
+        getMetrics().recordLost(LossReason.SUPPRESSED, 1);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  protected boolean isUrgent(ILoggingEvent event) {
+    return event.getLevel().isGreaterOrEqual(stagingFlushLevel);
+  }
+
+  @Override
+  protected boolean isDiscardable(ILoggingEvent event) {
+    return !event.getLevel().isGreaterOrEqual(discardBelowLevel);
+  }
+
+  @Override
+  protected int route(ILoggingEvent event) {
+    KeyRoute[] keyRoutes = this.keyRoutes;
+    for (int i = 0; i < keyRoutes.length; i++) {
+      if (keyRoutes[i].matches(event)) {
+        return i + 1;
+      }
+    }
+    return 0;
   }
 
-  private void updateSource() {
-    StringBuilder sb = new StringBuilder(127);
-    escape((type.length() == 0 ? "" : (type + "://")) +
-           hostName + "/" +
-           (file == null ? "logback" : file), sb);
-    this.source = sb.toString();
+  @Override
+  protected int shardHash(ILoggingEvent event) {
+    String value = shardKey == null ? null : event.getMDCPropertyMap().get(shardKey);
+    return value == null ? event.getLoggerName().hashCode() : value.hashCode();
+  }
+
+  @Override
+  public byte[] formatEvent(ILoggingEvent event) {
+    Utf8JsonWriter writer = jsonWriter.get();
+    writer.reset();
+    encodeEvent(event, writer);
+    return writer.toByteArray();
   }
 
   @Override
-  public String formatEvent(ILoggingEvent event) {
-    StringBuilder sb = new StringBuilder(2047);
+  protected boolean writeMessage(byte[] message, ByteBuffer target) {
+    if (message.length > target.remaining()) {
+      return false;
+    }
+    target.put(message);
+    return true;
+  }
 
-    sb.append("{\"@source\":\"");
-    escape(source, sb);
-    sb.append("\",");
+  @Override
+  protected byte[] readMessage(ByteBuffer source) {
+    byte[] message = new byte[source.remaining()];
+    source.get(message);
+    return message;
+  }
 
-    sb.append("\"@tags\":[");
-    appendTags(sb, event);
-    sb.append("],");
+  /**
+   * Writes the event in UTF-8 as the layout template lays it out, cut to the payload budget as it
+   * goes.
+   */
+  void encodeEvent(ILoggingEvent event, Utf8JsonWriter writer) {
+    LayoutTemplate template = this.template;
+    String message = event.getFormattedMessage();
+    int messageEnd = message == null ? 0 : truncatedLength(message, maxMessageLength);
+    byte[] callerFields = includeCallerData ? callerFields(event) : null;
+    // Room for the message, and what it leaves for the stack trace and MDC values
+    int messageRoom = Integer.MAX_VALUE;
+    int fieldsRoom = Integer.MAX_VALUE;
+    if (maxEventBytes > 0) {
+      messageRoom = maxEventBytes - TRUNCATED.length - fixedLength(template, event, callerFields);
+      int messageLength = message == null
+                          ? 0 : Utf8JsonWriter.escapedLength(message, 0, messageEnd);
+      fieldsRoom = messageRoom - Math.min(messageLength, Math.max(messageRoom, 0));
+    }
+    int[] steps = template.steps;
+    byte[][] literals = template.literals;
+    for (int i = 0; i < steps.length; i++) {
+      switch (steps[i]) {
+        case LayoutTemplate.LITERAL:
+          writer.write(literals[i]);
+          break;
+        case LayoutTemplate.TAGS:
+          writeTags(writer, event);
+          break;
+        case LayoutTemplate.STACK_TRACE: {
+          IThrowableProxy throwableProxy = event.getThrowableProxy();
+          if (throwableProxy != null) {
+            int fieldsStart = writer.size();
+            writeStackTrace(template, writer, throwableProxy, event.getTimeStamp(),
+                            limit(fieldsStart, fieldsRoom));
+            fieldsRoom -= writer.size() - fieldsStart;
+          }
+          break;
+        }
+        case LayoutTemplate.MDC: {
+          int fieldsStart = writer.size();
+          writeMdc(writer, event, template.tagsField, limit(fieldsStart, fieldsRoom));
+          fieldsRoom -= writer.size() - fieldsStart;
+          break;
+        }
+        case LayoutTemplate.CALLER:
+          if (callerFields != null) {
+            writer.write(callerFields);
+          }
+          break;
+        case LayoutTemplate.LOGGER_NAME:
+          writer.writeEscaped(event.getLoggerName());
+          break;
+        case LayoutTemplate.THREAD_NAME:
+          writer.writeEscaped(event.getThreadName());
+          break;
+        case LayoutTemplate.LEVEL:
+          writer.writeAscii(event.getLevel().toString());
+          break;
+        case LayoutTemplate.TIMESTAMP:
+          iso8601DateFormat.get().format(event.getTimeStamp(), writer);
+          break;
+        case LayoutTemplate.MESSAGE:
+          if (message != null && writer.writeEscaped(message, 0, messageEnd,
+                                                     limit(writer.size(), messageRoom))
+                                 < message.length()) {
+            writer.write(TRUNCATED);
+          }
+          break;
+        default:
+          throw new IllegalStateException("Unknown layout step " + steps[i] + ".");
+      }
+    }
+  }
 
-    sb.append("\"@fields\":{");
-    appendFields(sb, event);
-    sb.append("},");
+  /**
+   * @return the size a part may run to with {@code room} bytes left, without overflowing
+   */
+  private static int limit(int size, int room) {
+    return room > Integer.MAX_VALUE - size ? Integer.MAX_VALUE : size + room;
+  }
 
-    String iso8601Date = iso8601DateFormat.get().format(event.getTimeStamp());
-    sb.append("\"@timestamp\":\"").append(iso8601Date).append("\",");
+  /**
+   * @return how many characters of value to keep, never splitting a surrogate pair
+   */
+  private static int truncatedLength(String value, int maxLength) {
+    if (maxLength == 0 || value.length() <= maxLength) {
+      return value.length();
+    }
+    return Character.isHighSurrogate(value.charAt(maxLength - 1)) ? maxLength - 1 : maxLength;
+  }
 
-    sb.append("\"@message\":\"");
-    String formattedMessage = event.getFormattedMessage();
-    if (formattedMessage == null) {
-      formattedMessage = "";
+  /**
+   * @return the most the parts of an event that are never cut can take
+   */
+  private static int fixedLength(LayoutTemplate template, ILoggingEvent event,
+                                 byte[] callerFields) {
+    String loggerName = event.getLoggerName();
+    String threadName = event.getThreadName();
+    int length = template.literalLength + TIMESTAMP_LENGTH
+                 + Utf8JsonWriter.escapedLength(loggerName, 0, loggerName.length())
+                 + Utf8JsonWriter.escapedLength(threadName, 0, threadName.length())
+                 + event.getLevel().toString().length()
+                 + (callerFields == null ? 0 : callerFields.length);
+    // Tags are trimmed and empty ones skipped, so quoting each piece is an upper bound
+    Marker marker = event.getMarker();
+    if (marker != null) {
+      length += Utf8JsonWriter.escapedLength(marker.getName(), 0, marker.getName().length()) + 3;
     }
-    escape(formattedMessage, sb);
-    sb.append("\",");
-    sb.append("\"@type\":\"").append(type).append("\"}");
-    return sb.toString();
+    String tags = event.getMDCPropertyMap().get("tags");
+    if (tags != null) {
+      length += Utf8JsonWriter.escapedLength(tags, 0, tags.length()) + 3;
+      for (int i = tags.indexOf(','); i >= 0; i = tags.indexOf(',', i + 1)) {
+        length += 2;
+      }
+    }
+    return length;
   }
 
-  void appendTags(StringBuilder sb, ILoggingEvent event) {
+  void writeTags(Utf8JsonWriter writer, ILoggingEvent event) {
     boolean first = true;
     Marker marker = event.getMarker();
     if (marker != null) {
-      sb.append("\"");
-      escape(marker.getName(), sb);
-      sb.append("\"");
+      writer.write((byte) '"');
+      writer.writeEscaped(marker.getName());
+      writer.write((byte) '"');
       first = false;
     }
     String tags = event.getMDCPropertyMap().get("tags");
-    if (tags != null) {
-      // TODO: Consider avoiding split() because of regex cost
-      for (String tag : tags.split("(?m),")) {
-        if (tag == null || tag.length() <= 0) {
-          continue;
+    if (tags == null) {
+      return;
+    }
+    // Comma-separated, skipping empty entries and trimming the rest
+    int length = tags.length();
+    int start = 0;
+    while (start < length) {
+      int end = tags.indexOf(',', start);
+      if (end < 0) {
+        end = length;
+      }
+      if (end > start) {
+        int tagStart = start;
+        int tagEnd = end;
+        while (tagStart < tagEnd && tags.charAt(tagStart) <= ' ') {
+          tagStart++;
+        }
+        while (tagEnd > tagStart && tags.charAt(tagEnd - 1) <= ' ') {
+          tagEnd--;
         }
         if (!first) {
-          sb.append(',');
+          writer.write((byte) ',');
         }
         first = false;
-        sb.append("\"");
-        escape(tag.trim(), sb);
-        sb.append("\"");
+        writer.write((byte) '"');
+        writer.writeEscaped(tags, tagStart, tagEnd);
+        writer.write((byte) '"');
       }
+      start = end + 1;
     }
   }
 
-  private void appendFields(StringBuilder sb, ILoggingEvent event) {
-    // Start with things we might not always have
-    IThrowableProxy throwableProxy = event.getThrowableProxy();
-    if (throwableProxy != null) {
-      appendField(sb, "stack_trace", ThrowableProxyUtil.asString(throwableProxy)).append(',');
-    }
+  /**
+   * Writes the MDC entries not excluded as fields, each followed by a comma.
+   *
+   * @param tagsField whether to include the tags entry
+   * @param limit the size the fields must end by; values are cut and entries skipped to fit
+   */
+  private void writeMdc(Utf8JsonWriter writer, ILoggingEvent event, boolean tagsField,
+                        int limit) {
+    Set<String> includeKeys = mdcIncludeKeySet;
+    Set<String> excludeKeys = mdcExcludeKeySet;
     Map<String, String> mdc = event.getMDCPropertyMap();
     for (Map.Entry<String, String> entry : mdc.entrySet()) {
-      appendField(sb, entry.getKey(), entry.getValue()).append(',');
-    }
-
-    // We always have these
-    appendField(sb, "logger_name", event.getLoggerName()).append(',');
-    appendField(sb, "thread_name", event.getThreadName()).append(',');
-    // Is there any value to this?
-    //appendField(sb, "level_value", String.valueOf(event.getLevel().toInt())).append(',');
-    appendField(sb, "level", event.getLevel().toString());
-  }
-
-  private StringBuilder appendField(StringBuilder sb, String name, String value) {
-    sb.append('"');
-    escape(name, sb);
-    //    sb.append("\":[\"");
-    sb.append("\":\"");
-    escape(value, sb);
-    //    sb.append("\"]");
-    sb.append('"');
-    return sb;
-  }
-
-  @SuppressWarnings("ImplicitNumericConversion")
-  private static void escape(String input, StringBuilder sb) {
-    for (int i = 0, length = input.length(); i < length; i++) {
-      char ch = input.charAt(i);
-      switch (ch) {
-        case '\\':
-          sb.append("\\\\\\\\");
-          break;
-        case '"':
-          sb.append("\\\"");
-          break;
-        default:
-          if (ch < 0x20) {
-            sb.append(ESCAPE_STRINGS[ch]);
-          } else {
-            sb.append(ch);
-          }
+      String key = entry.getKey();
+      if ((includeKeys != null && !includeKeys.contains(key)) || excludeKeys.contains(key)
+          || (!tagsField && key.equals("tags"))) {
+        continue;
+      }
+      int fieldStart = writer.size();
+      writer.write((byte) '"');
+      writer.writeEscaped(key);
+      writer.write(FIELD_NAME_END);
+      int valueLimit = limit - FIELD_END_NEXT.length - TRUNCATED.length;
+      if (writer.size() > valueLimit) {
+        // No room for this one, though a shorter key may still fit
+        writer.rewind(fieldStart);
+        continue;
+      }
+      String value = entry.getValue();
+      if (value != null
+          && writer.writeEscaped(value, 0, value.length(), valueLimit) < value.length()) {
+        writer.write(TRUNCATED);
+      }
+      writer.write(FIELD_END_NEXT);
+    }
+  }
+
+  private byte[] callerFields(ILoggingEvent event) {
+    StackTraceElement[] callerData = event.getCallerData();
+    return callerData.length > 0 ? callSites.fields(callerData[0]) : null;
+  }
+
+  /**
+   * Writes the stack trace, or its hash and repeat count, followed by a comma.
+   *
+   * @param limit the size the fields must end by; the trace is cut to fit
+   */
+  private void writeStackTrace(LayoutTemplate template, Utf8JsonWriter writer,
+                               IThrowableProxy throwableProxy, long timestamp, int limit) {
+    StackTraceDeduplicator deduplicator = this.stackTraceDeduplicator;
+    int fieldStart = writer.size();
+    int repeats = 0;
+    if (deduplicator != null) {
+      long fingerprint = StackTraceDeduplicator.fingerprint(throwableProxy);
+      repeats = deduplicator.repeats(fingerprint, timestamp);
+      writer.write(template.stackHashField);
+      writer.writeHex(fingerprint);
+      writer.write(FIELD_END_NEXT);
+    }
+    if (repeats == 0) {
+      writer.write(template.stackTraceField);
+      int traceLimit = limit - FIELD_END_NEXT.length - TRUNCATED.length;
+      if (writer.size() > traceLimit) {
+        writer.rewind(fieldStart);
+        return;
+      }
+      if (!writeThrowable(writer, null, ThrowableProxyUtil.REGULAR_EXCEPTION_INDENT,
+                          throwableProxy, traceLimit, new StringBuilder())) {
+        writer.write(TRUNCATED);
+      }
+      writer.write(FIELD_END_NEXT);
+    } else {
+      writer.write(template.stackRepeatCountField);
+      writer.writeAscii(Integer.toString(repeats));
+      writer.write((byte) ',');
+      if (writer.size() > limit) {
+        writer.rewind(fieldStart);
+      }
+    }
+  }
+
+  /**
+   * Writes a throwable the way {@link ThrowableProxyUtil#asString(IThrowableProxy)} formats it,
+   * a line at a time, keeping at most maxStackDepth frames of each throwable.
+   *
+   * @param line reused for each line
+   * @return false if it was cut short at {@code limit}
+   */
+  private boolean writeThrowable(Utf8JsonWriter writer, String prefix, int indent,
+                                 IThrowableProxy throwable, int limit, StringBuilder line) {
+    line.setLength(0);
+    if (prefix != null) {
+      line.append(prefix);
+    }
+    line.append(throwable.getClassName()).append(": ").append(throwable.getMessage())
+        .append(CoreConstants.LINE_SEPARATOR);
+    if (!writeLine(writer, line, limit)) {
+      return false;
+    }
+    StackTraceElementProxy[] frames = throwable.getStackTraceElementProxyArray();
+    int commonFrames = throwable.getCommonFrames();
+    int ownFrames = frames.length - commonFrames;
+    int keptFrames = maxStackDepth > 0 ? Math.min(ownFrames, maxStackDepth) : ownFrames;
+    for (int i = 0; i < keptFrames; i++) {
+      indent(line, indent);
+      ThrowableProxyUtil.subjoinSTEP(line, frames[i]);
+      line.append(CoreConstants.LINE_SEPARATOR);
+      if (!writeLine(writer, line, limit)) {
+        return false;
+      }
+    }
+    if (keptFrames < ownFrames) {
+      indent(line, indent);
+      line.append("... ").append(ownFrames - keptFrames).append(" frames omitted")
+          .append(CoreConstants.LINE_SEPARATOR);
+      if (!writeLine(writer, line, limit)) {
+        return false;
       }
     }
+    if (commonFrames > 0) {
+      indent(line, indent);
+      line.append("... ").append(commonFrames).append(" common frames omitted")
+          .append(CoreConstants.LINE_SEPARATOR);
+      if (!writeLine(writer, line, limit)) {
+        return false;
+      }
+    }
+    IThrowableProxy[] suppressed = throwable.getSuppressed();
+    if (suppressed != null) {
+      for (IThrowableProxy current : suppressed) {
+        if (!writeThrowable(writer, CoreConstants.SUPPRESSED,
+                            ThrowableProxyUtil.SUPPRESSED_EXCEPTION_INDENT, current, limit, line)) {
+          return false;
+        }
+      }
+    }
+    IThrowableProxy cause = throwable.getCause();
+    return cause == null
+           || writeThrowable(writer, CoreConstants.CAUSED_BY,
+                             ThrowableProxyUtil.REGULAR_EXCEPTION_INDENT, cause, limit, line);
+  }
+
+  private static void indent(StringBuilder line, int indent) {
+    line.setLength(0);
+    for (int i = 0; i < indent; i++) {
+      line.append('\t');
+    }
+  }
+
+  /**
+   * @return false if the line did not all fit below limit
+   */
+  private static boolean writeLine(Utf8JsonWriter writer, StringBuilder line, int limit) {
+    String text = line.toString();
+    return writer.writeEscaped(text, 0, text.length(), limit) == text.length();
   }
 
   private class LogstashEventFlusher
-      implements EventHandler<EventWrapper<String>> {
+      implements EventHandler<EventWrapper>, LifecycleAware, PipelinedConnection.Failover {
+
+    private final int ordinal;
+    private final int senders;
+    private final byte[][] keys = routeKeys;
+    // For each key, one batch per endpoint under hash sharding; otherwise one batch for
+    // whichever is next
+    private final Batch[][] batches;
+    private int pendingEvents = 0;
+    private long lingerStartNanos;
 
-    private final List<String> jsonStrings = new LinkedList<String>();
+    // This sender's connection to each endpoint it has used, also listed in the order they were
+    // made so that failing over to a new one does not disturb a pass over the rest
+    private final Map<RedisEndpoint, PipelinedConnection> connections =
+        new IdentityHashMap<RedisEndpoint, PipelinedConnection>();
+    private final List<PipelinedConnection> connectionList = new ArrayList<PipelinedConnection>();
+
+    private LogstashEventFlusher(int ordinal, int senders) {
+      this.ordinal = ordinal;
+      this.senders = senders;
+      int shards = getShardingStrategy() == ShardingStrategy.HASH ? getEndpoints().size() : 1;
+      this.batches = new Batch[keys.length][shards];
+      for (Batch[] routeBatches : batches) {
+        for (int i = 0; i < shards; i++) {
+          routeBatches[i] = new Batch();
+        }
+      }
+    }
 
     @Override
-    public void onEvent(EventWrapper<String> event, long sequence, boolean endOfBatch) {
-      jsonStrings.add(event.getMessage());
+    public void onEvent(EventWrapper event, long sequence, boolean endOfBatch) {
+      if (sequence % senders == ordinal) {
+        // A staged slot holds several events
+        int size = event.size();
+        for (int i = 0; i < size; i++) {
+          byte[] message = event.getMessage(i);
+          int route = event.getRoute(i);
+          int shards = batches[route].length;
+          int shard = shards == 1 ? 0 : (event.getShardHash(i) & Integer.MAX_VALUE) % shards;
+          if (pendingEvents == 0) {
+            lingerStartNanos = System.nanoTime();
+          }
+          Batch batch = batches[route][shard];
+          batch.add(message, event.getAppendNanos(i));
+          pendingEvents++;
+          if (batch.isFull()) {
+            // Replies are read below at the end of a batch, along with the other batches'
+            flush(route, shard);
+          }
+        }
+      }
       if (endOfBatch) {
-        String[] values = new String[jsonStrings.size()];
-        Jedis jedis = pool.getResource();
+        if (pendingEvents > 0 && !awaitMoreEvents(sequence)) {
+          // Write every batch before reading any reply, so batches for different keys share
+          // round trips
+          for (int route = 0; route < batches.length; route++) {
+            for (int shard = 0; shard < batches[route].length; shard++) {
+              flush(route, shard);
+            }
+          }
+          for (int i = 0; i < connectionList.size(); i++) {
+            connectionList.get(i).awaitReplies();
+          }
+        } else if (pendingEvents == 0) {
+          for (int i = 0; i < connectionList.size(); i++) {
+            connectionList.get(i).awaitReplies();
+          }
+        }
+      }
+    }
+
+    /**
+     * Waits out the rest of the linger window for more events to arrive.
+     *
+     * @return true if more events are available and the batch should keep filling
+     */
+    private boolean awaitMoreEvents(long sequence) {
+      if (lingerMillis <= 0) {
+        return false;
+      }
+      long deadline = lingerStartNanos + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+      while (!isPublishedAfter(sequence)) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || !isStarted()) {
+          return false;
+        }
+        LockSupport.parkNanos(Math.min(remaining, 100000L));
+      }
+      return true;
+    }
+
+    /**
+     * Sends one batch, or spills it if no endpoint is available.  Its reply is read at the end
+     * of the batch of events, if not before.
+     */
+    private void flush(int route, int shard) {
+      Batch batch = batches[route][shard];
+      if (batch.count == 0) {
+        return;
+      }
+      pendingEvents -= batch.count;
+      long appendNanos = batch.oldestAppendNanos;
+      byte[][] values = batch.take();
+      if (getShardingStrategy() == ShardingStrategy.LEAST_OUTSTANDING) {
+        // Replies are otherwise only read from the connection being written, leaving the other
+        // endpoints looking busier than they are
+        for (int i = 0; i < connectionList.size(); i++) {
+          connectionList.get(i).takeReplies();
+        }
+      }
+      RedisEndpoint endpoint = selectEndpoint(batches[route].length == 1 ? -1 : shard);
+      SharedTransport transport = activeSharedTransport;
+      if (endpoint == null) {
+        shed(keys[route], values);
+      } else if (transport != null) {
+        transport.send(RedisLogstashAppender.this, endpoint, keys[route], values, appendNanos);
+      } else {
+        connection(endpoint).send(RedisLogstashAppender.this, keys[route], values, appendNanos,
+                                  false);
+      }
+    }
+
+    /**
+     * Resends a batch that {@code failed} could not deliver to another endpoint, or spills it.
+     */
+    @Override
+    public void failover(RedisLogstashAppender owner, RedisEndpoint failed, byte[] key,
+                         byte[][] values, long appendNanos) {
+      RedisEndpoint endpoint = failoverEndpoint(failed, key, values);
+      if (endpoint != null) {
+        connection(endpoint).send(owner, key, values, appendNanos, true);
+      }
+    }
+
+    private PipelinedConnection connection(RedisEndpoint endpoint) {
+      PipelinedConnection connection = connections.get(endpoint);
+      if (connection == null) {
+        connection = new PipelinedConnection(endpoint, transportType, getRedisTimeout(),
+                                             getRedisPassword(), getRedisDatabase(),
+                                             maxPipelinedCommands, this);
+        connections.put(endpoint, connection);
+        connectionList.add(connection);
+      }
+      return connection;
+    }
+
+    @Override
+    public void onStart() {
+    }
+
+    @Override
+    public void onShutdown() {
+      for (PipelinedConnection connection : connectionList) {
+        connection.close();
+      }
+      connections.clear();
+      connectionList.clear();
+    }
+  }
+
+  /**
+   * Events collected for one RPUSH, or one pipeline of XADDs.
+   */
+  private class Batch {
+
+    private final byte[][] events = new byte[maxBatchEvents][];
+    private int count = 0;
+    private long bytes = 0;
+    private long oldestAppendNanos;
+
+    private void add(byte[] message, long appendNanos) {
+      if (count == 0) {
+        oldestAppendNanos = appendNanos;
+      }
+      events[count++] = message;
+      bytes += message.length;
+    }
+
+    private boolean isFull() {
+      return count >= events.length || bytes >= maxBatchBytes;
+    }
+
+    /**
+     * Empties the batch.  The events are copied because batches awaiting a reply must survive
+     * for spilling.
+     */
+    private byte[][] take() {
+      byte[][] values = Arrays.copyOf(events, count);
+      // Clear regardless of success to we do not leak memory.
+      Arrays.fill(events, 0, count, null);
+      count = 0;
+      bytes = 0;
+      return values;
+    }
+  }
+
+  /**
+   * Picks another endpoint for a batch that {@code failed} could not deliver, or spills it.
+   *
+   * @return the endpoint to resend to, or null if the batch was spilled or dropped
+   */
+  RedisEndpoint failoverEndpoint(RedisEndpoint failed, byte[] key, byte[][] values) {
+    RedisEndpoint endpoint = selectEndpoint(-1);
+    if (endpoint == null || endpoint == failed) {
+      if (endpoint != null && endpoint.getHealth() == CircuitBreaker.State.HALF_OPEN) {
+        // Selecting it made it a probe, and the probe cannot go to a node that just failed.
+        endpoint.recordFailure(0);
+      }
+      shed(key, values);
+      return null;
+    }
+    return endpoint;
+  }
+
+  /**
+   * @return a writer for this appender's XADDs, or null when pushing onto a list
+   */
+  XAddCommandWriter newStreamWriter() {
+    return keyType == KeyType.STREAM ? new XAddCommandWriter(streamMaxLength) : null;
+  }
+
+  /**
+   * Spills a batch that is not being sent because every endpoint is considered down, or drops
+   * it.
+   */
+  void shed(byte[] key, byte[][] values) {
+    int spilled = spill(key, values);
+    if (spilled < values.length) {
+      recordShed(values.length - spilled);
+    }
+  }
+
+  /**
+   * Adds a batch to the spill queue, if there is one.
+   *
+   * @return the number of events spilled
+   */
+  private int spill(byte[] key, byte[][] batch) {
+    DiskSpillQueue spillQueue = this.spillQueue;
+    if (spillQueue == null) {
+      return 0;
+    }
+    byte[][] records = batch;
+    if (key != routeKeys[0]) {
+      records = new byte[batch.length][];
+      for (int i = 0; i < batch.length; i++) {
+        records[i] = spillRecord(key, batch[i]);
+      }
+    }
+    try {
+      int spilled = spillQueue.offer(records, 0, records.length);
+      getMetrics().recordSpilled(spilled);
+      return spilled;
+    } catch (IOException e) {
+      addError("Failed to spill " + batch.length + " log messages.", e);
+      return 0;
+    }
+  }
+
+  /**
+   * Events for a routed key are spilled behind their key: a zero byte, which no JSON event starts
+   * with, the key's length in two bytes, and the key.  Events for the appender's own key are
+   * spilled as they are.
+   */
+  private static byte[] spillRecord(byte[] key, byte[] event) {
+    byte[] record = new byte[3 + key.length + event.length];
+    record[1] = (byte) (key.length >>> 8);
+    record[2] = (byte) key.length;
+    System.arraycopy(key, 0, record, 3, key.length);
+    System.arraycopy(event, 0, record, 3 + key.length, event.length);
+    return record;
+  }
+
+  /**
+   * @return the key a spilled record is for
+   */
+  private byte[] spilledKey(byte[] record) {
+    if (record.length == 0 || record[0] != 0) {
+      return routeKeys[0];
+    }
+    int keyLength = ((record[1] & 0xff) << 8) | (record[2] & 0xff);
+    return Arrays.copyOfRange(record, 3, 3 + keyLength);
+  }
+
+  private static byte[] spilledEvent(byte[] record) {
+    if (record.length == 0 || record[0] != 0) {
+      return record;
+    }
+    int keyLength = ((record[1] & 0xff) << 8) | (record[2] & 0xff);
+    return Arrays.copyOfRange(record, 3 + keyLength, record.length);
+  }
+
+  /**
+   * Pushes events to a key and waits for Redis to accept them.
+   */
+  private void push(Jedis jedis, XAddCommandWriter streamWriter, byte[] key, byte[][] events)
+      throws IOException {
+    if (streamWriter == null) {
+      jedis.rpush(key, events);
+    } else {
+      Client client = jedis.getClient();
+      streamWriter.write(client.getSocket().getOutputStream(), key, events, events.length);
+      for (int i = 0; i < events.length; i++) {
+        client.getOne();
+      }
+    }
+  }
+
+  /**
+   * Drains the spill queue into Redis no faster than spillReplayEventsPerSecond, backing off
+   * while Redis keeps failing.
+   */
+  private class SpillReplayer implements Runnable {
+
+    private static final long IDLE_MILLIS = 100;
+    private static final long FAILURE_BACKOFF_MILLIS = 1000;
+
+    @Override
+    public void run() {
+      DiskSpillQueue spillQueue = RedisLogstashAppender.this.spillQueue;
+      // Ten batches a second keeps the rate smooth
+      byte[][] records = new byte[Math.max(1, Math.min(maxBatchEvents,
+                                                       spillReplayEventsPerSecond / 10))][];
+      XAddCommandWriter streamWriter = newStreamWriter();
+      while (replaying) {
+        RedisEndpoint endpoint = spillQueue.size() == 0 ? null : selectEndpoint(-1);
+        if (endpoint == null) {
+          pause(IDLE_MILLIS);
+          continue;
+        }
+        int count = spillQueue.peek(records, records.length);
+        long startNanos = System.nanoTime();
+        Jedis jedis = null;
         try {
-          jedis.rpush(key, jsonStrings.toArray(values));
+          jedis = endpoint.getPool().getResource();
+          // Each run of records for the same key is one push.  A failure part way leaves every
+          // record on disk, so those before it are sent again.
+          int start = 0;
+          while (start < count) {
+            byte[] key = spilledKey(records[start]);
+            int end = start + 1;
+            while (end < count && Arrays.equals(key, spilledKey(records[end]))) {
+              end++;
+            }
+            byte[][] events = new byte[end - start][];
+            for (int i = start; i < end; i++) {
+              events[i - start] = spilledEvent(records[i]);
+            }
+            push(jedis, streamWriter, key, events);
+            start = end;
+          }
+          endpoint.getPool().returnResource(jedis);
+          spillQueue.remove(count);
+          endpoint.recordSuccess(count);
+          getMetrics().recordAcknowledged(endpoint, count, startNanos, -1);
         } catch (Exception e) {
-          addError("Failed to flush " + jsonStrings.size() + "log messages to " +
-                   getRedisHostName() + ":" + getRedisPort());
-        } finally {
-          pool.returnResource(jedis);
+          if (jedis != null) {
+            endpoint.getPool().returnBrokenResource(jedis);
+          }
+          // Still on disk, so not counted as failed
+          endpoint.recordFailure(0);
+          pause(FAILURE_BACKOFF_MILLIS);
+        }
+        Arrays.fill(records, null);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        pause(count * 1000L / spillReplayEventsPerSecond - elapsedMillis);
+      }
+    }
+
+    /**
+     * Sleeps in short steps so stop() is not held up.
+     */
+    private void pause(long millis) {
+      long deadline = System.currentTimeMillis() + millis;
+      long remaining = millis;
+      while (replaying && remaining > 0) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.min(remaining, IDLE_MILLIS)));
+        remaining = deadline - System.currentTimeMillis();
+      }
+    }
+  }
+
+  /**
+   * Periodically logs, through this appender, how many events each rate limit suppressed.
+   */
+  private class RateLimitSummarizer implements Runnable {
+
+    private static final long STEP_MILLIS = 100;
+
+    @Override
+    public void run() {
+      long next = System.currentTimeMillis() + rateLimitSummaryIntervalMillis;
+      while (summarizing) {
+        long remaining = next - System.currentTimeMillis();
+        if (remaining > 0) {
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.min(remaining, STEP_MILLIS)));
+          continue;
+        }
+        next += rateLimitSummaryIntervalMillis;
+        for (RateLimitRule rule : rateLimits) {
+          long rateLimited = rule.takeRateLimitedCount();
+          long sampledOut = rule.takeSampledOutCount();
+          if (rateLimited + sampledOut > 0) {
+            doAppend(summary(rule, rateLimited, sampledOut));
+          }
         }
-        // Clear regardless of success to we do not leak memory.
-        jsonStrings.clear();
       }
     }
+
+    private ILoggingEvent summary(RateLimitRule rule, long rateLimited, long sampledOut) {
+      LoggingEvent event = new LoggingEvent();
+      event.setLoggerName(RateLimitRule.class.getName());
+      event.setLevel(Level.WARN);
+      event.setThreadName(Thread.currentThread().getName());
+      event.setTimeStamp(System.currentTimeMillis());
+      event.setMarker(RATE_LIMIT_SUMMARY);
+      event.setMDCPropertyMap(Collections.<String, String>emptyMap());
+      event.setMessage(rule + " suppressed " + (rateLimited + sampledOut) + " events (" +
+                       rateLimited + " over the rate, " + sampledOut + " sampled out) in the " +
+                       "last " + rateLimitSummaryIntervalMillis + " ms.");
+      return event;
+    }
   }
 
-  private class ISO8601Formatter {
+  /**
+   * Samples the length of the key on every healthy endpoint and moves the lag state to match the
+   * longest.
+   */
+  private class LagMonitor implements Runnable {
 
-    DateFormat dateFormat;
-    Date date;
+    private static final long STEP_MILLIS = 100;
+
+    @Override
+    public void run() {
+      long next = System.currentTimeMillis();
+      while (monitoringLag) {
+        long remaining = next - System.currentTimeMillis();
+        if (remaining > 0) {
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(Math.min(remaining, STEP_MILLIS)));
+          continue;
+        }
+        next += lagMonitorIntervalMillis;
+        long[] lengths = sampleLengths();
+        if (lengths != null) {
+          update(lengths);
+        }
+      }
+    }
+
+    /**
+     * @return the longest each route's key is on any healthy endpoint, or null if none answered
+     */
+    private long[] sampleLengths() {
+      byte[][] keys = routeKeys;
+      long[] lengths = null;
+      for (RedisEndpoint endpoint : getEndpoints()) {
+        // Leave endpoints that are down to the senders' reconnection probes
+        if (endpoint.getHealth() != CircuitBreaker.State.CLOSED) {
+          continue;
+        }
+        Jedis jedis = null;
+        try {
+          jedis = endpoint.getPool().getResource();
+          long[] sampled = new long[keys.length];
+          for (int i = 0; i < keys.length; i++) {
+            sampled[i] = jedis.llen(keys[i]);
+          }
+          endpoint.getPool().returnResource(jedis);
+          if (lengths == null) {
+            lengths = sampled;
+          } else {
+            for (int i = 0; i < keys.length; i++) {
+              lengths[i] = Math.max(lengths[i], sampled[i]);
+            }
+          }
+        } catch (Exception e) {
+          if (jedis != null) {
+            endpoint.getPool().returnBrokenResource(jedis);
+          }
+          // The senders will notice soon enough if the endpoint is down
+        }
+      }
+      return lengths;
+    }
+
+    private void update(long[] lengths) {
+      LagState[] previous = lagStates;
+      LagState[] states = new LagState[previous.length];
+      LagState worst = LagState.NORMAL;
+      long longest = 0;
+      for (int i = 0; i < states.length; i++) {
+        states[i] = lagPolicy.next(previous[i], lengths[i]);
+        if (states[i].ordinal() > worst.ordinal()) {
+          worst = states[i];
+        }
+        longest = Math.max(longest, lengths[i]);
+        String change = "Key " + SafeEncoder.encode(routeKeys[i]) + " holds " + lengths[i]
+                        + " events; lag state is now " + states[i] + ".";
+        if (states[i].ordinal() > previous[i].ordinal()) {
+          addWarn(change);
+        } else if (states[i] != previous[i]) {
+          addInfo(change);
+        }
+      }
+      lagStates = states;
+      lagState = worst;
+      getMetrics().recordDownstreamLength(longest, worst);
+    }
+  }
+
+  private static final class ISO8601Formatter {
+
+    private final DateFormat dateFormat;
+    private final Date date;
+    // Everything up to the milliseconds changes at most once a second
+    private long cachedSecond = -1;
+    private byte[] cachedPrefix;
 
     private ISO8601Formatter() {
-      this.dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+      this.dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.");
       dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
       date = new Date();
     }
 
-    private String format(long timestamp) {
-      date.setTime(timestamp);
-      return dateFormat.format(date);
+    private void format(long timestamp, Utf8JsonWriter writer) {
+      long second = timestamp / 1000;
+      if (second != cachedSecond) {
+        date.setTime(second * 1000);
+        cachedPrefix = ascii(dateFormat.format(date));
+        cachedSecond = second;
+      }
+      writer.write(cachedPrefix);
+      writer.writeDigits((int) (timestamp - second * 1000), 3);
+      writer.write((byte) 'Z');
     }
   }
 }
@@ -0,0 +1,407 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.RedisEndpoint;
+import com.coruscations.logback.redis.TransportType;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.core.Context;
+import ch.qos.logback.core.spi.ContextAwareBase;
+
+/**
+ * Redis connections shared by several appenders.  Each appender still batches on its own
+ * threads, but hands its batches to the transport's single sender, which writes whatever every
+ * appender has queued before flushing, so their batches share round trips over one connection
+ * per endpoint.
+ *
+ * <p>The transport is declared once, with {@link SharedTransportAction}, and named by each
+ * appender's {@code sharedTransport} property.  It connects when the first appender starts and
+ * disconnects when the last one stops.
+ */
+public class SharedTransport extends ContextAwareBase {
+
+  private static final String CONTEXT_KEY_PREFIX = SharedTransport.class.getName() + ".";
+
+  // Sent to the sender to stop it once everything before it is settled
+  private static final Submission STOP = new Submission(null, null, null, null, 0);
+
+  private String name;
+  private String redisHostName = "127.0.0.1";
+  private int redisPort = 6379;
+  private String redisEndpoints = null;
+  private int redisTimeout = 5000;
+  private String redisPassword = null;
+  private int redisDatabase = 0;
+  private TransportType transportType = TransportType.JEDIS;
+  private int maxPipelinedCommands = 1;
+  private int maxQueuedBatches = 1024;
+  private int circuitBreakerFailureThreshold = 3;
+  private long circuitBreakerInitialBackoffMillis = 500;
+  private long circuitBreakerMaxBackoffMillis = 30000;
+
+  // Guarded by this
+  private int references = 0;
+  private List<RedisEndpoint> endpoints;
+  private Thread senderThread;
+  private volatile BlockingQueue<Submission> queue;
+
+  /**
+   * Makes the transport available to appenders in its context under its name.
+   */
+  public void register() {
+    if (name == null) {
+      addError("A shared transport needs a name.");
+      return;
+    }
+    getContext().putObject(CONTEXT_KEY_PREFIX + name, this);
+  }
+
+  /**
+   * @return the transport registered under the name, or null
+   */
+  public static SharedTransport lookup(Context context, String name) {
+    return (SharedTransport) context.getObject(CONTEXT_KEY_PREFIX + name);
+  }
+
+  /**
+   * Takes a reference for an appender that is starting, connecting if it is the first.
+   *
+   * @return false if the transport could not connect
+   */
+  synchronized boolean acquire() {
+    if (references == 0) {
+      String hostPorts = redisEndpoints == null ? redisHostName + ":" + redisPort : redisEndpoints;
+      // The sender holds one connection, and each appender's spill replayer and lag monitor
+      // borrow theirs.
+      List<RedisEndpoint> endpoints =
+          RedisEndpoint.createAll(this, hostPorts, 2, redisTimeout, redisPassword, redisDatabase,
+                                  circuitBreakerFailureThreshold,
+                                  circuitBreakerInitialBackoffMillis,
+                                  circuitBreakerMaxBackoffMillis);
+      if (endpoints == null) {
+        return false;
+      }
+      this.endpoints = endpoints;
+      queue = new ArrayBlockingQueue<Submission>(maxQueuedBatches);
+      senderThread = new Thread(new Sender(), "redis-transport-" + name);
+      senderThread.setDaemon(true);
+      senderThread.start();
+    }
+    references++;
+    return true;
+  }
+
+  /**
+   * Drops an appender's reference once the batches it has handed over are settled,
+   * disconnecting if it was the last.
+   */
+  synchronized void release() {
+    if (references == 0) {
+      return;
+    }
+    Submission barrier = new Submission(null, null, null, null, 0);
+    if (enqueue(barrier)) {
+      try {
+        barrier.settled.await(redisTimeout, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (--references > 0) {
+      return;
+    }
+    if (enqueue(STOP)) {
+      try {
+        senderThread.join(redisTimeout);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    senderThread = null;
+    queue = null;
+    for (RedisEndpoint endpoint : endpoints) {
+      endpoint.destroy();
+    }
+    endpoints = null;
+  }
+
+  private boolean enqueue(Submission submission) {
+    try {
+      queue.put(submission);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * @return the endpoints every appender using the transport sends to; only valid while
+   * acquired
+   */
+  synchronized List<RedisEndpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  /**
+   * Hands a batch to the sender, waiting while the sender is {@code maxQueuedBatches} behind.
+   * The owner is credited with the outcome, and takes the batch back if it cannot be delivered.
+   */
+  void send(RedisLogstashAppender owner, RedisEndpoint endpoint, byte[] key, byte[][] values,
+            long appendNanos) {
+    BlockingQueue<Submission> queue = this.queue;
+    if (queue != null) {
+      try {
+        queue.put(new Submission(owner, endpoint, key, values, appendNanos));
+        return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    owner.shed(key, values);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The name appenders refer to the transport by.
+   */
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public String getRedisHostName() {
+    return redisHostName;
+  }
+
+  public void setRedisHostName(String redisHostName) {
+    this.redisHostName = redisHostName;
+  }
+
+  public int getRedisPort() {
+    return redisPort;
+  }
+
+  public void setRedisPort(int redisPort) {
+    this.redisPort = redisPort;
+  }
+
+  public String getRedisEndpoints() {
+    return redisEndpoints;
+  }
+
+  /**
+   * A comma-separated list of {@code host:port} endpoints, as for an appender.  When set,
+   * {@code redisHostName} and {@code redisPort} are ignored.
+   */
+  public void setRedisEndpoints(String redisEndpoints) {
+    this.redisEndpoints = redisEndpoints;
+  }
+
+  public int getRedisTimeout() {
+    return redisTimeout;
+  }
+
+  public void setRedisTimeout(int redisTimeout) {
+    this.redisTimeout = redisTimeout;
+  }
+
+  public String getRedisPassword() {
+    return redisPassword;
+  }
+
+  public void setRedisPassword(String redisPassword) {
+    this.redisPassword = redisPassword;
+  }
+
+  public int getRedisDatabase() {
+    return redisDatabase;
+  }
+
+  public void setRedisDatabase(int redisDatabase) {
+    this.redisDatabase = redisDatabase;
+  }
+
+  public TransportType getTransportType() {
+    return transportType;
+  }
+
+  public void setTransportType(TransportType transportType) {
+    this.transportType = transportType == null ? TransportType.JEDIS : transportType;
+  }
+
+  public int getMaxPipelinedCommands() {
+    return maxPipelinedCommands;
+  }
+
+  /**
+   * How many batches, from any appender, the sender may have in flight on each connection
+   * before it waits for replies.
+   */
+  public void setMaxPipelinedCommands(int maxPipelinedCommands) {
+    if (maxPipelinedCommands < 1) {
+      throw new IllegalArgumentException("maxPipelinedCommands must be at least 1.");
+    }
+    this.maxPipelinedCommands = maxPipelinedCommands;
+  }
+
+  public int getMaxQueuedBatches() {
+    return maxQueuedBatches;
+  }
+
+  /**
+   * How many batches appenders may hand over before they wait for the sender to catch up.
+   */
+  public void setMaxQueuedBatches(int maxQueuedBatches) {
+    if (maxQueuedBatches < 1) {
+      throw new IllegalArgumentException("maxQueuedBatches must be at least 1.");
+    }
+    this.maxQueuedBatches = maxQueuedBatches;
+  }
+
+  public int getCircuitBreakerFailureThreshold() {
+    return circuitBreakerFailureThreshold;
+  }
+
+  public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+    this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+  }
+
+  public long getCircuitBreakerInitialBackoffMillis() {
+    return circuitBreakerInitialBackoffMillis;
+  }
+
+  public void setCircuitBreakerInitialBackoffMillis(long circuitBreakerInitialBackoffMillis) {
+    this.circuitBreakerInitialBackoffMillis = circuitBreakerInitialBackoffMillis;
+  }
+
+  public long getCircuitBreakerMaxBackoffMillis() {
+    return circuitBreakerMaxBackoffMillis;
+  }
+
+  public void setCircuitBreakerMaxBackoffMillis(long circuitBreakerMaxBackoffMillis) {
+    this.circuitBreakerMaxBackoffMillis = circuitBreakerMaxBackoffMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "sharedTransport[" + name + "]";
+  }
+
+  /**
+   * A batch handed over by an appender, or, with no batch, a barrier the sender opens once
+   * everything before it is settled.
+   */
+  private static final class Submission {
+
+    private final RedisLogstashAppender owner;
+    private final RedisEndpoint endpoint;
+    private final byte[] key;
+    private final byte[][] values;
+    private final long appendNanos;
+    private final CountDownLatch settled = new CountDownLatch(1);
+
+    private Submission(RedisLogstashAppender owner, RedisEndpoint endpoint, byte[] key,
+                       byte[][] values, long appendNanos) {
+      this.owner = owner;
+      this.endpoint = endpoint;
+      this.key = key;
+      this.values = values;
+      this.appendNanos = appendNanos;
+    }
+  }
+
+  private class Sender implements Runnable, PipelinedConnection.Failover {
+
+    private final BlockingQueue<Submission> queue = SharedTransport.this.queue;
+    // The connection to each endpoint used so far, also listed in the order they were made so
+    // that failing over to a new one does not disturb a pass over the rest
+    private final Map<RedisEndpoint, PipelinedConnection> connections =
+        new IdentityHashMap<RedisEndpoint, PipelinedConnection>();
+    private final List<PipelinedConnection> connectionList = new ArrayList<PipelinedConnection>();
+    private final List<Submission> drained = new ArrayList<Submission>();
+
+    @Override
+    public void run() {
+      try {
+        boolean stopping = false;
+        while (!stopping) {
+          drained.add(queue.take());
+          queue.drainTo(drained);
+          // Write everything queued before putting any of it on the wire
+          for (Submission submission : drained) {
+            if (submission.values != null) {
+              connection(submission.endpoint).write(submission.owner, submission.key,
+                                                    submission.values, submission.appendNanos);
+            } else {
+              flushAll(true);
+              submission.settled.countDown();
+              stopping = submission == STOP;
+            }
+          }
+          drained.clear();
+          flushAll(queue.isEmpty());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        for (PipelinedConnection connection : connectionList) {
+          connection.close();
+        }
+        connections.clear();
+        connectionList.clear();
+      }
+    }
+
+    private void flushAll(boolean idle) {
+      for (int i = 0; i < connectionList.size(); i++) {
+        connectionList.get(i).flush(idle);
+      }
+    }
+
+    @Override
+    public void failover(RedisLogstashAppender owner, RedisEndpoint failed, byte[] key,
+                         byte[][] values, long appendNanos) {
+      RedisEndpoint endpoint = owner.failoverEndpoint(failed, key, values);
+      if (endpoint != null) {
+        connection(endpoint).send(owner, key, values, appendNanos, true);
+      }
+    }
+
+    private PipelinedConnection connection(RedisEndpoint endpoint) {
+      PipelinedConnection connection = connections.get(endpoint);
+      if (connection == null) {
+        connection = new PipelinedConnection(endpoint, transportType, redisTimeout,
+                                             redisPassword, redisDatabase,
+                                             maxPipelinedCommands, this);
+        connections.put(endpoint, connection);
+        connectionList.add(connection);
+      }
+      return connection;
+    }
+  }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import org.xml.sax.Attributes;
+
+import ch.qos.logback.core.joran.action.Action;
+import ch.qos.logback.core.joran.spi.InterpretationContext;
+import ch.qos.logback.core.util.OptionHelper;
+
+/**
+ * Declares a {@link SharedTransport} in logback.xml.  Register it for the element first:
+ *
+ * <pre>
+ * &lt;newRule pattern="configuration/sharedTransport"
+ *          actionClass="com.coruscations.logback.redis.logstash.SharedTransportAction"/&gt;
+ * &lt;sharedTransport name="redis"&gt;
+ *     &lt;redisHostName&gt;localhost&lt;/redisHostName&gt;
+ * &lt;/sharedTransport&gt;
+ * </pre>
+ */
+public class SharedTransportAction extends Action {
+
+  private SharedTransport transport;
+
+  @Override
+  public void begin(InterpretationContext ic, String name, Attributes attributes) {
+    transport = null;
+    String transportName = ic.subst(attributes.getValue(NAME_ATTRIBUTE));
+    if (OptionHelper.isEmpty(transportName)) {
+      addError("Missing name for a shared transport at " + getLineColStr(ic) + ".");
+      return;
+    }
+    transport = new SharedTransport();
+    transport.setContext(context);
+    transport.setName(transportName);
+    ic.pushObject(transport);
+  }
+
+  @Override
+  public void end(InterpretationContext ic, String name) {
+    if (transport == null) {
+      return;
+    }
+    if (ic.peekObject() != transport) {
+      addWarn("The object on top of the stack is not the shared transport pushed earlier.");
+      return;
+    }
+    ic.popObject();
+    transport.register();
+    transport = null;
+  }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.StackTraceElementProxy;
+
+/**
+ * Remembers which stack traces were recently sent in full, so that an exception thrown over and
+ * over is rendered once per window and referred to by its fingerprint after that.  Traces are
+ * fingerprinted by exception class and frames, ignoring messages, and kept in a bounded LRU.
+ */
+final class StackTraceDeduplicator {
+
+  private final long windowMillis;
+  private final Map<Long, Occurrences> recent;
+
+  StackTraceDeduplicator(final int maxTraces, long windowMillis) {
+    this.windowMillis = windowMillis;
+    this.recent = new LinkedHashMap<Long, Occurrences>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Occurrences> eldest) {
+        return size() > maxTraces;
+      }
+    };
+  }
+
+  /**
+   * Records an occurrence of a trace.
+   *
+   * @param timestamp when the event was logged
+   * @return 0 if the trace should be sent in full, otherwise how many times it has been seen
+   * since it last was
+   */
+  synchronized int repeats(long fingerprint, long timestamp) {
+    Long key = fingerprint;
+    Occurrences occurrences = recent.get(key);
+    if (occurrences == null || timestamp - occurrences.windowStart >= windowMillis) {
+      if (occurrences == null) {
+        occurrences = new Occurrences();
+        recent.put(key, occurrences);
+      }
+      occurrences.windowStart = timestamp;
+      occurrences.repeats = 0;
+      return 0;
+    }
+    return ++occurrences.repeats;
+  }
+
+  /**
+   * Hashes the exception classes and frames of a throwable and everything it wraps.
+   */
+  static long fingerprint(IThrowableProxy throwableProxy) {
+    long hash = 0xcbf29ce484222325L;
+    for (IThrowableProxy proxy = throwableProxy; proxy != null; proxy = proxy.getCause()) {
+      hash = mix(hash, proxy.getClassName().hashCode());
+      for (StackTraceElementProxy step : proxy.getStackTraceElementProxyArray()) {
+        StackTraceElement element = step.getStackTraceElement();
+        hash = mix(hash, element.getClassName().hashCode());
+        hash = mix(hash, element.getMethodName().hashCode());
+        hash = mix(hash, element.getLineNumber());
+      }
+      IThrowableProxy[] suppressed = proxy.getSuppressed();
+      if (suppressed != null) {
+        for (IThrowableProxy suppressedProxy : suppressed) {
+          hash = mix(hash, fingerprint(suppressedProxy));
+        }
+      }
+    }
+    return hash;
+  }
+
+  private static long mix(long hash, long value) {
+    return (hash ^ value) * 0x100000001b3L;
+  }
+
+  private static final class Occurrences {
+
+    private long windowStart;
+    private int repeats;
+  }
+}
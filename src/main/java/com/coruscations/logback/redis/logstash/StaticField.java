@@ -0,0 +1,60 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+/**
+ * A field with the same value in every event, such as the environment or the application name.
+ * <p/>
+ * Configured in logback.xml as, for example:
+ * <pre>
+ * &lt;staticField&gt;
+ *   &lt;name&gt;environment&lt;/name&gt;
+ *   &lt;value&gt;production&lt;/value&gt;
+ * &lt;/staticField&gt;
+ * </pre>
+ */
+public class StaticField {
+
+  private String name = null;
+  private String value = "";
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * The name of the field.  Required.
+   */
+  public void setName(String name) {
+    if (name == null || name.length() == 0) {
+      throw new IllegalArgumentException("Name cannot be null or empty.");
+    }
+    this.name = name;
+  }
+
+  public String getValue() {
+    return value;
+  }
+
+  public void setValue(String value) {
+    this.value = value == null ? "" : value;
+  }
+
+  @Override
+  public String toString() {
+    return "staticField[name=\"" + name + "\"]";
+  }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket, kept as the time at which the bucket will next be full (the generic
+ * cell rate algorithm).  Taking a token is a single compare-and-set; refusing one is a read.
+ */
+final class TokenBucket {
+
+  private final long intervalNanos;
+  private final long toleranceNanos;
+  private final AtomicLong theoreticalArrival;
+
+  /**
+   * @param eventsPerSecond the sustained rate
+   * @param burst           how many events may pass at once after a quiet period
+   */
+  TokenBucket(double eventsPerSecond, int burst, long nowNanos) {
+    this.intervalNanos = Math.max(1, (long) (1e9 / eventsPerSecond));
+    this.toleranceNanos = (burst - 1) * intervalNanos;
+    this.theoreticalArrival = new AtomicLong(nowNanos);
+  }
+
+  boolean tryAcquire(long nowNanos) {
+    while (true) {
+      long arrival = theoreticalArrival.get();
+      long start = arrival - nowNanos > 0 ? arrival : nowNanos;
+      if (start - nowNanos > toleranceNanos) {
+        return false;
+      }
+      if (theoreticalArrival.compareAndSet(arrival, start + intervalNanos)) {
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import java.io.IOException;
+
+/**
+ * One sender's link to one endpoint: writes pipelined commands and reads their replies back in
+ * order.
+ */
+interface Transport {
+
+  /**
+   * Writes {@code RPUSH key values...}; it may be buffered until {@link #flush()}.
+   */
+  void rpush(byte[] key, byte[][] values) throws IOException;
+
+  /**
+   * Writes one XADD per value, each with its own reply.
+   */
+  void xadd(XAddCommandWriter writer, byte[] key, byte[][] values) throws IOException;
+
+  /**
+   * Puts every command written so far on the wire.
+   */
+  void flush() throws IOException;
+
+  /**
+   * @param block whether to wait for the next reply to arrive
+   * @return the next reply, an Exception if it is an error reply, or null if none has arrived
+   * and block is false
+   */
+  Object readReply(boolean block) throws IOException;
+
+  /**
+   * @param broken whether the link failed and must not be reused
+   */
+  void close(boolean broken);
+}
@@ -0,0 +1,314 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import java.util.Arrays;
+
+/**
+ * A reusable buffer that JSON-escapes strings straight into UTF-8 bytes.
+ *
+ * <p>Escaping matches what {@link RedisLogstashAppender} has always produced: quotes are escaped
+ * once, while backslashes and control characters are escaped twice so they survive logstash's
+ * own unescaping.</p>
+ *
+ * <p>Instances are not thread-safe; each thread that encodes events keeps its own.</p>
+ */
+final class Utf8JsonWriter {
+
+  private static final byte[][] CONTROL_ESCAPES = new byte[0x20][];
+  private static final byte[] BACKSLASH_ESCAPE = ascii("\\\\\\\\");
+  private static final byte[] QUOTE_ESCAPE = ascii("\\\"");
+
+  static {
+    for (int ch = 0; ch < CONTROL_ESCAPES.length; ch++) {
+      String escape;
+      switch (ch) {
+        case '\b':
+          escape = "\\\\b";
+          break;
+        case '\t':
+          escape = "\\\\t";
+          break;
+        case '\n':
+          escape = "\\\\n";
+          break;
+        case '\f':
+          escape = "\\\\f";
+          break;
+        case '\r':
+          escape = "\\\\r";
+          break;
+        default:
+          escape = String.format("\\\\u%04X", ch);
+      }
+      CONTROL_ESCAPES[ch] = ascii(escape);
+    }
+  }
+
+  private static final byte[] HEX_DIGITS = ascii("0123456789abcdef");
+
+  // The longest encoding of one char: a doubly escaped control character.
+  private static final int MAX_BYTES_PER_CHAR = 7;
+
+  private final int retainedCapacity;
+  private byte[] buf;
+  private int size;
+
+  Utf8JsonWriter(int initialCapacity, int retainedCapacity) {
+    this.buf = new byte[initialCapacity];
+    this.retainedCapacity = Math.max(initialCapacity, retainedCapacity);
+  }
+
+  /**
+   * Converts an ASCII literal to bytes once so it can be written with {@link #write(byte[])}.
+   */
+  static byte[] ascii(String literal) {
+    byte[] bytes = new byte[literal.length()];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) literal.charAt(i);
+    }
+    return bytes;
+  }
+
+  /**
+   * Escapes and encodes a string once so it can be written with {@link #write(byte[])}.
+   */
+  static byte[] escaped(String value) {
+    Utf8JsonWriter writer = new Utf8JsonWriter(value.length() + 16, 0);
+    writer.writeEscaped(value);
+    return writer.toByteArray();
+  }
+
+  /**
+   * Empties the buffer, releasing it if an oversized event made it grow past the retained
+   * capacity.
+   */
+  void reset() {
+    if (buf.length > retainedCapacity) {
+      buf = new byte[retainedCapacity];
+    }
+    size = 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Drops everything written after the first {@code size} bytes.
+   */
+  void rewind(int size) {
+    this.size = size;
+  }
+
+  byte[] toByteArray() {
+    return Arrays.copyOf(buf, size);
+  }
+
+  void write(byte[] bytes) {
+    ensureCapacity(size + bytes.length);
+    System.arraycopy(bytes, 0, buf, size, bytes.length);
+    size += bytes.length;
+  }
+
+  void write(byte b) {
+    ensureCapacity(size + 1);
+    buf[size++] = b;
+  }
+
+  /**
+   * Writes a string known to contain only ASCII characters that need no escaping.
+   */
+  void writeAscii(String value) {
+    int length = value.length();
+    ensureCapacity(size + length);
+    for (int i = 0; i < length; i++) {
+      buf[size++] = (byte) value.charAt(i);
+    }
+  }
+
+  /**
+   * Writes all 16 lowercase hex digits of a value.
+   */
+  void writeHex(long value) {
+    ensureCapacity(size + 16);
+    for (int i = size + 15; i >= size; i--) {
+      buf[i] = HEX_DIGITS[(int) value & 0xf];
+      value >>>= 4;
+    }
+    size += 16;
+  }
+
+  /**
+   * Writes the digits of a non-negative number, left-padded with zeros to {@code width}.
+   */
+  void writeDigits(int value, int width) {
+    ensureCapacity(size + width);
+    for (int i = size + width - 1; i >= size; i--) {
+      buf[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    size += width;
+  }
+
+  void writeEscaped(String value) {
+    writeEscaped(value, 0, value.length());
+  }
+
+  @SuppressWarnings("ImplicitNumericConversion")
+  void writeEscaped(String value, int start, int end) {
+    int i = start;
+    while (i < end) {
+      // Fast path: copy a run of ASCII that needs no escaping into the space already available.
+      byte[] buf = this.buf;
+      int size = this.size;
+      int limit = Math.min(end, i + buf.length - size);
+      while (i < limit) {
+        char ch = value.charAt(i);
+        if (ch < 0x20 || ch >= 0x80 || ch == '"' || ch == '\\') {
+          break;
+        }
+        buf[size++] = (byte) ch;
+        i++;
+      }
+      this.size = size;
+      if (i == end) {
+        return;
+      }
+      ensureCapacity(size + MAX_BYTES_PER_CHAR);
+      char ch = value.charAt(i++);
+      if (ch < 0x80) {
+        if (ch == '"') {
+          write(QUOTE_ESCAPE);
+        } else if (ch == '\\') {
+          write(BACKSLASH_ESCAPE);
+        } else if (ch < 0x20) {
+          write(CONTROL_ESCAPES[ch]);
+        } else {
+          this.buf[this.size++] = (byte) ch;
+        }
+      } else {
+        i += writeNonAscii(value, ch, i, end);
+      }
+    }
+  }
+
+  /**
+   * Like {@link #writeEscaped(String, int, int)}, but stops before the first character that
+   * would take the buffer past {@code limit} bytes.  Escapes and characters are never split.
+   *
+   * @return the index of the first character not written; {@code end} if all of them were
+   */
+  int writeEscaped(String value, int start, int end, int limit) {
+    int i = start;
+    while (i < end) {
+      // As many characters as fit even if every one is fully escaped take the fast path
+      int fitting = (limit - size) / MAX_BYTES_PER_CHAR;
+      if (fitting > 0) {
+        int runEnd = end - i > fitting ? i + fitting : end;
+        if (runEnd < end && Character.isHighSurrogate(value.charAt(runEnd - 1))) {
+          runEnd--;
+        }
+        if (runEnd > i) {
+          writeEscaped(value, i, runEnd);
+          i = runEnd;
+          continue;
+        }
+      }
+      // Close to the limit, one character or surrogate pair at a time
+      int chars = Character.isHighSurrogate(value.charAt(i)) && i + 1 < end
+                  && Character.isLowSurrogate(value.charAt(i + 1)) ? 2 : 1;
+      if (size + escapedLength(value, i, i + chars) > limit) {
+        return i;
+      }
+      writeEscaped(value, i, i + chars);
+      i += chars;
+    }
+    return end;
+  }
+
+  /**
+   * @return the number of bytes {@link #writeEscaped(String, int, int)} writes for the range
+   */
+  static int escapedLength(String value, int start, int end) {
+    int length = 0;
+    for (int i = start; i < end; i++) {
+      char ch = value.charAt(i);
+      if (ch < 0x80) {
+        if (ch == '"') {
+          length += QUOTE_ESCAPE.length;
+        } else if (ch == '\\') {
+          length += BACKSLASH_ESCAPE.length;
+        } else if (ch < 0x20) {
+          length += CONTROL_ESCAPES[ch].length;
+        } else {
+          length++;
+        }
+      } else if (ch < 0x800) {
+        length += 2;
+      } else if (ch < Character.MIN_SURROGATE || ch > Character.MAX_SURROGATE) {
+        length += 3;
+      } else if (Character.isHighSurrogate(ch) && i + 1 < end
+                 && Character.isLowSurrogate(value.charAt(i + 1))) {
+        length += 4;
+        i++;
+      } else {
+        length++;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Encodes one non-ASCII character, or a surrogate pair starting with it.  The caller has
+   * already ensured there is room for {@link #MAX_BYTES_PER_CHAR} bytes.
+   *
+   * @return the number of characters consumed after {@code ch}: 1 for a surrogate pair, else 0
+   */
+  @SuppressWarnings("ImplicitNumericConversion")
+  private int writeNonAscii(String value, char ch, int next, int end) {
+    byte[] buf = this.buf;
+    int size = this.size;
+    int consumed = 0;
+    if (ch < 0x800) {
+      buf[size++] = (byte) (0xC0 | (ch >> 6));
+      buf[size++] = (byte) (0x80 | (ch & 0x3F));
+    } else if (ch < Character.MIN_SURROGATE || ch > Character.MAX_SURROGATE) {
+      buf[size++] = (byte) (0xE0 | (ch >> 12));
+      buf[size++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+      buf[size++] = (byte) (0x80 | (ch & 0x3F));
+    } else if (Character.isHighSurrogate(ch) && next < end
+               && Character.isLowSurrogate(value.charAt(next))) {
+      int codePoint = Character.toCodePoint(ch, value.charAt(next));
+      buf[size++] = (byte) (0xF0 | (codePoint >> 18));
+      buf[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+      buf[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+      buf[size++] = (byte) (0x80 | (codePoint & 0x3F));
+      consumed = 1;
+    } else {
+      // Unpaired surrogate; String.getBytes("UTF-8") substitutes the same.
+      buf[size++] = '?';
+    }
+    this.size = size;
+    return consumed;
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+    }
+  }
+}
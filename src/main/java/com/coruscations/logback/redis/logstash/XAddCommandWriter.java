@@ -0,0 +1,128 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Encodes a batch of events as pipelined {@code XADD key MAXLEN ~ n * message <event>} commands.
+ * Jedis predates streams, so the commands are written straight to the connection's socket in one
+ * write per batch, and each reply is read back with {@code Client.getOne()}.
+ * <p/>
+ * Approximate trimming lets Redis drop whole internal nodes at a time, so it stays cheap no
+ * matter how far behind the consumers are.
+ */
+final class XAddCommandWriter {
+
+  static final String FIELD = "message";
+
+  private final long maxLength;
+  // The command up to the event, for the key last written to
+  private byte[] prefixKey;
+  private byte[] prefix;
+  private byte[] buffer = new byte[8192];
+
+  /**
+   * @param maxLength the length to trim the stream to, or 0 to never trim it
+   */
+  XAddCommandWriter(long maxLength) {
+    this.maxLength = maxLength;
+  }
+
+  private static byte[] prefix(byte[] key, long maxLength) {
+    StringBuilder prefix = new StringBuilder();
+    prefix.append(maxLength > 0 ? "*8\r\n" : "*5\r\n");
+    appendArgument(prefix, "XADD");
+    prefix.append('$').append(key.length).append("\r\n")
+        .append(SafeEncoder.encode(key)).append("\r\n");
+    if (maxLength > 0) {
+      appendArgument(prefix, "MAXLEN");
+      appendArgument(prefix, "~");
+      appendArgument(prefix, Long.toString(maxLength));
+    }
+    appendArgument(prefix, "*");
+    appendArgument(prefix, FIELD);
+    return SafeEncoder.encode(prefix.toString());
+  }
+
+  /**
+   * Writes one XADD to {@code key} for each of the first {@code count} values.
+   */
+  void write(OutputStream out, byte[] key, byte[][] values, int count) throws IOException {
+    int length = encode(key, values, count);
+    out.write(buffer, 0, length);
+    out.flush();
+  }
+
+  /**
+   * Encodes one XADD to {@code key} for each of the first {@code count} values into the
+   * {@link #getBuffer() buffer}, which the next call reuses.
+   *
+   * @return the length of the commands
+   */
+  int encode(byte[] key, byte[][] values, int count) {
+    if (key != prefixKey) {
+      prefix = prefix(key, maxLength);
+      prefixKey = key;
+    }
+    int size = 0;
+    for (int i = 0; i < count; i++) {
+      // $<length>\r\n<value>\r\n, with at most ten digits of length
+      size += prefix.length + values[i].length + 15;
+    }
+    if (buffer.length < size) {
+      buffer = new byte[Math.max(size, buffer.length * 2)];
+    }
+    int position = 0;
+    for (int i = 0; i < count; i++) {
+      byte[] value = values[i];
+      System.arraycopy(prefix, 0, buffer, position, prefix.length);
+      position += prefix.length;
+      buffer[position++] = '$';
+      position = writeDecimal(value.length, position);
+      buffer[position++] = '\r';
+      buffer[position++] = '\n';
+      System.arraycopy(value, 0, buffer, position, value.length);
+      position += value.length;
+      buffer[position++] = '\r';
+      buffer[position++] = '\n';
+    }
+    return position;
+  }
+
+  byte[] getBuffer() {
+    return buffer;
+  }
+
+  private int writeDecimal(int value, int position) {
+    int digits = 1;
+    for (int remaining = value / 10; remaining > 0; remaining /= 10) {
+      digits++;
+    }
+    for (int i = position + digits - 1; i >= position; i--) {
+      buffer[i] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    return position + digits;
+  }
+
+  private static void appendArgument(StringBuilder command, String argument) {
+    command.append('$').append(argument.length()).append("\r\n").append(argument).append("\r\n");
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpensAfterThreshold() {
+    CircuitBreaker breaker = new CircuitBreaker(3, 60000, 60000);
+    assertFalse(breaker.recordFailure());
+    assertFalse(breaker.recordFailure());
+    assertTrue(breaker.allowRequest());
+    assertTrue(breaker.recordFailure());
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse(breaker.allowRequest());
+  }
+
+  @Test
+  public void testSuccessResetsFailureCount() {
+    CircuitBreaker breaker = new CircuitBreaker(2, 60000, 60000);
+    breaker.recordFailure();
+    assertFalse(breaker.recordSuccess());
+    assertFalse(breaker.recordFailure());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testSingleProbeAfterBackoff() throws InterruptedException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 20, 1000);
+    breaker.recordFailure();
+    assertFalse(breaker.allowRequest());
+    Thread.sleep(40);
+    assertTrue(breaker.allowRequest());
+    assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    assertFalse("Only one probe at a time", breaker.allowRequest());
+    assertTrue(breaker.recordSuccess());
+    assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue(breaker.allowRequest());
+  }
+
+  @Test
+  public void testFailedProbeDoublesBackoff() throws InterruptedException {
+    CircuitBreaker breaker = new CircuitBreaker(1, 20, 50);
+    breaker.recordFailure();
+    assertEquals(20, breaker.getBackoffMillis());
+    Thread.sleep(40);
+    assertTrue(breaker.allowRequest());
+    breaker.recordFailure();
+    assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    assertEquals(40, breaker.getBackoffMillis());
+    Thread.sleep(60);
+    assertTrue(breaker.allowRequest());
+    breaker.recordFailure();
+    assertEquals("Capped at the maximum", 50, breaker.getBackoffMillis());
+    assertEquals(3, breaker.getOpenedCount());
+  }
+}
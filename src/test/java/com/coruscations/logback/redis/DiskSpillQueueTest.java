@@ -0,0 +1,155 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class DiskSpillQueueTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testOfferPeekRemove() throws IOException {
+    DiskSpillQueue queue = new DiskSpillQueue(folder.getRoot(), 64, 1024);
+    assertEquals(3, queue.offer(records("one", "two", "three"), 0, 3));
+    assertEquals(3, queue.size());
+
+    byte[][] peeked = new byte[2][];
+    assertEquals(2, queue.peek(peeked, 2));
+    assertArrayEquals(records("one", "two"), peeked);
+    queue.remove(2);
+    assertEquals(1, queue.size());
+
+    assertEquals(1, queue.peek(peeked, 2));
+    assertArrayEquals("three".getBytes("UTF-8"), peeked[0]);
+    queue.remove(1);
+    assertEquals(0, queue.size());
+    assertEquals(0, queue.peek(peeked, 2));
+    queue.close();
+  }
+
+  @Test
+  public void testRollsOverSegments() throws IOException {
+    // Each record takes 4 + 10 bytes, so a 32 byte segment holds two.
+    DiskSpillQueue queue = new DiskSpillQueue(folder.getRoot(), 32, 1024);
+    byte[][] records = records("0123456789", "1123456789", "2123456789", "3123456789",
+                               "4123456789");
+    assertEquals(5, queue.offer(records, 0, 5));
+    assertEquals(3, segmentFiles());
+
+    byte[][] peeked = new byte[5][];
+    assertEquals(5, queue.peek(peeked, 5));
+    assertArrayEquals(records, peeked);
+    queue.remove(4);
+    assertEquals(1, segmentFiles());
+    queue.close();
+  }
+
+  @Test
+  public void testEvictsOldestSegmentOverQuota() throws IOException {
+    DiskSpillQueue queue = new DiskSpillQueue(folder.getRoot(), 32, 64);
+    assertEquals(6, queue.offer(records("0123456789", "1123456789", "2123456789",
+                                        "3123456789", "4123456789", "5123456789"), 0, 6));
+    // Two segments of two records each fit in the quota.
+    assertEquals(2, queue.getEvictedCount());
+    assertEquals(4, queue.size());
+
+    byte[][] peeked = new byte[4][];
+    assertEquals(4, queue.peek(peeked, 4));
+    assertArrayEquals(records("2123456789", "3123456789", "4123456789", "5123456789"), peeked);
+    queue.close();
+  }
+
+  @Test
+  public void testShrinksSegmentsToFitTheQuota() throws IOException {
+    // Two 32 byte segments rather than a single 1024 byte one
+    DiskSpillQueue queue = new DiskSpillQueue(folder.getRoot(), 1024, 64);
+    assertEquals(6, queue.offer(records("0123456789", "1123456789", "2123456789",
+                                        "3123456789", "4123456789", "5123456789"), 0, 6));
+    assertEquals(2, queue.getEvictedCount());
+    long bytes = 0;
+    for (File file : folder.getRoot().listFiles()) {
+      bytes += file.length();
+    }
+    assertEquals(64, bytes);
+    queue.close();
+  }
+
+  @Test
+  public void testEvictionBetweenPeekAndRemove() throws IOException {
+    DiskSpillQueue queue = new DiskSpillQueue(folder.getRoot(), 32, 64);
+    queue.offer(records("0123456789", "1123456789", "2123456789"), 0, 3);
+    byte[][] peeked = new byte[2][];
+    assertEquals(2, queue.peek(peeked, 2));
+    // Evicts the segment holding the two peeked records
+    queue.offer(records("3123456789", "4123456789"), 0, 2);
+    queue.remove(2);
+    assertEquals(3, queue.size());
+    assertEquals(2, queue.peek(peeked, 2));
+    assertArrayEquals(records("2123456789", "3123456789"), peeked);
+    queue.close();
+  }
+
+  @Test
+  public void testRejectsOversizedRecords() throws IOException {
+    DiskSpillQueue queue = new DiskSpillQueue(folder.getRoot(), 16, 1024);
+    assertEquals(1, queue.offer(records("this one is too long", "short"), 0, 2));
+    assertEquals(1, queue.getRejectedCount());
+    queue.close();
+  }
+
+  @Test
+  public void testRecoversAfterReopen() throws IOException {
+    DiskSpillQueue queue = new DiskSpillQueue(folder.getRoot(), 32, 1024);
+    queue.offer(records("0123456789", "1123456789", "2123456789"), 0, 3);
+    byte[][] peeked = new byte[1][];
+    queue.peek(peeked, 1);
+    queue.remove(1);
+    queue.close();
+
+    queue = new DiskSpillQueue(folder.getRoot(), 32, 1024);
+    assertEquals(2, queue.size());
+    peeked = new byte[3][];
+    assertEquals(2, queue.peek(peeked, 3));
+    assertArrayEquals("1123456789".getBytes("UTF-8"), peeked[0]);
+    assertArrayEquals("2123456789".getBytes("UTF-8"), peeked[1]);
+    queue.offer(records("3123456789"), 0, 1);
+    assertEquals(3, queue.size());
+    queue.close();
+  }
+
+  private int segmentFiles() {
+    File[] files = folder.getRoot().listFiles();
+    return files == null ? 0 : files.length;
+  }
+
+  private static byte[][] records(String... values) throws IOException {
+    byte[][] records = new byte[values.length][];
+    for (int i = 0; i < values.length; i++) {
+      records[i] = values[i].getBytes("UTF-8");
+    }
+    return records;
+  }
+}
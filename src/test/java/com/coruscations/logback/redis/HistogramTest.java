@@ -0,0 +1,65 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+  @Test
+  public void testBucketsCoverEveryValue() {
+    long previousUpper = -1;
+    for (int bucket = 0; bucket < Histogram.bucket(Long.MAX_VALUE) + 1; bucket++) {
+      long upper = Histogram.upperBound(bucket);
+      assertEquals(bucket, Histogram.bucket(previousUpper + 1));
+      assertEquals(bucket, Histogram.bucket(upper));
+      previousUpper = upper;
+    }
+    assertEquals(Long.MAX_VALUE, previousUpper);
+  }
+
+  @Test
+  public void testPercentilesAreWithinAQuarter() {
+    Histogram histogram = new Histogram();
+    for (long value = 1; value <= 10000; value++) {
+      histogram.record(value);
+    }
+    assertEquals(10000, histogram.getCount());
+    assertEquals(10000, histogram.getMax());
+    assertEquals(5000.5, histogram.getMean(), 0.001);
+    assertWithinAQuarter(5000, histogram.getPercentile(0.5));
+    assertWithinAQuarter(9900, histogram.getPercentile(0.99));
+    assertEquals(10000, histogram.getPercentile(1));
+  }
+
+  @Test
+  public void testReset() {
+    Histogram histogram = new Histogram();
+    histogram.record(42);
+    histogram.reset();
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getPercentile(0.99));
+  }
+
+  private static void assertWithinAQuarter(long expected, long actual) {
+    assertTrue(actual + " is not within 25% of " + expected,
+               actual >= expected && actual <= expected * 5 / 4);
+  }
+}
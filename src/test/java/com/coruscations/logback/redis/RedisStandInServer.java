@@ -0,0 +1,557 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A small in-process stand-in for Redis that speaks just enough RESP for the appenders: PING,
+ * AUTH, SELECT, RPUSH, LLEN, XADD, XLEN, DEL and QUIT.  Pushed values are counted per key rather
+ * than kept, so it can absorb benchmark and load test volumes without growing.
+ * <p/>
+ * XADD supports {@code MAXLEN [=|~] n} trimming and only {@code *} IDs.  Like Redis, approximate
+ * trimming removes whole nodes of {@value #STREAM_NODE_ENTRIES} entries, so a stream may run up
+ * to that many entries over its maximum length.
+ * <p/>
+ * Faults can be injected while it runs: latency before replying to a command, dropped and refused
+ * connections, a throttled read rate that pushes back on clients through TCP, a memory cap
+ * beyond which RPUSH and XADD are rejected with the same OOM error Redis gives, and the rejection
+ * of a single command.
+ */
+public class RedisStandInServer {
+
+  private static final byte[] OK = "+OK\r\n".getBytes();
+  private static final byte[] PONG = "+PONG\r\n".getBytes();
+  private static final byte[] OOM =
+      "-OOM command not allowed when used memory > 'maxmemory'.\r\n".getBytes();
+  private static final byte[] WRONG_TYPE =
+      "-WRONGTYPE Operation against a key holding the wrong kind of value\r\n".getBytes();
+
+  // Redis's default stream-node-max-entries
+  static final int STREAM_NODE_ENTRIES = 100;
+
+  private final ServerSocket serverSocket;
+  private final List<Socket> clients = Collections.synchronizedList(new ArrayList<Socket>());
+  private final Map<String, KeyStats> keys = new HashMap<String, KeyStats>();
+  private final Map<String, Long> latencyNanos = new ConcurrentHashMap<String, Long>();
+  private final AtomicLong pushedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong usedMemory = new AtomicLong();
+  private final AtomicLong acceptedConnections = new AtomicLong();
+  private final ConcurrentMap<String, AtomicLong> commandCounts =
+      new ConcurrentHashMap<String, AtomicLong>();
+  private final AtomicLong largestPushBytes = new AtomicLong();
+  private volatile boolean running = true;
+  private volatile boolean refusingConnections;
+  private volatile long readBytesPerSecond;
+  private volatile long maxMemoryBytes;
+  private volatile String rejectNext;
+
+  public RedisStandInServer() throws IOException {
+    this(0);
+  }
+
+  public RedisStandInServer(int port) throws IOException {
+    serverSocket = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        accept();
+      }
+    }, "redis-stand-in-" + getPort());
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Delays every reply to {@code command} by {@code millis}; 0 removes the delay.
+   */
+  public void setLatency(String command, long millis) {
+    if (millis <= 0) {
+      latencyNanos.remove(command.toUpperCase());
+    } else {
+      latencyNanos.put(command.toUpperCase(), TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+  }
+
+  /**
+   * Limits how fast each connection is read, so a client writing faster fills its socket buffers
+   * and blocks; 0 removes the limit.
+   */
+  public void setReadBytesPerSecond(long readBytesPerSecond) {
+    this.readBytesPerSecond = readBytesPerSecond;
+  }
+
+  /**
+   * Rejects RPUSH with an OOM error while the pushed values take more than this many bytes; 0
+   * removes the cap.  DEL frees the memory of the lists it deletes.
+   */
+  public void setMaxMemoryBytes(long maxMemoryBytes) {
+    this.maxMemoryBytes = maxMemoryBytes;
+  }
+
+  /**
+   * Rejects the next {@code command}, on any connection, with an error reply.
+   */
+  public void rejectNext(String command) {
+    rejectNext = command.toUpperCase();
+  }
+
+  /**
+   * While set, new connections are accepted and immediately closed.
+   */
+  public void setRefusingConnections(boolean refusingConnections) {
+    this.refusingConnections = refusingConnections;
+  }
+
+  /**
+   * Closes every open client connection without replying to what was in flight.
+   */
+  public void dropConnections() {
+    synchronized (clients) {
+      for (Socket client : clients) {
+        closeQuietly(client);
+      }
+      clients.clear();
+    }
+  }
+
+  /**
+   * The total number of values pushed onto any list or added to any stream since the server
+   * started, including stream entries since trimmed.
+   */
+  public long getPushedCount() {
+    return pushedCount.get();
+  }
+
+  /**
+   * The number of RPUSH and XADD commands rejected because of the memory cap or on request.
+   */
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  public long getUsedMemory() {
+    return usedMemory.get();
+  }
+
+  public long getAcceptedConnections() {
+    return acceptedConnections.get();
+  }
+
+  /**
+   * The number of times {@code command} has been received, whatever the reply.
+   */
+  public long getCommandCount(String command) {
+    AtomicLong count = commandCounts.get(command.toUpperCase());
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * The most value bytes any single RPUSH has carried.
+   */
+  public long getLargestPushBytes() {
+    return largestPushBytes.get();
+  }
+
+  public long getLength(String key) {
+    synchronized (keys) {
+      KeyStats stats = keys.get(key);
+      return stats == null ? 0 : stats.length;
+    }
+  }
+
+  /**
+   * Blocks until at least {@code count} values have been pushed, returning false on timeout.
+   */
+  public boolean awaitPushedCount(long count, long timeoutMillis) {
+    long deadline = System.currentTimeMillis() + timeoutMillis;
+    while (pushedCount.get() < count) {
+      if (System.currentTimeMillis() >= deadline) {
+        return false;
+      }
+      LockSupport.parkNanos(10000);
+    }
+    return true;
+  }
+
+  public void stop() {
+    running = false;
+    closeQuietly(serverSocket);
+    dropConnections();
+  }
+
+  private void accept() {
+    while (running) {
+      final Socket client;
+      try {
+        client = serverSocket.accept();
+        client.setTcpNoDelay(true);
+      } catch (IOException e) {
+        return;
+      }
+      if (refusingConnections) {
+        closeQuietly(client);
+        continue;
+      }
+      acceptedConnections.incrementAndGet();
+      clients.add(client);
+      Thread handler = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            serve(client);
+          } catch (IOException e) {
+            // The client went away or the connection was dropped
+          } finally {
+            clients.remove(client);
+            closeQuietly(client);
+          }
+        }
+      }, "redis-stand-in-client-" + client.getPort());
+      handler.setDaemon(true);
+      handler.start();
+    }
+  }
+
+  private void serve(Socket client) throws IOException {
+    InputStream in = new BufferedInputStream(new ThrottledInputStream(client.getInputStream()),
+                                             65536);
+    OutputStream out = new BufferedOutputStream(client.getOutputStream(), 8192);
+    while (running) {
+      List<byte[]> command = readCommand(in);
+      if (command == null) {
+        return;
+      }
+      if (!execute(command, out)) {
+        out.flush();
+        return;
+      }
+      // Only flush once the client has nothing else pipelined, like a real server would
+      if (in.available() == 0) {
+        out.flush();
+      }
+    }
+  }
+
+  private boolean execute(List<byte[]> command, OutputStream out) throws IOException {
+    String name = new String(command.get(0), "US-ASCII").toUpperCase();
+    AtomicLong count = commandCounts.get(name);
+    if (count == null) {
+      commandCounts.putIfAbsent(name, new AtomicLong());
+      count = commandCounts.get(name);
+    }
+    count.incrementAndGet();
+    Long latency = latencyNanos.get(name);
+    if (latency != null) {
+      out.flush();
+      LockSupport.parkNanos(latency);
+    }
+    if (name.equals(rejectNext)) {
+      rejectNext = null;
+      rejectedCount.incrementAndGet();
+      out.write(("-ERR rejected " + name + " on request\r\n").getBytes("US-ASCII"));
+      return true;
+    }
+    if ("RPUSH".equals(name)) {
+      rpush(command, out);
+    } else if ("XADD".equals(name)) {
+      xadd(command, out);
+    } else if ("LLEN".equals(name) || "XLEN".equals(name)) {
+      length(command, "XLEN".equals(name), out);
+    } else if ("DEL".equals(name)) {
+      long deleted = 0;
+      synchronized (keys) {
+        for (int i = 1; i < command.size(); i++) {
+          KeyStats stats = keys.remove(new String(command.get(i), "UTF-8"));
+          if (stats != null) {
+            usedMemory.addAndGet(-stats.bytes);
+            deleted++;
+          }
+        }
+      }
+      writeInteger(out, deleted);
+    } else if ("PING".equals(name)) {
+      out.write(PONG);
+    } else if ("QUIT".equals(name)) {
+      out.write(OK);
+      return false;
+    } else if ("AUTH".equals(name) || "SELECT".equals(name)) {
+      out.write(OK);
+    } else {
+      out.write(("-ERR unknown command '" + name + "'\r\n").getBytes("UTF-8"));
+    }
+    return true;
+  }
+
+  private void rpush(List<byte[]> command, OutputStream out) throws IOException {
+    if (overMemoryCap(out)) {
+      return;
+    }
+    int values = command.size() - 2;
+    long bytes = 0;
+    for (int i = 2; i < command.size(); i++) {
+      bytes += command.get(i).length;
+    }
+    long largest = largestPushBytes.get();
+    while (bytes > largest && !largestPushBytes.compareAndSet(largest, bytes)) {
+      largest = largestPushBytes.get();
+    }
+    long length;
+    synchronized (keys) {
+      KeyStats stats = stats(new String(command.get(1), "UTF-8"), false);
+      if (stats == null) {
+        out.write(WRONG_TYPE);
+        return;
+      }
+      stats.length += values;
+      stats.bytes += bytes;
+      length = stats.length;
+    }
+    usedMemory.addAndGet(bytes);
+    pushedCount.addAndGet(values);
+    writeInteger(out, length);
+  }
+
+  private void xadd(List<byte[]> command, OutputStream out) throws IOException {
+    int i = 2;
+    long maxLength = -1;
+    boolean approximate = false;
+    if (i < command.size() && "MAXLEN".equalsIgnoreCase(new String(command.get(i), "US-ASCII"))) {
+      String threshold = new String(command.get(++i), "US-ASCII");
+      if ("~".equals(threshold) || "=".equals(threshold)) {
+        approximate = "~".equals(threshold);
+        threshold = new String(command.get(++i), "US-ASCII");
+      }
+      maxLength = Long.parseLong(threshold);
+      i++;
+    }
+    if (i >= command.size() || !"*".equals(new String(command.get(i), "US-ASCII"))) {
+      out.write("-ERR the stand-in only supports XADD key [MAXLEN [=|~] n] * ...\r\n"
+                    .getBytes("US-ASCII"));
+      return;
+    }
+    int fields = command.size() - i - 1;
+    if (fields == 0 || fields % 2 != 0) {
+      out.write("-ERR wrong number of arguments for 'xadd' command\r\n".getBytes("US-ASCII"));
+      return;
+    }
+    if (overMemoryCap(out)) {
+      return;
+    }
+    long bytes = 0;
+    for (i++; i < command.size(); i++) {
+      bytes += command.get(i).length;
+    }
+    String id;
+    long freed = 0;
+    synchronized (keys) {
+      KeyStats stats = stats(new String(command.get(1), "UTF-8"), true);
+      if (stats == null) {
+        out.write(WRONG_TYPE);
+        return;
+      }
+      long now = System.currentTimeMillis();
+      stats.lastIdSequence = now > stats.lastIdMillis ? 0 : stats.lastIdSequence + 1;
+      stats.lastIdMillis = Math.max(now, stats.lastIdMillis);
+      id = stats.lastIdMillis + "-" + stats.lastIdSequence;
+      stats.length++;
+      stats.bytes += bytes;
+      if (maxLength >= 0 && stats.length > maxLength) {
+        long excess = stats.length - maxLength;
+        long trimmed = approximate ? excess - excess % STREAM_NODE_ENTRIES : excess;
+        // Entries are not kept, so the memory freed is their average size
+        freed = stats.bytes * trimmed / stats.length;
+        stats.length -= trimmed;
+        stats.bytes -= freed;
+      }
+    }
+    usedMemory.addAndGet(bytes - freed);
+    pushedCount.incrementAndGet();
+    byte[] reply = id.getBytes("US-ASCII");
+    out.write('$');
+    out.write(Integer.toString(reply.length).getBytes("US-ASCII"));
+    out.write('\r');
+    out.write('\n');
+    out.write(reply);
+    out.write('\r');
+    out.write('\n');
+  }
+
+  private void length(List<byte[]> command, boolean stream, OutputStream out)
+      throws IOException {
+    synchronized (keys) {
+      KeyStats stats = keys.get(new String(command.get(1), "UTF-8"));
+      if (stats != null && stats.stream != stream) {
+        out.write(WRONG_TYPE);
+      } else {
+        writeInteger(out, stats == null ? 0 : stats.length);
+      }
+    }
+  }
+
+  private boolean overMemoryCap(OutputStream out) throws IOException {
+    long maxMemoryBytes = this.maxMemoryBytes;
+    if (maxMemoryBytes > 0 && usedMemory.get() > maxMemoryBytes) {
+      rejectedCount.incrementAndGet();
+      out.write(OOM);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Gets or creates a key's stats; must hold the lock on {@code keys}.
+   *
+   * @return null if the key holds the other type
+   */
+  private KeyStats stats(String key, boolean stream) {
+    KeyStats stats = keys.get(key);
+    if (stats == null) {
+      stats = new KeyStats();
+      stats.stream = stream;
+      keys.put(key, stats);
+    }
+    return stats.stream == stream ? stats : null;
+  }
+
+  private static List<byte[]> readCommand(InputStream in) throws IOException {
+    int type = in.read();
+    if (type == -1) {
+      return null;
+    }
+    if (type != '*') {
+      throw new IOException("Expected a multi-bulk command but got '" + (char) type + "'");
+    }
+    int count = (int) readLong(in);
+    List<byte[]> command = new ArrayList<byte[]>(count);
+    for (int i = 0; i < count; i++) {
+      if (in.read() != '$') {
+        throw new IOException("Expected a bulk argument");
+      }
+      byte[] argument = new byte[(int) readLong(in)];
+      int read = 0;
+      while (read < argument.length) {
+        int n = in.read(argument, read, argument.length - read);
+        if (n == -1) {
+          throw new EOFException();
+        }
+        read += n;
+      }
+      in.read(); // \r
+      in.read(); // \n
+      command.add(argument);
+    }
+    return command;
+  }
+
+  private static long readLong(InputStream in) throws IOException {
+    long value = 0;
+    boolean negative = false;
+    int b;
+    while ((b = in.read()) != '\r') {
+      if (b == -1) {
+        throw new EOFException();
+      } else if (b == '-') {
+        negative = true;
+      } else {
+        value = value * 10 + (b - '0');
+      }
+    }
+    in.read(); // \n
+    return negative ? -value : value;
+  }
+
+  private static void writeInteger(OutputStream out, long value) throws IOException {
+    out.write(':');
+    out.write(Long.toString(value).getBytes("US-ASCII"));
+    out.write('\r');
+    out.write('\n');
+  }
+
+  private static void closeQuietly(ServerSocket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Ignore; we are shutting down
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      // Ignore; we are shutting down
+    }
+  }
+
+  private static class KeyStats {
+
+    private boolean stream;
+    private long length;
+    private long bytes;
+    private long lastIdMillis;
+    private long lastIdSequence;
+  }
+
+  /**
+   * Reads in small chunks, pausing after each to stay under the configured read rate.
+   */
+  private class ThrottledInputStream extends FilterInputStream {
+
+    private static final int CHUNK_BYTES = 1024;
+
+    private ThrottledInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long readBytesPerSecond = RedisStandInServer.this.readBytesPerSecond;
+      if (readBytesPerSecond <= 0) {
+        return super.read(b, off, len);
+      }
+      int read = super.read(b, off, Math.min(len, CHUNK_BYTES));
+      if (read > 0) {
+        LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(read) / readBytesPerSecond);
+      }
+      return read;
+    }
+  }
+}
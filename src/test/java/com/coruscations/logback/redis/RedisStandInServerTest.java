@@ -0,0 +1,184 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.List;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedisStandInServerTest {
+
+  private RedisStandInServer server;
+  private Jedis jedis;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new RedisStandInServer();
+    jedis = new Jedis("127.0.0.1", server.getPort(), 2000);
+  }
+
+  @After
+  public void tearDown() {
+    server.stop();
+  }
+
+  @Test
+  public void testCommands() {
+    assertEquals("OK", jedis.auth("secret"));
+    assertEquals("OK", jedis.select(3));
+    assertEquals("PONG", jedis.ping());
+    assertEquals(Long.valueOf(2), jedis.rpush("key", "one", "two"));
+    assertEquals(Long.valueOf(3), jedis.rpush("key", "three"));
+    assertEquals(Long.valueOf(3), jedis.llen("key"));
+    assertEquals(3, server.getPushedCount());
+    assertEquals(11, server.getUsedMemory());
+    assertEquals(Long.valueOf(1), jedis.del("key"));
+    assertEquals(Long.valueOf(0), jedis.llen("key"));
+    assertEquals(0, server.getUsedMemory());
+  }
+
+  @Test
+  public void testPipelinedRepliesArriveInOrder() {
+    for (int i = 0; i < 100; i++) {
+      jedis.getClient().rpush("key", "value");
+    }
+    List<Object> replies = jedis.getClient().getAll();
+    assertEquals(100, replies.size());
+    assertEquals(Long.valueOf(100), replies.get(99));
+  }
+
+  @Test
+  public void testMemoryCap() {
+    server.setMaxMemoryBytes(10);
+    jedis.rpush("key", "0123456789", "x");
+    try {
+      jedis.rpush("key", "rejected");
+      fail("RPUSH over the memory cap was accepted");
+    } catch (JedisDataException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("OOM"));
+    }
+    assertEquals(1, server.getRejectedCount());
+    jedis.del("key");
+    assertEquals(Long.valueOf(1), jedis.rpush("key", "accepted"));
+  }
+
+  @Test
+  public void testStreams() throws IOException {
+    Socket socket = new Socket("127.0.0.1", server.getPort());
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                                                                   "US-ASCII"));
+      String previousId = "";
+      for (int i = 0; i < 250; i++) {
+        String id = command(socket, in, "XADD", "approximate", "MAXLEN", "~", "10", "*",
+                            "message", "value");
+        assertTrue(id, id.matches("\\d+-\\d+") && !id.equals(previousId));
+        previousId = id;
+      }
+      // Whole nodes of 100 entries are trimmed, never more than the excess
+      assertEquals(":50", command(socket, in, "XLEN", "approximate"));
+      for (int i = 0; i < 20; i++) {
+        command(socket, in, "XADD", "exact", "MAXLEN", "=", "10", "*", "message", "value");
+      }
+      assertEquals(":10", command(socket, in, "XLEN", "exact"));
+      assertEquals(270, server.getPushedCount());
+      assertEquals(60 * "messagevalue".length(), server.getUsedMemory());
+
+      assertTrue(command(socket, in, "LLEN", "exact").startsWith("-WRONGTYPE"));
+      assertTrue(command(socket, in, "RPUSH", "exact", "value").startsWith("-WRONGTYPE"));
+      assertTrue(command(socket, in, "XADD", "exact", "0-1", "message", "value")
+                     .startsWith("-ERR"));
+      assertTrue(command(socket, in, "XADD", "exact", "*", "message").startsWith("-ERR"));
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testLatency() {
+    server.setLatency("rpush", 50);
+    long start = System.nanoTime();
+    jedis.rpush("key", "value");
+    assertTrue(System.nanoTime() - start >= 50000000L);
+    server.setLatency("rpush", 0);
+    start = System.nanoTime();
+    jedis.rpush("key", "value");
+    assertTrue(System.nanoTime() - start < 50000000L);
+  }
+
+  @Test
+  public void testSlowReads() {
+    server.setReadBytesPerSecond(100000);
+    long start = System.nanoTime();
+    jedis.rpush("key", new String(new char[20000]).replace('\0', 'x'));
+    assertTrue(System.nanoTime() - start >= 150000000L);
+  }
+
+  @Test
+  public void testDroppedAndRefusedConnections() throws InterruptedException {
+    jedis.ping();
+    server.dropConnections();
+    try {
+      jedis.ping();
+      fail("PING succeeded on a dropped connection");
+    } catch (JedisConnectionException e) {
+      // Expected
+    }
+    jedis.disconnect();
+    server.setRefusingConnections(true);
+    try {
+      jedis.ping();
+      fail("PING succeeded on a refused connection");
+    } catch (JedisConnectionException e) {
+      // Expected
+    }
+    jedis.disconnect();
+    server.setRefusingConnections(false);
+    assertEquals("PONG", jedis.ping());
+    assertEquals(2, server.getAcceptedConnections());
+  }
+
+  /**
+   * Sends a command Jedis 2.1 has no method for.
+   *
+   * @return the reply, or the value of a bulk reply
+   */
+  private static String command(Socket socket, BufferedReader in, String... arguments)
+      throws IOException {
+    StringBuilder command = new StringBuilder("*").append(arguments.length).append("\r\n");
+    for (String argument : arguments) {
+      command.append('$').append(argument.length()).append("\r\n").append(argument)
+          .append("\r\n");
+    }
+    socket.getOutputStream().write(command.toString().getBytes("US-ASCII"));
+    String reply = in.readLine();
+    return reply.startsWith("$") ? in.readLine() : reply;
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis;
+
+import org.junit.rules.ExternalResource;
+import org.slf4j.MDC;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+/**
+ * Runs {@link RedisStandInServer}s and a logger context for an appender under test, and stops
+ * them all after each test, so a test only sets what it is testing.
+ * <p/>
+ * The appender logs to the stand-in without JMX; with more than one server, each is one of its
+ * endpoints.
+ */
+public class StandInAppenderRule<A extends RedisAppenderBase<ILoggingEvent, ?>>
+    extends ExternalResource {
+
+  private final int serverCount;
+  private final List<RedisStandInServer> servers = new ArrayList<RedisStandInServer>();
+  private LoggerContext context;
+  private A appender;
+
+  public StandInAppenderRule() {
+    this(1);
+  }
+
+  public StandInAppenderRule(int serverCount) {
+    this.serverCount = serverCount;
+  }
+
+  @Override
+  protected void before() throws Throwable {
+    for (int i = 0; i < serverCount; i++) {
+      servers.add(new RedisStandInServer());
+    }
+    context = new LoggerContext();
+  }
+
+  @Override
+  protected void after() {
+    MDC.clear();
+    if (appender != null) {
+      appender.stop();
+    }
+    for (RedisStandInServer server : servers) {
+      server.stop();
+    }
+  }
+
+  /**
+   * Points an appender at the stand-in servers; it replaces any appender used before, and is the
+   * one stopped after the test.
+   */
+  public A use(A appender) {
+    appender.setContext(context);
+    if (servers.size() == 1) {
+      appender.setRedisHostName("127.0.0.1");
+      appender.setRedisPort(servers.get(0).getPort());
+    } else {
+      StringBuilder endpoints = new StringBuilder();
+      for (RedisStandInServer server : servers) {
+        if (endpoints.length() > 0) {
+          endpoints.append(", ");
+        }
+        endpoints.append("127.0.0.1:").append(server.getPort());
+      }
+      appender.setRedisEndpoints(endpoints.toString());
+    }
+    appender.setJmx(false);
+    this.appender = appender;
+    return appender;
+  }
+
+  /**
+   * @return a logger at DEBUG that logs only to the appender
+   */
+  public Logger logger(String name) {
+    Logger logger = context.getLogger(name);
+    logger.setLevel(Level.DEBUG);
+    logger.setAdditive(false);
+    logger.addAppender(appender);
+    return logger;
+  }
+
+  public RedisStandInServer getServer() {
+    return servers.get(0);
+  }
+
+  public RedisStandInServer getServer(int index) {
+    return servers.get(index);
+  }
+
+  public LoggerContext getContext() {
+    return context;
+  }
+}
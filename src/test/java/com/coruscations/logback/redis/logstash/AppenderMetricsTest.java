@@ -0,0 +1,236 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.AppenderMetrics;
+import com.coruscations.logback.redis.AppenderMetricsListener;
+import com.coruscations.logback.redis.OverflowPolicy;
+import com.coruscations.logback.redis.RedisEndpoint;
+import com.coruscations.logback.redis.RedisStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AppenderMetricsTest {
+
+  private RedisStandInServer server;
+  private RedisLogstashAppender appender;
+  private Logger logger;
+  private final CountingListener listener = new CountingListener();
+
+  @Before
+  public void setUp() throws IOException {
+    server = new RedisStandInServer();
+    LoggerContext context = new LoggerContext();
+    context.setName("metrics-test");
+    appender = new RedisLogstashAppender();
+    appender.setContext(context);
+    appender.setName("metrics");
+    appender.setRedisHostName("127.0.0.1");
+    appender.setRedisPort(server.getPort());
+    appender.addMetricsListener(listener);
+    logger = context.getLogger("metrics-test");
+    logger.setAdditive(false);
+    logger.addAppender(appender);
+  }
+
+  @After
+  public void tearDown() {
+    appender.stop();
+    server.stop();
+  }
+
+  @Test
+  public void testAcknowledgedEvents() {
+    appender.start();
+    for (int i = 0; i < 1000; i++) {
+      logger.info("Message {}.", i);
+    }
+    assertTrue(server.awaitPushedCount(1000, 10000));
+    appender.stop();
+
+    AppenderMetrics metrics = appender.getMetrics();
+    assertEquals(1000, metrics.getPublishedCount());
+    assertEquals(1000, metrics.getAcknowledgedCount());
+    assertEquals(1000, listener.acknowledged.get());
+    assertEquals(0, metrics.getFailedCount());
+    assertTrue(metrics.getBatchSize().getCount() > 0);
+    assertEquals(metrics.getBatchSize().getCount(), metrics.getRpushLatency().getCount());
+    assertTrue(metrics.getAppendToAckLatency().getMax() >= metrics.getRpushLatency().getMax());
+  }
+
+  @Test
+  public void testLostEvents() {
+    server.setLatency("RPUSH", 100);
+    appender.setBufferSize(16);
+    appender.setOverflowPolicy(OverflowPolicy.DROP);
+    appender.start();
+    for (int i = 0; i < 1000; i++) {
+      logger.info("Message {}.", i);
+    }
+    AppenderMetrics metrics = appender.getMetrics();
+    assertTrue(metrics.getDroppedCount() > 0);
+    assertEquals(metrics.getDroppedCount(),
+                 listener.lost[AppenderMetricsListener.LossReason.OVERFLOW.ordinal()].get());
+    assertEquals(1000, metrics.getPublishedCount() + metrics.getDroppedCount());
+  }
+
+  @Test
+  public void testDiscardableEvents() {
+    server.setLatency("RPUSH", 20);
+    appender.setBufferSize(16);
+    appender.setOverflowPolicy(OverflowPolicy.DROP_DISCARDABLE);
+    KeyRoute warnings = new KeyRoute();
+    warnings.setKey("warnings");
+    warnings.setMinLevel("WARN");
+    appender.addRoute(warnings);
+    appender.start();
+    for (int i = 0; i < 300; i++) {
+      if (i % 10 == 0) {
+        logger.warn("Warning {}.", i);
+      } else {
+        logger.info("Message {}.", i);
+      }
+    }
+    appender.stop();
+    AppenderMetrics metrics = appender.getMetrics();
+    // Events below discardBelowLevel are dropped; warnings wait for a slot instead
+    assertTrue(metrics.getDroppedDiscardableCount() > 0);
+    int reason = AppenderMetricsListener.LossReason.OVERFLOW_DISCARDABLE.ordinal();
+    assertEquals(metrics.getDroppedDiscardableCount(), listener.lost[reason].get());
+    assertEquals(0, metrics.getDroppedCount());
+    assertTrue(metrics.getBlockedCount() > 0);
+    assertEquals(30, server.getLength("warnings"));
+    assertEquals(270, server.getLength(appender.getKey()) + metrics.getDroppedDiscardableCount());
+  }
+
+  @Test
+  public void testBlockedProducers() {
+    server.setLatency("RPUSH", 20);
+    appender.setBufferSize(16);
+    appender.setMaxBatchEvents(4);
+    appender.start();
+    for (int i = 0; i < 100; i++) {
+      logger.info("Message {}.", i);
+    }
+    assertTrue(appender.getMetrics().getBlockedCount() > 0);
+    assertEquals(appender.getMetrics().getBlockedCount(), listener.blocked.get());
+  }
+
+  @Test
+  public void testMBean() throws Exception {
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName("com.coruscations.logback.redis:type=RedisAppender," +
+                                     "context=\"metrics-test\",name=\"metrics\"");
+    appender.start();
+    assertTrue(mBeanServer.isRegistered(name));
+    logger.info("A message.");
+    assertTrue(server.awaitPushedCount(1, 10000));
+    assertEquals(1L, mBeanServer.getAttribute(name, "PublishedCount"));
+    assertEquals("CLOSED", mBeanServer.getAttribute(name, "RedisHealth"));
+    appender.stop();
+    assertFalse(mBeanServer.isRegistered(name));
+  }
+
+  @Test
+  public void testPriorityLanes() {
+    server.setLatency("RPUSH", 20);
+    appender.setMaxBatchEvents(10);
+    appender.setUnorderedDelivery(true);
+    LevelLane lane = new LevelLane();
+    lane.setMinLevel("WARN");
+    lane.setBufferSize(16);
+    lane.setWeight(4);
+    appender.addLane(lane);
+    appender.start();
+    for (int i = 0; i < 300; i++) {
+      logger.debug("Message {}.", i);
+    }
+    for (int i = 0; i < 5; i++) {
+      logger.error("Error {}.", i);
+    }
+    AppenderMetrics metrics = appender.getMetrics();
+    assertArrayEquals(new String[]{"lane[level>=WARN]", "default"}, metrics.getLaneNames());
+    assertArrayEquals(new int[]{16, 512}, metrics.getLaneBufferSizes());
+    assertTrue(metrics.getLaneQueuedCounts()[1] > 0);
+    assertTrue(server.awaitPushedCount(305, 10000));
+
+    // The errors only wait for the batch being sent, not for the debug events ahead of them
+    assertEquals(5, metrics.getLaneWaitTime(0).getCount());
+    assertEquals(300, metrics.getLaneWaitTime(1).getCount());
+    assertTrue(metrics.getLaneWaitTime(0).getMax() * 4 < metrics.getLaneWaitTime(1).getMax());
+  }
+
+  @Test
+  public void testPriorityLanesRequireUnorderedDelivery() {
+    LevelLane lane = new LevelLane();
+    lane.setMinLevel("WARN");
+    appender.addLane(lane);
+    appender.start();
+    logger.error("An error.");
+    assertTrue(server.awaitPushedCount(1, 10000));
+    assertEquals(0, appender.getMetrics().getLaneNames().length);
+  }
+
+  private static class CountingListener implements AppenderMetricsListener {
+
+    private final AtomicLong acknowledged = new AtomicLong();
+    private final AtomicLong blocked = new AtomicLong();
+    private final AtomicLong[] lost = new AtomicLong[LossReason.values().length];
+
+    private CountingListener() {
+      for (int i = 0; i < lost.length; i++) {
+        lost[i] = new AtomicLong();
+      }
+    }
+
+    @Override
+    public void batchAcknowledged(String appenderName, RedisEndpoint endpoint, int events,
+                                  long rpushNanos, long appendToAckNanos) {
+      acknowledged.addAndGet(events);
+    }
+
+    @Override
+    public void batchFailed(String appenderName, RedisEndpoint endpoint, int events,
+                            Exception cause) {
+    }
+
+    @Override
+    public void eventsLost(String appenderName, LossReason reason, int events) {
+      lost[reason.ordinal()].addAndGet(events);
+    }
+
+    @Override
+    public void producerBlocked(String appenderName, long nanos) {
+      blocked.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.RedisStandInServer;
+import com.coruscations.logback.redis.StandInAppenderRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.LoggingEvent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BatchingTest {
+
+  @Rule
+  public StandInAppenderRule<RedisLogstashAppender> redis =
+      new StandInAppenderRule<RedisLogstashAppender>();
+
+  private RedisStandInServer server;
+  private RedisLogstashAppender appender;
+  private Logger logger;
+
+  @Before
+  public void setUp() {
+    server = redis.getServer();
+    appender = redis.use(new RedisLogstashAppender());
+    logger = redis.logger("com.example.Service");
+  }
+
+  @Test
+  public void testBurstsWithinTheLingerWindowShareOnePush() throws InterruptedException {
+    appender.setLingerMillis(1000);
+    appender.start();
+    for (int burst = 0; burst < 3; burst++) {
+      for (int i = 0; i < 5; i++) {
+        logger.info("Burst {} event {}.", burst, i);
+      }
+      Thread.sleep(50);
+    }
+    assertTrue(server.awaitPushedCount(15, 10000));
+    assertEquals(1, server.getCommandCount("RPUSH"));
+    assertEquals(server.getUsedMemory(), server.getLargestPushBytes());
+  }
+
+  @Test
+  public void testLargeBurstIsSplitByBytes() {
+    appender.setMaxBatchBytes(2000);
+    // Let each batch fill up rather than go out as soon as the sender catches up
+    appender.setLingerMillis(1000);
+    appender.start();
+    int pushes = 0;
+    long batchBytes = 0;
+    long largest = 0;
+    for (int i = 0; i < 100; i++) {
+      LoggingEvent event = new LoggingEvent(Logger.FQCN, logger, Level.INFO,
+                                            "Event " + i + " of a burst.", null, null);
+      batchBytes += appender.formatEvent(event).length;
+      appender.doAppend(event);
+      // A batch goes out once it reaches maxBatchBytes, so it may pass it by one event
+      if (batchBytes >= 2000) {
+        pushes++;
+        largest = Math.max(largest, batchBytes);
+        batchBytes = 0;
+      }
+    }
+    if (batchBytes > 0) {
+      pushes++;
+    }
+    assertTrue(server.awaitPushedCount(100, 10000));
+    assertTrue(pushes > 1);
+    assertEquals(pushes, server.getCommandCount("RPUSH"));
+    assertEquals(largest, server.getLargestPushBytes());
+  }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.RedisStandInServer;
+import com.coruscations.logback.redis.StandInAppenderRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.MDC;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.core.joran.spi.JoranException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeyRouteTest {
+
+  @Rule
+  public StandInAppenderRule<RedisLogstashAppender> redis =
+      new StandInAppenderRule<RedisLogstashAppender>();
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private RedisStandInServer server;
+  private RedisLogstashAppender appender;
+
+  @Before
+  public void setUp() {
+    server = redis.getServer();
+    appender = redis.use(new RedisLogstashAppender());
+  }
+
+  @Test
+  public void testRoutes() {
+    appender.addRoute(route("errors", null, "ERROR", null, null));
+    appender.addRoute(route("billing", null, null, "application", "billing"));
+    appender.addRoute(route("chatty", "com.example.chatty", null, null, null));
+    appender.setMaxBatchEvents(7);
+    Logger chatty = redis.logger("com.example.chatty.Poller");
+    Logger service = redis.logger("com.example.Service");
+    appender.start();
+
+    for (int i = 0; i < 100; i++) {
+      chatty.info("Polled {}.", i);
+      service.info("Served {}.", i);
+      // The first matching route wins
+      chatty.error("Failed to poll {}.", i);
+      MDC.put("application", i % 2 == 0 ? "billing" : "shipping");
+      service.info("Billed {}.", i);
+      MDC.clear();
+    }
+    assertTrue(server.awaitPushedCount(400, 10000));
+    appender.stop();
+    assertEquals(100, server.getLength("errors"));
+    assertEquals(50, server.getLength("billing"));
+    assertEquals(100, server.getLength("chatty"));
+    assertEquals(150, server.getLength(appender.getKey()));
+  }
+
+  @Test
+  public void testFullBatchDoesNotHoldBackOtherRoutes() {
+    appender.addRoute(route("errors", null, "ERROR", null, null));
+    appender.setMaxBatchEvents(2);
+    Logger logger = redis.logger("com.example.Service");
+    appender.start();
+
+    // Hold the consumer on the first reply so the next events arrive as one burst
+    server.setLatency("RPUSH", 500);
+    logger.info("Started.");
+    LockSupport.parkNanos(100000000L);
+    logger.info("Served.");
+    logger.error("Failed once.");
+    // The burst ends by filling the errors batch while the served event still waits
+    logger.error("Failed twice.");
+    assertTrue(server.awaitPushedCount(1, 10000));
+    server.setLatency("RPUSH", 0);
+    assertTrue(server.awaitPushedCount(4, 10000));
+    assertEquals(2, server.getLength("errors"));
+    assertEquals(2, server.getLength(appender.getKey()));
+  }
+
+  @Test
+  public void testRoutedEventsSurviveSpilling() throws IOException {
+    appender.addRoute(route("errors", null, "ERROR", null, null));
+    appender.setSpillDirectory(folder.newFolder("spill").getPath());
+    appender.setSpillReplayEventsPerSecond(100000);
+    appender.setCircuitBreakerInitialBackoffMillis(50);
+    server.setRefusingConnections(true);
+    Logger logger = redis.logger("com.example.Service");
+    appender.start();
+
+    for (int i = 0; i < 50; i++) {
+      logger.info("Served {}.", i);
+      logger.error("Failed {}.", i);
+    }
+    long deadline = System.currentTimeMillis() + 10000;
+    while (appender.getSpilledCount() < 100 && System.currentTimeMillis() < deadline) {
+      LockSupport.parkNanos(1000000);
+    }
+    assertEquals(100, appender.getSpilledCount());
+
+    server.setRefusingConnections(false);
+    assertTrue(server.awaitPushedCount(100, 10000));
+    assertEquals(50, server.getLength("errors"));
+    assertEquals(50, server.getLength(appender.getKey()));
+  }
+
+  @Test
+  public void testJoranConfiguration() throws JoranException {
+    String xml = "<configuration>" +
+                 "<appender name='logstash' " +
+                 "class='com.coruscations.logback.redis.logstash.RedisLogstashAppender'>" +
+                 "<redisPort>" + server.getPort() + "</redisPort>" +
+                 "<jmx>false</jmx>" +
+                 "<route><key>errors</key><minLevel>ERROR</minLevel></route>" +
+                 "</appender>" +
+                 "<root level='DEBUG'><appender-ref ref='logstash'/></root>" +
+                 "</configuration>";
+    JoranConfigurator configurator = new JoranConfigurator();
+    configurator.setContext(redis.getContext());
+    configurator.doConfigure(new ByteArrayInputStream(xml.getBytes()));
+
+    Logger logger = redis.getContext().getLogger("com.example.Service");
+    logger.error("Failed.");
+    logger.warn("Warned.");
+    assertTrue(server.awaitPushedCount(2, 10000));
+    redis.getContext().stop();
+    assertEquals(1, server.getLength("errors"));
+    assertEquals(1, server.getLength("logstash"));
+  }
+
+  private static KeyRoute route(String key, String loggerPrefix, String minLevel, String mdcKey,
+                                String mdcValue) {
+    KeyRoute route = new KeyRoute();
+    route.setKey(key);
+    route.setLoggerPrefix(loggerPrefix);
+    route.setMinLevel(minLevel);
+    route.setMdcKey(mdcKey);
+    route.setMdcValue(mdcValue);
+    return route;
+  }
+}
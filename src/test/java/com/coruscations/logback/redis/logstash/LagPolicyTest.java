@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.LagState;
+import com.coruscations.logback.redis.RedisStandInServer;
+import com.coruscations.logback.redis.StandInAppenderRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import redis.clients.jedis.Jedis;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LagPolicyTest {
+
+  @Rule
+  public StandInAppenderRule<RedisLogstashAppender> redis =
+      new StandInAppenderRule<RedisLogstashAppender>();
+
+  private RedisStandInServer server;
+  private RedisLogstashAppender appender;
+
+  @Before
+  public void setUp() {
+    server = redis.getServer();
+    appender = redis.use(new RedisLogstashAppender());
+  }
+
+  @Test
+  public void testTransitions() {
+    LagPolicy policy = new LagPolicy(100, 500, 1000, 0.1);
+    assertEquals(LagState.NORMAL, policy.next(LagState.NORMAL, 99));
+    assertEquals(LagState.SHEDDING_DEBUG, policy.next(LagState.NORMAL, 100));
+    // Escalation skips states, relaxing only goes as far as the length allows
+    assertEquals(LagState.SAMPLING, policy.next(LagState.NORMAL, 5000));
+    assertEquals(LagState.SAMPLING, policy.next(LagState.SAMPLING, 501));
+    assertEquals(LagState.SHEDDING_INFO, policy.next(LagState.SAMPLING, 499));
+    assertEquals(LagState.SHEDDING_INFO, policy.next(LagState.SHEDDING_INFO, 250));
+    assertEquals(LagState.SHEDDING_DEBUG, policy.next(LagState.SHEDDING_INFO, 60));
+    assertEquals(LagState.NORMAL, policy.next(LagState.SAMPLING, 0));
+
+    // A disabled state is never entered and does not hold up relaxing
+    policy = new LagPolicy(0, 500, 0, 0.1);
+    assertEquals(LagState.NORMAL, policy.next(LagState.NORMAL, 499));
+    assertEquals(LagState.SHEDDING_INFO, policy.next(LagState.NORMAL, 1000000));
+    assertEquals(LagState.NORMAL, policy.next(LagState.SHEDDING_INFO, 249));
+  }
+
+  @Test
+  public void testAdmission() {
+    LagPolicy policy = new LagPolicy(100, 500, 1000, 0.25);
+    Random random = new Random(42);
+    for (Level level : new Level[]{Level.TRACE, Level.DEBUG, Level.INFO, Level.WARN}) {
+      assertTrue(policy.admits(LagState.NORMAL, level, random));
+    }
+    assertFalse(policy.admits(LagState.SHEDDING_DEBUG, Level.DEBUG, random));
+    assertTrue(policy.admits(LagState.SHEDDING_DEBUG, Level.INFO, random));
+    assertFalse(policy.admits(LagState.SHEDDING_INFO, Level.INFO, random));
+    assertTrue(policy.admits(LagState.SHEDDING_INFO, Level.WARN, random));
+    assertFalse(policy.admits(LagState.SAMPLING, Level.INFO, random));
+    int warnings = 0;
+    for (int i = 0; i < 10000; i++) {
+      assertTrue(policy.admits(LagState.SAMPLING, Level.ERROR, random));
+      if (policy.admits(LagState.SAMPLING, Level.WARN, random)) {
+        warnings++;
+      }
+    }
+    assertTrue(Integer.toString(warnings), warnings > 2200 && warnings < 2800);
+  }
+
+  @Test
+  public void testMonitorShedsAndRelaxes() {
+    Jedis jedis = new Jedis("127.0.0.1", server.getPort());
+    for (int i = 0; i < 60; i++) {
+      jedis.rpush(appender.getKey(), "backlog");
+    }
+    appender.setLagMonitorIntervalMillis(20);
+    appender.setLagShedDebugLength(10);
+    appender.setLagShedInfoLength(50);
+    appender.setLagSampleLength(0);
+    assertEquals(-1, appender.getDownstreamLength());
+    appender.start();
+    Logger logger = redis.logger("a.logger");
+    awaitLagState(LagState.SHEDDING_INFO);
+    assertEquals("SHEDDING_INFO", appender.getMetrics().getLagState());
+
+    logger.debug("Shed.");
+    logger.info("Shed.");
+    logger.warn("Kept.");
+    assertEquals(2, appender.getMetrics().getLaggingCount());
+    assertTrue(server.awaitPushedCount(61, 5000));
+
+    // The consumers catch up
+    jedis.del(appender.getKey());
+    awaitLagState(LagState.NORMAL);
+    assertEquals(0, appender.getDownstreamLength());
+    logger.debug("Kept.");
+    assertTrue(server.awaitPushedCount(62, 5000));
+    jedis.disconnect();
+  }
+
+  @Test
+  public void testOnlyTheLaggingRouteSheds() {
+    Jedis jedis = new Jedis("127.0.0.1", server.getPort());
+    for (int i = 0; i < 60; i++) {
+      jedis.rpush("chatty", "backlog");
+    }
+    KeyRoute route = new KeyRoute();
+    route.setKey("chatty");
+    route.setLoggerPrefix("com.example.chatty");
+    appender.addRoute(route);
+    appender.setLagMonitorIntervalMillis(20);
+    appender.setLagShedDebugLength(10);
+    appender.setLagShedInfoLength(50);
+    appender.setLagSampleLength(0);
+    appender.start();
+    Logger chatty = redis.logger("com.example.chatty");
+    Logger quiet = redis.logger("com.example.quiet");
+    awaitLagState(LagState.SHEDDING_INFO);
+
+    chatty.info("Shed.");
+    quiet.debug("Kept.");
+    quiet.info("Kept.");
+    assertEquals(1, appender.getMetrics().getLaggingCount());
+    assertTrue(server.awaitPushedCount(62, 5000));
+    assertEquals(2, server.getLength(appender.getKey()));
+    jedis.disconnect();
+  }
+
+  private void awaitLagState(LagState state) {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (appender.getLagState() != state && System.currentTimeMillis() < deadline) {
+      LockSupport.parkNanos(1000000);
+    }
+    assertEquals(state, appender.getLagState());
+  }
+}
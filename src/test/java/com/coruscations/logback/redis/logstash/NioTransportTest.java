@@ -0,0 +1,158 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.RedisStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import redis.clients.util.SafeEncoder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class NioTransportTest {
+
+  private static final byte[] KEY = SafeEncoder.encode("key");
+
+  private RedisStandInServer server;
+  private NioTransport transport;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new RedisStandInServer();
+    transport = new NioTransport("127.0.0.1", server.getPort(), 2000, "secret", 3);
+  }
+
+  @After
+  public void tearDown() {
+    transport.close(false);
+    server.stop();
+  }
+
+  @Test
+  public void testPipelinedRepliesArriveInOrder() throws IOException {
+    assertNull(transport.readReply(false));
+    for (int i = 0; i < 100; i++) {
+      transport.rpush(KEY, values(3, 10));
+    }
+    transport.flush();
+    for (int i = 1; i <= 100; i++) {
+      assertEquals(Long.valueOf(i * 3), transport.readReply(true));
+    }
+    assertNull(transport.readReply(false));
+    assertEquals(300, server.getLength("key"));
+  }
+
+  @Test
+  public void testRepliesAreTakenWithoutBlocking() throws IOException, InterruptedException {
+    transport.rpush(KEY, values(1, 10));
+    transport.flush();
+    Object reply = null;
+    for (int i = 0; i < 200 && reply == null; i++) {
+      Thread.sleep(10);
+      reply = transport.readReply(false);
+    }
+    assertEquals(Long.valueOf(1), reply);
+  }
+
+  @Test
+  public void testLargeBatchesAreWrittenWhole() throws IOException {
+    // Far more than the socket buffers hold, in values both copied and wrapped
+    transport.rpush(KEY, values(2000, 20));
+    transport.rpush(KEY, values(200, 50000));
+    transport.flush();
+    assertEquals(Long.valueOf(2000), transport.readReply(true));
+    assertEquals(Long.valueOf(2200), transport.readReply(true));
+    assertEquals(2200, server.getPushedCount());
+  }
+
+  @Test
+  public void testStreams() throws IOException {
+    XAddCommandWriter writer = new XAddCommandWriter(0);
+    transport.xadd(writer, KEY, values(5, 10));
+    for (int i = 0; i < 5; i++) {
+      // Entry IDs
+      assertTrue(transport.readReply(true) instanceof byte[]);
+    }
+    assertEquals(5, server.getLength("key"));
+  }
+
+  @Test
+  public void testErrorRepliesLeaveTheConnectionUsable() throws IOException {
+    transport.rpush(KEY, values(1, 10));
+    transport.xadd(new XAddCommandWriter(0), KEY, values(1, 10));
+    transport.rpush(KEY, values(1, 10));
+    transport.flush();
+    assertEquals(Long.valueOf(1), transport.readReply(true));
+    Object reply = transport.readReply(true);
+    assertTrue(reply instanceof NioTransport.RedisErrorReply);
+    assertTrue(((Exception) reply).getMessage(), ((Exception) reply).getMessage()
+        .startsWith("WRONGTYPE"));
+    assertEquals(Long.valueOf(2), transport.readReply(true));
+  }
+
+  @Test
+  public void testSlowRepliesTimeOut() throws IOException {
+    transport.close(false);
+    transport = new NioTransport("127.0.0.1", server.getPort(), 100, null, 0);
+    server.setLatency("RPUSH", 500);
+    transport.rpush(KEY, values(1, 10));
+    transport.flush();
+    try {
+      transport.readReply(true);
+      fail("Expected a timeout.");
+    } catch (SocketTimeoutException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testDroppedConnectionsFail() throws IOException, InterruptedException {
+    transport.rpush(KEY, values(1, 10));
+    transport.flush();
+    assertEquals(Long.valueOf(1), transport.readReply(true));
+    server.dropConnections();
+    try {
+      for (int i = 0; i < 100; i++) {
+        transport.rpush(KEY, values(1, 10));
+        transport.flush();
+        transport.readReply(true);
+        Thread.sleep(10);
+      }
+      fail("Expected the connection to fail.");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  private static byte[][] values(int count, int length) {
+    byte[][] values = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      values[i] = new byte[length];
+      Arrays.fill(values[i], (byte) 'x');
+    }
+    return values;
+  }
+}
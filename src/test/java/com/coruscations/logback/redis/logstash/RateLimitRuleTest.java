@@ -0,0 +1,157 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.RedisStandInServer;
+import com.coruscations.logback.redis.StandInAppenderRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.MDC;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.core.joran.spi.JoranException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimitRuleTest {
+
+  @Rule
+  public StandInAppenderRule<RedisLogstashAppender> redis =
+      new StandInAppenderRule<RedisLogstashAppender>();
+
+  private RedisStandInServer server;
+  private RedisLogstashAppender appender;
+
+  @Before
+  public void setUp() {
+    server = redis.getServer();
+    appender = redis.use(new RedisLogstashAppender());
+  }
+
+  @Test
+  public void testTokenBucket() {
+    long second = TimeUnit.SECONDS.toNanos(1);
+    TokenBucket bucket = new TokenBucket(10, 5, 0);
+    for (int i = 0; i < 5; i++) {
+      assertTrue(bucket.tryAcquire(0));
+    }
+    assertFalse(bucket.tryAcquire(0));
+    // One token back every tenth of a second
+    assertFalse(bucket.tryAcquire(second / 20));
+    assertTrue(bucket.tryAcquire(second / 10));
+    assertFalse(bucket.tryAcquire(second / 10));
+    // Never more than the burst after a quiet spell
+    for (int i = 0; i < 5; i++) {
+      assertTrue(bucket.tryAcquire(10 * second));
+    }
+    assertFalse(bucket.tryAcquire(10 * second));
+  }
+
+  @Test
+  public void testRateLimitByLoggerAndLevel() {
+    RateLimitRule rule = new RateLimitRule();
+    rule.setLoggerPrefix("com.example.chatty");
+    rule.setLevel("DEBUG");
+    rule.setEventsPerSecond(1);
+    rule.setBurst(10);
+    appender.addRateLimit(rule);
+    Logger chatty = redis.logger("com.example.chatty.Poller");
+    Logger quiet = redis.logger("com.example.quiet.Service");
+    appender.start();
+
+    for (int i = 0; i < 1000; i++) {
+      chatty.debug("Polling {}.", i);
+      chatty.info("Polled {}.", i);
+      quiet.debug("Serving {}.", i);
+    }
+    assertTrue(server.awaitPushedCount(2010, 10000));
+    appender.stop();
+    assertEquals(2010, server.getPushedCount());
+    assertEquals(990, appender.getMetrics().getSuppressedCount());
+  }
+
+  @Test
+  public void testRateLimitByMdcValue() {
+    RateLimitRule rule = new RateLimitRule();
+    rule.setMdcKey("tenant");
+    rule.setEventsPerSecond(1);
+    rule.setBurst(5);
+    appender.addRateLimit(rule);
+    Logger logger = redis.logger("com.example.Service");
+    appender.start();
+
+    for (String tenant : new String[]{"a", "b", "c"}) {
+      MDC.put("tenant", tenant);
+      for (int i = 0; i < 100; i++) {
+        logger.info("Request {}.", i);
+      }
+    }
+    assertTrue(server.awaitPushedCount(15, 10000));
+    appender.stop();
+    assertEquals(15, server.getPushedCount());
+  }
+
+  @Test
+  public void testSamplingAndSummaries() {
+    RateLimitRule rule = new RateLimitRule();
+    rule.setSampleRate(0.1);
+    appender.addRateLimit(rule);
+    appender.setRateLimitSummaryIntervalMillis(200);
+    Logger logger = redis.logger("com.example.Service");
+    appender.start();
+
+    for (int i = 0; i < 10000; i++) {
+      logger.info("Request {}.", i);
+    }
+    long sampled = 10000 - appender.getMetrics().getSuppressedCount();
+    assertTrue("Kept " + sampled, sampled > 500 && sampled < 1500);
+    // Plus one summary of what was sampled out
+    assertTrue(server.awaitPushedCount(sampled + 1, 10000));
+  }
+
+  @Test
+  public void testJoranConfiguration() throws JoranException {
+    String xml = "<configuration>" +
+                 "<appender name='logstash' " +
+                 "class='com.coruscations.logback.redis.logstash.RedisLogstashAppender'>" +
+                 "<redisPort>" + server.getPort() + "</redisPort>" +
+                 "<jmx>false</jmx>" +
+                 "<rateLimit><loggerPrefix>chatty</loggerPrefix>" +
+                 "<eventsPerSecond>1</eventsPerSecond><burst>3</burst></rateLimit>" +
+                 "</appender>" +
+                 "<root level='DEBUG'><appender-ref ref='logstash'/></root>" +
+                 "</configuration>";
+    JoranConfigurator configurator = new JoranConfigurator();
+    configurator.setContext(redis.getContext());
+    configurator.doConfigure(new ByteArrayInputStream(xml.getBytes()));
+
+    Logger chatty = redis.getContext().getLogger("chatty");
+    for (int i = 0; i < 100; i++) {
+      chatty.info("Chatter {}.", i);
+    }
+    assertTrue(server.awaitPushedCount(3, 10000));
+    redis.getContext().stop();
+    assertEquals(3, server.getPushedCount());
+  }
+}
@@ -0,0 +1,275 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.OverflowPolicy;
+import com.coruscations.logback.redis.RedisStandInServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.status.Status;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the appender from several logging threads against the in-process Redis stand-in while
+ * it degrades.  The soak test runs for {@code -Dsoak.seconds} (5 by default); when that is set,
+ * each scenario also prints its throughput, queue growth and the longest time a logging thread
+ * spent in {@code append()}.
+ */
+public class RedisAppenderLoadTest {
+
+  private static final int PRODUCERS = 4;
+  private static final long DELIVERY_TIMEOUT_MILLIS = 30000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private RedisStandInServer server;
+  private LoggerContext context;
+  private RedisLogstashAppender appender;
+  private Logger logger;
+  private final AtomicLong maxQueued = new AtomicLong();
+
+  @Before
+  public void setUp() throws IOException {
+    server = new RedisStandInServer();
+    context = new LoggerContext();
+    appender = new RedisLogstashAppender();
+    appender.setContext(context);
+    appender.setRedisHostName("127.0.0.1");
+    appender.setRedisPort(server.getPort());
+    appender.setRedisTimeout(1000);
+    appender.setType("load-test");
+    logger = context.getLogger("load-test");
+    logger.setAdditive(false);
+    logger.addAppender(appender);
+  }
+
+  @After
+  public void tearDown() {
+    appender.stop();
+    server.stop();
+  }
+
+  @Test
+  public void testThroughputAgainstHealthyRedis() throws InterruptedException {
+    appender.start();
+    long start = System.nanoTime();
+    long maxAppendNanos = produce(20000, null);
+    assertTrue(server.awaitPushedCount(PRODUCERS * 20000, DELIVERY_TIMEOUT_MILLIS));
+    report("healthy", start, maxAppendNanos);
+  }
+
+  @Test
+  public void testSlowRedisDoesNotStallLoggingThreadsWithWaitPolicy()
+      throws InterruptedException {
+    server.setLatency("RPUSH", 200);
+    appender.setBufferSize(256);
+    appender.setOverflowPolicy(OverflowPolicy.WAIT);
+    appender.setOverflowWaitMicros(1000);
+    appender.start();
+    long start = System.nanoTime();
+    long maxAppendNanos = produce(2000, null);
+    report("200 ms RPUSH latency", start, maxAppendNanos);
+    assertTrue(appender.getDroppedAfterWaitCount() > 0);
+    assertTrue(maxAppendNanos < TimeUnit.MILLISECONDS.toNanos(100));
+  }
+
+  @Test
+  public void testSlowReadsDoNotStallLoggingThreadsWithDropPolicy()
+      throws InterruptedException {
+    server.setReadBytesPerSecond(200000);
+    appender.setBufferSize(256);
+    appender.setOverflowPolicy(OverflowPolicy.DROP);
+    appender.start();
+    long start = System.nanoTime();
+    long maxAppendNanos = produce(5000, null);
+    report("200 KB/s reads", start, maxAppendNanos);
+    assertTrue(appender.getDroppedCount() > 0);
+    assertTrue(maxAppendNanos < TimeUnit.MILLISECONDS.toNanos(100));
+  }
+
+  @Test
+  public void testDroppedConnectionsLoseNothingWithSpill()
+      throws IOException, InterruptedException {
+    appender.setSpillDirectory(folder.newFolder("spill").getPath());
+    appender.start();
+    final AtomicLong logged = new AtomicLong();
+    long start = System.nanoTime();
+    long maxAppendNanos = produce(10000, new Runnable() {
+      @Override
+      public void run() {
+        if (logged.incrementAndGet() % 5000 == 0) {
+          server.dropConnections();
+        }
+      }
+    });
+    // Delivery is at least once; batches whose replies were lost can arrive twice
+    assertTrue(server.awaitPushedCount(PRODUCERS * 10000, DELIVERY_TIMEOUT_MILLIS));
+    report("dropped connections", start, maxAppendNanos);
+  }
+
+  @Test
+  public void testMemoryCapRejectionsAreReported() throws InterruptedException {
+    server.setMaxMemoryBytes(64 * 1024);
+    appender.start();
+    long start = System.nanoTime();
+    long maxAppendNanos = produce(2000, null);
+    appender.stop();
+    report("64 KB memory cap", start, maxAppendNanos);
+    assertTrue(server.getRejectedCount() > 0);
+    boolean reported = false;
+    for (Status status : context.getStatusManager().getCopyOfStatusList()) {
+      reported |= status.getLevel() == Status.ERROR
+                  && status.getMessage().startsWith("Redis rejected");
+    }
+    assertTrue(reported);
+  }
+
+  @Test
+  public void testSoakWhileRedisDegrades() throws IOException, InterruptedException {
+    long soakMillis = TimeUnit.SECONDS.toMillis(Long.getLong("soak.seconds", 5));
+    appender.setBufferSize(1024);
+    appender.setOverflowPolicy(OverflowPolicy.WAIT);
+    appender.setOverflowWaitMicros(1000);
+    appender.setSpillDirectory(folder.newFolder("spill").getPath());
+    appender.start();
+
+    final AtomicBoolean soaking = new AtomicBoolean(true);
+    Thread chaos = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        int phase = 0;
+        while (soaking.get()) {
+          server.setLatency("RPUSH", phase % 4 == 1 ? 20 : 0);
+          server.setReadBytesPerSecond(phase % 4 == 3 ? 500000 : 0);
+          if (phase % 4 == 2) {
+            server.dropConnections();
+          }
+          phase++;
+          sleep(500);
+        }
+        server.setLatency("RPUSH", 0);
+        server.setReadBytesPerSecond(0);
+      }
+    }, "chaos");
+    chaos.start();
+
+    final long deadline = System.currentTimeMillis() + soakMillis;
+    final AtomicLong logged = new AtomicLong();
+    long start = System.nanoTime();
+    long maxAppendNanos = produce(Integer.MAX_VALUE, new Runnable() {
+      @Override
+      public void run() {
+        logged.incrementAndGet();
+        if (System.currentTimeMillis() >= deadline) {
+          throw new StopProducing();
+        }
+      }
+    });
+    soaking.set(false);
+    chaos.join();
+
+    long lost = appender.getDroppedAfterWaitCount() + appender.getShedCount();
+    assertTrue(server.awaitPushedCount(logged.get() - lost, DELIVERY_TIMEOUT_MILLIS));
+    report("soak", start, maxAppendNanos);
+    assertTrue(maxAppendNanos < TimeUnit.SECONDS.toNanos(1));
+  }
+
+  /**
+   * Logs {@code events} messages from each of the producer threads, running {@code hook} after
+   * each, and samples the appender's queue while they run.
+   *
+   * @return the longest a single call to the logger took
+   */
+  private long produce(final int events, final Runnable hook) throws InterruptedException {
+    final AtomicLong maxAppendNanos = new AtomicLong();
+    final CountDownLatch done = new CountDownLatch(PRODUCERS);
+    for (int i = 0; i < PRODUCERS; i++) {
+      final int producer = i;
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          long max = 0;
+          try {
+            for (int n = 0; n < events; n++) {
+              long start = System.nanoTime();
+              logger.info("Load test message {} from producer {}.", n, producer);
+              max = Math.max(max, System.nanoTime() - start);
+              if (hook != null) {
+                hook.run();
+              }
+            }
+          } catch (StopProducing e) {
+            // Done
+          } finally {
+            updateMax(maxAppendNanos, max);
+            done.countDown();
+          }
+        }
+      }, "producer-" + i);
+      thread.start();
+    }
+    while (!done.await(10, TimeUnit.MILLISECONDS)) {
+      updateMax(maxQueued, appender.getQueuedCount());
+    }
+    return maxAppendNanos.get();
+  }
+
+  private void report(String scenario, long startNanos, long maxAppendNanos) {
+    if (System.getProperty("soak.seconds") == null) {
+      return;
+    }
+    long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    System.out.println(String.format(
+        "%-22s %9d pushed %9d/s  max queued %5d  max append %7.2f ms  dropped %d  shed %d  "
+        + "spilled %d", scenario, server.getPushedCount(),
+        server.getPushedCount() * 1000 / elapsedMillis, maxQueued.get(), maxAppendNanos / 1e6,
+        appender.getDroppedCount() + appender.getDroppedAfterWaitCount(),
+        appender.getShedCount(), appender.getSpilledCount()));
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+      // Retry
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static class StopProducing extends RuntimeException {
+  }
+}
@@ -15,14 +15,30 @@
  */
 package com.coruscations.logback.redis.logstash;
 
+import com.coruscations.logback.redis.KeyType;
+import com.coruscations.logback.redis.RedisStandInServer;
+import com.coruscations.logback.redis.TransportType;
+
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
 import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 import org.slf4j.MarkerFactory;
+import org.slf4j.spi.LocationAwareLogger;
 
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -33,20 +49,286 @@ import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.filter.ThresholdFilter;
 import ch.qos.logback.classic.joran.JoranConfigurator;
 import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
 import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
 import ch.qos.logback.core.joran.spi.JoranException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class RedisLogstashAppenderTest {
 
+  private RedisStandInServer server;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new RedisStandInServer();
+    System.setProperty("redis.port", Integer.toString(server.getPort()));
+  }
+
+  @After
+  public void tearDown() {
+    System.clearProperty("redis.port");
+    server.stop();
+  }
+
+  @Test
+  public void testFormatEvent() throws UnsupportedEncodingException {
+    RedisLogstashAppender appender = new RedisLogstashAppender();
+    appender.setType("a-type");
+    appender.setHostName("a-host");
+    appender.setFile("a-file");
+
+    LoggingEvent event = new LoggingEvent();
+    event.setLoggerName("a.logger");
+    event.setThreadName("a \"quoted\" thread");
+    event.setLevel(Level.WARN);
+    event.setTimeStamp(1357016400123L);
+    event.setMessage("A multi-\nline message with caf\u00e9 in it.");
+    event.setMarker(MarkerFactory.getDetachedMarker("a marker"));
+    Map<String, String> mdc = new LinkedHashMap<String, String>();
+    mdc.put("tags", " one,,two , three");
+    mdc.put("a key", "a value");
+    event.setMDCPropertyMap(mdc);
+
+    assertEquals("{\"@source\":\"a-type://a-host/a-file\"," +
+                 "\"@tags\":[\"a marker\",\"one\",\"two\",\"three\"]," +
+                 "\"@fields\":{\"tags\":\" one,,two , three\",\"a key\":\"a value\"," +
+                 "\"logger_name\":\"a.logger\",\"thread_name\":\"a \\\"quoted\\\" thread\"," +
+                 "\"level\":\"WARN\"}," +
+                 "\"@timestamp\":\"2013-01-01T05:00:00.123Z\"," +
+                 "\"@message\":\"A multi-\\\\nline message with caf\u00e9 in it.\"," +
+                 "\"@type\":\"a-type\"}",
+                 new String(appender.formatEvent(event), "UTF-8"));
+  }
+
+  @Test
+  public void testLayoutTemplates() throws UnsupportedEncodingException {
+    RedisLogstashAppender appender = new RedisLogstashAppender();
+    appender.setType("a-type");
+    appender.setHostName("a-host");
+    StaticField environment = new StaticField();
+    environment.setName("environment");
+    environment.setValue("test");
+    appender.addStaticField(environment);
+
+    LoggingEvent event = new LoggingEvent();
+    event.setLoggerName("a.logger");
+    event.setThreadName("a-thread");
+    event.setLevel(Level.INFO);
+    event.setTimeStamp(1357016400123L);
+    event.setMessage("A message.");
+    Map<String, String> mdc = new LinkedHashMap<String, String>();
+    mdc.put("tags", "one");
+    mdc.put("a key", "a value");
+    event.setMDCPropertyMap(mdc);
+
+    assertEquals("{\"@source\":\"a-type://a-host/logback\",\"@tags\":[\"one\"]," +
+                 "\"@fields\":{\"environment\":\"test\",\"tags\":\"one\"," +
+                 "\"a key\":\"a value\",\"logger_name\":\"a.logger\"," +
+                 "\"thread_name\":\"a-thread\",\"level\":\"INFO\"}," +
+                 "\"@timestamp\":\"2013-01-01T05:00:00.123Z\"," +
+                 "\"@message\":\"A message.\",\"@type\":\"a-type\"}",
+                 new String(appender.formatEvent(event), "UTF-8"));
+
+    appender.setSchema(LogstashSchema.V1);
+    FieldRename rename = new FieldRename();
+    rename.setField("logger_name");
+    rename.setTo("logger");
+    appender.addRename(rename);
+    assertEquals("{\"@timestamp\":\"2013-01-01T05:00:00.123Z\",\"@version\":\"1\"," +
+                 "\"message\":\"A message.\",\"logger\":\"a.logger\"," +
+                 "\"thread_name\":\"a-thread\",\"level\":\"INFO\"," +
+                 "\"environment\":\"test\",\"a key\":\"a value\",\"tags\":[\"one\"]," +
+                 "\"host\":\"a-host\",\"path\":\"logback\"," +
+                 "\"type\":\"a-type\"}",
+                 new String(appender.formatEvent(event), "UTF-8"));
+  }
+
+  @Test
+  public void testCallerData() throws Exception {
+    final RedisLogstashAppender appender = new RedisLogstashAppender();
+    appender.setIncludeCallerData(true);
+    LoggerContext context = new LoggerContext();
+    appender.setContext(context);
+    final List<String> formatted = new ArrayList<String>();
+    final List<ILoggingEvent> deferred = new ArrayList<ILoggingEvent>();
+    UnsynchronizedAppenderBase<ILoggingEvent> capture =
+        new UnsynchronizedAppenderBase<ILoggingEvent>() {
+          @Override
+          protected void append(ILoggingEvent event) {
+            try {
+              formatted.add(new String(appender.formatEvent(event), "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+              throw new IllegalStateException(e);
+            }
+            appender.prepareForDeferredProcessing(event);
+            deferred.add(event);
+          }
+        };
+    capture.setContext(context);
+    capture.start();
+    Logger logger = context.getLogger("a.logger");
+    logger.addAppender(capture);
+
+    int line = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+    logger.info("Logged from a known line.");
+    String callerFields = "\"class\":\"" + getClass().getName() + "\"," +
+                          "\"method\":\"testCallerData\"," +
+                          "\"file\":\"RedisLogstashAppenderTest.java\"," +
+                          "\"line\":" + line + ",";
+    assertTrue(formatted.get(0), formatted.get(0).contains(callerFields));
+    // Logback's own view of the caller is the same, and still as deep as it would make it
+    StackTraceElement[] callerData = deferred.get(0).getCallerData();
+    assertEquals(line, callerData[0].getLineNumber());
+    assertEquals(context.getMaxCallerDataDepth(), callerData.length);
+
+    // Formatting later on another thread still finds the logging thread's caller
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    String later = executor.submit(new Callable<String>() {
+      @Override
+      public String call() throws Exception {
+        return new String(appender.formatEvent(deferred.get(0)), "UTF-8");
+      }
+    }).get();
+    executor.shutdown();
+    assertTrue(later, later.contains(callerFields));
+
+    // Logging through a wrapper reports the wrapper's caller, as logback would
+    line = new Throwable().getStackTrace()[0].getLineNumber() + 1;
+    LoggerWrapper.info(logger, "Logged through a wrapper.");
+    assertTrue(formatted.get(1), formatted.get(1).contains("\"line\":" + line + ","));
+    assertEquals(line, deferred.get(1).getCallerData()[0].getLineNumber());
+  }
+
+  private static final class LoggerWrapper {
+
+    static void info(Logger logger, String message) {
+      logger.log(null, LoggerWrapper.class.getName(), LocationAwareLogger.INFO_INT, message,
+                 null, null);
+    }
+  }
+
+  @Test
+  public void testCallSiteFieldsAreCached() {
+    CallSiteCache callSites = new CallSiteCache(1);
+    StackTraceElement site = new StackTraceElement("a.Class", "method", "Class.java", 42);
+    StackTraceElement other = new StackTraceElement("a.Class", "method", "Class.java", 43);
+    assertSame(callSites.fields(site),
+               callSites.fields(new StackTraceElement("a.Class", "method", "Class.java", 42)));
+    // Past the limit sites are still rendered, just not kept
+    assertNotSame(callSites.fields(other), callSites.fields(other));
+  }
+
+  @Test
+  public void testStackTraceDedup() throws UnsupportedEncodingException {
+    RedisLogstashAppender appender = new RedisLogstashAppender();
+    appender.setStackTraceDedupWindowMillis(1000);
+    LoggerContext context = new LoggerContext();
+    Logger logger = context.getLogger("a.logger");
+
+    String[] formatted = new String[4];
+    long[] timestamps = {0, 10, 20, 1000};
+    for (int i = 0; i < formatted.length; i++) {
+      // Same call site, so the same frames; only the message differs
+      LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.ERROR,
+                                            "Failed.", new IllegalStateException("Try " + i),
+                                            null);
+      event.setTimeStamp(timestamps[i]);
+      formatted[i] = new String(appender.formatEvent(event), "UTF-8");
+    }
+    String stackHash = stackHash(formatted[0]);
+    assertEquals(16, stackHash.length());
+    assertTrue(formatted[0].contains("\"stack_trace\":\"java.lang.IllegalStateException"));
+    assertFalse(formatted[0].contains("stack_repeat_count"));
+    for (int i = 1; i <= 2; i++) {
+      assertEquals(stackHash, stackHash(formatted[i]));
+      assertFalse(formatted[i].contains("stack_trace"));
+      assertTrue(formatted[i].contains("\"stack_repeat_count\":" + i + ","));
+    }
+    // A new window sends the trace again
+    assertEquals(stackHash, stackHash(formatted[3]));
+    assertTrue(formatted[3].contains("\"stack_trace\":"));
+
+    LoggingEvent other = new LoggingEvent(Logger.class.getName(), logger, Level.ERROR,
+                                          "Failed.", new IllegalStateException("Elsewhere"),
+                                          null);
+    assertFalse(stackHash.equals(stackHash(new String(appender.formatEvent(other), "UTF-8"))));
+  }
+
+  @Test
+  public void testPayloadBudget() throws UnsupportedEncodingException {
+    RedisLogstashAppender appender = new RedisLogstashAppender();
+    LoggerContext context = new LoggerContext();
+    Logger logger = context.getLogger("a.logger");
+    Exception cause = new IllegalArgumentException("The cause");
+    Exception exception = new IllegalStateException("Failed", cause);
+    LoggingEvent event = new LoggingEvent(Logger.class.getName(), logger, Level.ERROR,
+                                          "0123456789", exception, null);
+    Map<String, String> mdc = new LinkedHashMap<String, String>();
+    mdc.put("kept", "a value");
+    mdc.put("dropped", "another value");
+    mdc.put("large", new String(new char[10000]).replace('\0', 'x'));
+    event.setMDCPropertyMap(mdc);
+
+    // Unbounded, the stack trace is written as logback formats it
+    String formatted = new String(appender.formatEvent(event), "UTF-8");
+    assertTrue(formatted.contains(new String(Utf8JsonWriter.escaped(
+        ThrowableProxyUtil.asString(event.getThrowableProxy())), "UTF-8")));
+    assertTrue(formatted.contains("\"dropped\":"));
+
+    appender.setMaxMessageLength(4);
+    appender.setMaxStackDepth(2);
+    appender.setMdcExcludeKeys("dropped, other");
+    formatted = new String(appender.formatEvent(event), "UTF-8");
+    assertTrue(formatted, formatted.contains("\"@message\":\"0123...\""));
+    assertTrue(formatted, formatted.contains("frames omitted"));
+    assertFalse(formatted, formatted.contains("\"dropped\":"));
+    assertTrue(formatted, formatted.contains("\"kept\":"));
+    appender.setMdcExcludeKeys(null);
+    appender.setMdcIncludeKeys("dropped");
+    formatted = new String(appender.formatEvent(event), "UTF-8");
+    assertTrue(formatted, formatted.contains("\"dropped\":"));
+    assertFalse(formatted, formatted.contains("\"kept\":"));
+    appender.setMdcIncludeKeys(null);
+
+    // The message is kept whole; the stack trace and MDC values are cut to fit
+    appender.setMaxMessageLength(0);
+    appender.setMaxEventBytes(2048);
+    formatted = new String(appender.formatEvent(event), "UTF-8");
+    assertTrue(Integer.toString(formatted.length()), formatted.length() <= 2048);
+    assertTrue(formatted, formatted.contains("\"@message\":\"0123456789\""));
+    assertTrue(formatted, formatted.contains("\"stack_trace\":\"java.lang.IllegalStateException"));
+    assertTrue(formatted, formatted.endsWith("\"@type\":\"\"}"));
+
+    // A message larger than the budget is cut itself, even between multi-byte characters
+    LoggingEvent large = new LoggingEvent(Logger.class.getName(), logger, Level.INFO,
+                                          new String(new char[1 << 20]).replace('\0', '\u00e9'),
+                                          null, null);
+    byte[] encoded = appender.formatEvent(large);
+    assertTrue(Integer.toString(encoded.length), encoded.length <= 2048);
+    formatted = new String(encoded, "UTF-8");
+    assertTrue(formatted, formatted.endsWith("\u00e9...\",\"@type\":\"\"}"));
+  }
+
+  private static String stackHash(String formatted) {
+    int start = formatted.indexOf("\"stack_hash\":\"") + "\"stack_hash\":\"".length();
+    return formatted.substring(start, formatted.indexOf('"', start));
+  }
+
   @Test
   public void testRedisLogstashAppenderProgrammatically() throws InterruptedException {
     RedisLogstashAppender appender = new RedisLogstashAppender();
     appender.setType("test-logback-redis-logstash");
     appender.setFile("test");
     appender.setRedisHostName("localhost");
-    appender.setRedisPort(6379);
+    appender.setRedisPort(server.getPort());
     appender.setContext((LoggerContext) LoggerFactory.getILoggerFactory());
     appender.start();
 
@@ -128,6 +410,189 @@ public class RedisLogstashAppenderTest {
     Thread.currentThread().setName("\"Quoted\" Thread Name");
     testLogger.info("This is a programmatic test for quoted thread names.");
     appender.stop();
+    assertEquals(3 + threadCount * 1002 + 13, server.getPushedCount());
+  }
+
+  @Test
+  public void testDeferredFormatting() throws Exception {
+    final CountDownLatch released = new CountDownLatch(1);
+    final List<String> formatted = new ArrayList<String>();
+    RedisLogstashAppender appender = new RedisLogstashAppender() {
+      @Override
+      public byte[] formatEvent(ILoggingEvent event) {
+        try {
+          // Format only once the logging thread has moved on
+          released.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        byte[] message = super.formatEvent(event);
+        formatted.add(new String(message, Charset.forName("UTF-8")));
+        return message;
+      }
+    };
+    appender.setDeferFormatting(true);
+    appender.setIncludeCallerData(true);
+    appender.setRedisPort(server.getPort());
+    appender.setJmx(false);
+    LoggerContext context = new LoggerContext();
+    appender.setContext(context);
+    appender.start();
+    // The only appender, so nothing else fills in the event's lazy fields on the logging thread
+    Logger logger = context.getLogger("a.logger");
+    logger.addAppender(appender);
+
+    String threadName = Thread.currentThread().getName();
+    try {
+      Thread.currentThread().setName("logging-thread");
+      MDC.put("request", "first");
+      logger.info("Deferred {}.", "event");
+      Thread.currentThread().setName("another-thread");
+      MDC.put("request", "second");
+      released.countDown();
+      appender.stop();
+    } finally {
+      MDC.clear();
+      Thread.currentThread().setName(threadName);
+    }
+    assertEquals(1, formatted.size());
+    String json = formatted.get(0);
+    assertTrue(json, json.contains("\"thread_name\":\"logging-thread\""));
+    assertTrue(json, json.contains("\"request\":\"first\""));
+    assertTrue(json, json.contains("\"method\":\"testDeferredFormatting\""));
+    assertTrue(json, json.contains("\"@message\":\"Deferred event.\""));
+    assertEquals(1, server.getPushedCount());
+  }
+
+  @Test
+  public void testSenderThreads() throws InterruptedException {
+    RedisLogstashAppender appender = new RedisLogstashAppender();
+    appender.setSenderThreads(4);
+    appender.setUnorderedDelivery(true);
+    appender.setMaxPipelinedCommands(4);
+    appender.setMaxBatchEvents(10);
+    appender.setRedisPort(server.getPort());
+    LoggerContext context = new LoggerContext();
+    appender.setContext(context);
+    appender.start();
+    assertEquals(4, appender.getSenderThreads());
+    final Logger logger = context.getLogger("a.logger");
+    logger.addAppender(appender);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    for (int i = 0; i < 4; i++) {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 2500; i++) {
+            logger.info("Sent event {}.", i);
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+    appender.stop();
+    // Each slot is sent by exactly one sender: nothing lost, nothing sent twice
+    assertEquals(10000, server.getPushedCount());
+    assertEquals(10000, appender.getMetrics().getAcknowledgedCount());
+  }
+
+  @Test
+  public void testSenderThreadsNeedUnorderedDelivery() {
+    RedisLogstashAppender appender = new RedisLogstashAppender();
+    appender.setSenderThreads(4);
+    appender.setRedisPort(server.getPort());
+    LoggerContext context = new LoggerContext();
+    appender.setContext(context);
+    appender.start();
+    assertEquals(1, appender.getSenderThreads());
+    Logger logger = context.getLogger("a.logger");
+    logger.addAppender(appender);
+    for (int i = 0; i < 1000; i++) {
+      logger.info("Sent event {}.", i);
+    }
+    appender.stop();
+    assertEquals(1000, server.getPushedCount());
+  }
+
+  @Test
+  public void testStreamKey() {
+    RedisLogstashAppender appender = new RedisLogstashAppender();
+    appender.setKeyType(KeyType.STREAM);
+    appender.setStreamMaxLength(100);
+    appender.setMaxBatchEvents(50);
+    appender.setMaxPipelinedCommands(4);
+    appender.setRedisPort(server.getPort());
+    LoggerContext context = new LoggerContext();
+    appender.setContext(context);
+    appender.start();
+    Logger logger = context.getLogger("a.logger");
+    logger.addAppender(appender);
+    for (int i = 0; i < 1000; i++) {
+      logger.info("Streamed event {}.", i);
+    }
+    appender.stop();
+    assertEquals(1000, server.getPushedCount());
+    // Trimmed, but only in whole stream nodes
+    long length = server.getLength(appender.getKey());
+    assertTrue(Long.toString(length), length >= 100 && length < 200);
+  }
+
+  @Test
+  public void testNioTransport() {
+    for (KeyType keyType : KeyType.values()) {
+      RedisLogstashAppender appender = new RedisLogstashAppender();
+      appender.setKey(keyType.name());
+      appender.setKeyType(keyType);
+      appender.setTransportType(TransportType.NIO);
+      appender.setMaxBatchEvents(50);
+      appender.setMaxPipelinedCommands(4);
+      appender.setRedisPort(server.getPort());
+      LoggerContext context = new LoggerContext();
+      appender.setContext(context);
+      appender.start();
+      Logger logger = context.getLogger("a.logger");
+      logger.addAppender(appender);
+      for (int i = 0; i < 1000; i++) {
+        logger.info("Sent event {}.", i);
+      }
+      appender.stop();
+      assertEquals(1000, server.getLength(keyType.name()));
+      assertEquals(1000, appender.getMetrics().getAcknowledgedCount());
+    }
+  }
+
+  @Test
+  public void testOffHeapBuffer() {
+    StringBuilder large = new StringBuilder();
+    while (large.length() < 3000) {
+      large.append("A message too large for its slot's share of the off-heap buffer. ");
+    }
+    for (int stagingEvents : new int[]{0, 8}) {
+      RedisLogstashAppender appender = new RedisLogstashAppender();
+      appender.setBufferSize(64);
+      appender.setOffHeapBytes(64 * 1024);
+      appender.setStagingEvents(stagingEvents);
+      appender.setMaxBatchEvents(50);
+      appender.setRedisPort(server.getPort());
+      LoggerContext context = new LoggerContext();
+      appender.setContext(context);
+      appender.start();
+      Logger logger = context.getLogger("a.logger");
+      long pushed = server.getPushedCount();
+      long bytes = server.getUsedMemory();
+      long expectedBytes = 0;
+      for (int i = 0; i < 1000; i++) {
+        String message = i % 100 == 0 ? large.toString() : "Buffered event " + i + ".";
+        LoggingEvent event = new LoggingEvent(Logger.FQCN, logger, Level.INFO, message, null, null);
+        expectedBytes += appender.formatEvent(event).length;
+        appender.doAppend(event);
+      }
+      appender.stop();
+      // Events kept off heap and the large ones kept on it arrive intact
+      assertEquals(1000, server.getPushedCount() - pushed);
+      assertEquals(expectedBytes, server.getUsedMemory() - bytes);
+    }
   }
 
   @Test
@@ -142,5 +607,7 @@ public class RedisLogstashAppenderTest {
     Logger logger = (Logger) LoggerFactory.getLogger(RedisLogstashAppenderTest.class);
     logger.info("This is a test.");
     logger.info("This is a test with an exception.", new Exception());
+    context.stop();
+    assertEquals(2, server.getPushedCount());
   }
 }
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.CircuitBreaker;
+import com.coruscations.logback.redis.RedisEndpoint;
+import com.coruscations.logback.redis.RedisStandInServer;
+import com.coruscations.logback.redis.ShardingStrategy;
+import com.coruscations.logback.redis.StandInAppenderRule;
+import com.coruscations.logback.redis.TransportType;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.List;
+
+import ch.qos.logback.classic.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ShardingTest {
+
+  @Rule
+  public StandInAppenderRule<RedisLogstashAppender> redis =
+      new StandInAppenderRule<RedisLogstashAppender>(2);
+
+  private RedisStandInServer first;
+  private RedisStandInServer second;
+  private RedisLogstashAppender appender;
+
+  @Before
+  public void setUp() {
+    first = redis.getServer(0);
+    second = redis.getServer(1);
+    appender = redis.use(new RedisLogstashAppender());
+  }
+
+  @Test
+  public void testRoundRobin() {
+    appender.setMaxBatchEvents(1);
+    Logger logger = redis.logger("com.example.Service");
+    appender.start();
+    List<RedisEndpoint> endpoints = appender.getEndpoints();
+    assertEquals(2, endpoints.size());
+
+    for (int i = 0; i < 1000; i++) {
+      logger.info("Event {}.", i);
+    }
+    appender.stop();
+    // One event per batch, and batches take turns
+    assertEquals(500, first.getLength(appender.getKey()));
+    assertEquals(500, second.getLength(appender.getKey()));
+    assertEquals(500, endpoints.get(0).getSentCount());
+    assertEquals(500, endpoints.get(1).getSentCount());
+  }
+
+  @Test
+  public void testLeastOutstanding() {
+    appender.setShardingStrategy(ShardingStrategy.LEAST_OUTSTANDING);
+    appender.setTransportType(TransportType.NIO);
+    appender.setMaxPipelinedCommands(4);
+    appender.setMaxBatchEvents(1);
+    Logger logger = redis.logger("com.example.Service");
+    appender.start();
+    second.setLatency("RPUSH", 20);
+
+    for (int i = 0; i < 1000; i++) {
+      logger.info("Event {}.", i);
+    }
+    appender.stop();
+    long fast = first.getLength(appender.getKey());
+    long slow = second.getLength(appender.getKey());
+    assertEquals(1000, fast + slow);
+    // Batches pile up unacknowledged on the slow endpoint, so the fast one is picked instead
+    assertTrue("fast " + fast + ", slow " + slow, fast > slow * 2);
+  }
+
+  @Test
+  public void testHashKeepsLoggerOnOneEndpoint() {
+    appender.setShardingStrategy(ShardingStrategy.HASH);
+    appender.setMaxBatchEvents(7);
+    String[] names = new String[] {"com.example.Alpha", "com.example.Beta", "com.example.Gamma",
+                                   "com.example.Delta"};
+    Logger[] loggers = new Logger[names.length];
+    for (int i = 0; i < names.length; i++) {
+      KeyRoute route = new KeyRoute();
+      route.setKey(names[i]);
+      route.setLoggerPrefix(names[i]);
+      appender.addRoute(route);
+      loggers[i] = redis.logger(names[i]);
+    }
+    appender.start();
+    List<RedisEndpoint> endpoints = appender.getEndpoints();
+
+    for (int i = 0; i < 200; i++) {
+      for (Logger logger : loggers) {
+        logger.info("Event {}.", i);
+      }
+    }
+    appender.stop();
+    for (String name : names) {
+      long onFirst = first.getLength(name);
+      long onSecond = second.getLength(name);
+      assertEquals(200, onFirst + onSecond);
+      assertTrue(name + " was split " + onFirst + "/" + onSecond, onFirst == 0 || onSecond == 0);
+    }
+    // The loggers are spread over both endpoints
+    assertTrue(endpoints.get(0).getSentCount() > 0);
+    assertTrue(endpoints.get(1).getSentCount() > 0);
+  }
+
+  @Test
+  public void testFailover() {
+    appender.setMaxBatchEvents(1);
+    appender.setCircuitBreakerFailureThreshold(1);
+    appender.setCircuitBreakerInitialBackoffMillis(60000);
+    appender.setCircuitBreakerMaxBackoffMillis(60000);
+    Logger logger = redis.logger("com.example.Service");
+    appender.start();
+    List<RedisEndpoint> endpoints = appender.getEndpoints();
+
+    for (int i = 0; i < 100; i++) {
+      logger.info("Before {}.", i);
+    }
+    assertTrue(first.awaitPushedCount(50, 10000));
+    assertTrue(second.awaitPushedCount(50, 10000));
+    second.stop();
+    for (int i = 0; i < 100; i++) {
+      logger.info("After {}.", i);
+    }
+    appender.stop();
+    // Whatever was on its way to the stopped endpoint is resent to the survivor
+    assertEquals(150, first.getLength(appender.getKey()));
+    assertEquals(50, second.getLength(appender.getKey()));
+    assertEquals(CircuitBreaker.State.OPEN, endpoints.get(1).getHealth());
+    assertTrue(endpoints.get(1).getFailedCount() > 0);
+    assertEquals(0, appender.getMetrics().getShedCount());
+  }
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.KeyType;
+import com.coruscations.logback.redis.RedisStandInServer;
+import com.coruscations.logback.redis.TransportType;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.URL;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.core.joran.spi.JoranException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SharedTransportTest {
+
+  private RedisStandInServer server;
+  private LoggerContext context;
+
+  @Before
+  public void setUp() throws IOException {
+    server = new RedisStandInServer();
+    context = new LoggerContext();
+  }
+
+  @After
+  public void tearDown() {
+    context.stop();
+    server.stop();
+  }
+
+  @Test
+  public void testAppendersShareConnections() {
+    SharedTransport transport = newTransport(TransportType.JEDIS, 1);
+    RedisLogstashAppender list = newAppender("list", "a-list");
+    RedisLogstashAppender stream = newAppender("stream", "a-stream");
+    stream.setKeyType(KeyType.STREAM);
+    list.start();
+    stream.start();
+    assertTrue(list.isStarted());
+    assertTrue(stream.isStarted());
+    assertSame(list.getEndpoints(), stream.getEndpoints());
+
+    Logger logger = context.getLogger(SharedTransportTest.class);
+    logger.addAppender(list);
+    logger.addAppender(stream);
+    for (int i = 0; i < 500; i++) {
+      logger.info("Event " + i);
+    }
+    list.stop();
+    // The other appender keeps the transport open
+    for (int i = 0; i < 500; i++) {
+      logger.info("Event " + i);
+    }
+    stream.stop();
+
+    assertEquals(500, server.getLength("a-list"));
+    assertEquals(1000, server.getLength("a-stream"));
+    assertEquals(500, list.getMetrics().getAcknowledgedCount());
+    assertEquals(1000, stream.getMetrics().getAcknowledgedCount());
+    // One connection, taken by the sender once the endpoint's ping returned it to the pool
+    assertEquals(1, server.getAcceptedConnections());
+    assertEquals(null, transport.getEndpoints());
+  }
+
+  @Test
+  public void testRejectionChargedToItsBatch() {
+    newTransport(TransportType.JEDIS, 8);
+    RedisLogstashAppender list = newAppender("list", "a-list");
+    RedisLogstashAppender stream = newAppender("stream", "a-stream");
+    stream.setKeyType(KeyType.STREAM);
+    // Each list batch outgrows the client's output buffer, so it reaches the socket in pieces
+    list.setMaxBatchEvents(10);
+    stream.setMaxBatchEvents(10);
+    list.start();
+    stream.start();
+    Logger listLogger = context.getLogger("list");
+    listLogger.setAdditive(false);
+    listLogger.addAppender(list);
+    Logger streamLogger = context.getLogger("stream");
+    streamLogger.setAdditive(false);
+    streamLogger.addAppender(stream);
+
+    StringBuilder padding = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      padding.append('x');
+    }
+    server.rejectNext("RPUSH");
+    for (int i = 0; i < 500; i++) {
+      listLogger.info("Event " + i + " " + padding);
+      streamLogger.info("Event " + i);
+    }
+    list.stop();
+    stream.stop();
+
+    assertEquals(1, server.getRejectedCount());
+    assertEquals(0, stream.getMetrics().getRejectedCount());
+    assertEquals(0, stream.getMetrics().getFailedCount());
+    assertEquals(500, server.getLength("a-stream"));
+    long rejected = list.getMetrics().getRejectedCount();
+    assertTrue(rejected > 0 && rejected <= 10);
+    assertEquals(0, list.getMetrics().getFailedCount());
+    assertEquals(500 - rejected, server.getLength("a-list"));
+    assertEquals(1, server.getAcceptedConnections());
+  }
+
+  @Test
+  public void testPipelinedNio() {
+    newTransport(TransportType.NIO, 8);
+    RedisLogstashAppender first = newAppender("first", "first");
+    RedisLogstashAppender second = newAppender("second", "second");
+    first.setMaxBatchEvents(10);
+    second.setMaxBatchEvents(10);
+    first.start();
+    second.start();
+
+    Logger logger = context.getLogger(SharedTransportTest.class);
+    logger.addAppender(first);
+    logger.addAppender(second);
+    for (int i = 0; i < 1000; i++) {
+      logger.info("Event " + i);
+    }
+    first.stop();
+    second.stop();
+
+    assertEquals(1000, server.getLength("first"));
+    assertEquals(1000, server.getLength("second"));
+  }
+
+  @Test
+  public void testUnknownTransport() {
+    RedisLogstashAppender appender = newAppender("appender", "a-key");
+    appender.setSharedTransport("missing");
+    appender.start();
+    assertFalse(appender.isStarted());
+  }
+
+  @Test
+  public void testSharedTransportFile() throws JoranException {
+    System.setProperty("redis.port", Integer.toString(server.getPort()));
+    try {
+      JoranConfigurator jc = new JoranConfigurator();
+      jc.setContext(context);
+      URL resource = getClass().getClassLoader().getResource("test-shared-transport.xml");
+      assertNotNull("Could not find test-shared-transport.xml", resource);
+      jc.doConfigure(resource.getFile());
+    } finally {
+      System.clearProperty("redis.port");
+    }
+    assertNotNull(SharedTransport.lookup(context, "redis"));
+    Logger logger = context.getLogger(SharedTransportTest.class);
+    logger.info("This is a test.");
+    logger.warn("This is a warning.");
+    context.stop();
+    assertEquals(2, server.getLength("all"));
+    assertEquals(1, server.getLength("warnings"));
+    assertEquals(1, server.getAcceptedConnections());
+  }
+
+  private SharedTransport newTransport(TransportType transportType, int maxPipelinedCommands) {
+    SharedTransport transport = new SharedTransport();
+    transport.setContext(context);
+    transport.setName("redis");
+    transport.setRedisHostName("localhost");
+    transport.setRedisPort(server.getPort());
+    transport.setTransportType(transportType);
+    transport.setMaxPipelinedCommands(maxPipelinedCommands);
+    transport.register();
+    return transport;
+  }
+
+  private RedisLogstashAppender newAppender(String name, String key) {
+    RedisLogstashAppender appender = new RedisLogstashAppender();
+    appender.setContext(context);
+    appender.setName(name);
+    appender.setKey(key);
+    appender.setJmx(false);
+    appender.setSharedTransport("redis");
+    return appender;
+  }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import com.coruscations.logback.redis.RedisStandInServer;
+import com.coruscations.logback.redis.StandInAppenderRule;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StagingTest {
+
+  @Rule
+  public StandInAppenderRule<RedisLogstashAppender> redis =
+      new StandInAppenderRule<RedisLogstashAppender>();
+
+  private RedisStandInServer server;
+  private RedisLogstashAppender appender;
+  private Logger logger;
+
+  @Before
+  public void setUp() {
+    server = redis.getServer();
+    appender = redis.use(new RedisLogstashAppender());
+    appender.setStagingEvents(10);
+    logger = redis.logger("com.example.Service");
+  }
+
+  @Test
+  public void testFullBuffersAndUrgentEventsArePublished() throws InterruptedException {
+    appender.setStagingMaxMillis(60000);
+    appender.start();
+    for (int i = 0; i < 25; i++) {
+      logger.info("Staged {}.", i);
+    }
+    assertTrue(server.awaitPushedCount(20, 10000));
+    Thread.sleep(100);
+    assertEquals(20, server.getPushedCount());
+    assertEquals(20, appender.getMetrics().getPublishedCount());
+
+    // A warning takes the five staged before it along
+    logger.warn("Urgent.");
+    assertTrue(server.awaitPushedCount(26, 10000));
+    assertEquals(26, appender.getMetrics().getPublishedCount());
+  }
+
+  @Test
+  public void testStagedEventsArePublishedAfterTheTimeBound() throws InterruptedException {
+    appender.setStagingMaxMillis(50);
+    appender.start();
+    // From a thread that logs a few events and is gone
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < 3; i++) {
+          logger.info("Staged {}.", i);
+        }
+      }
+    });
+    thread.start();
+    thread.join();
+    assertTrue(server.awaitPushedCount(3, 10000));
+  }
+
+  @Test
+  public void testStopPublishesStagedEvents() {
+    appender.setStagingMaxMillis(60000);
+    appender.start();
+    for (int i = 0; i < 3; i++) {
+      logger.debug("Staged {}.", i);
+    }
+    appender.stop();
+    assertEquals(3, server.getPushedCount());
+  }
+
+  @Test
+  public void testEventsStagedWhileStoppingAreCountedAsLost() throws InterruptedException {
+    final CountDownLatch formatting = new CountDownLatch(1);
+    final CountDownLatch stopped = new CountDownLatch(1);
+    appender = redis.use(new RedisLogstashAppender() {
+      @Override
+      public byte[] formatEvent(ILoggingEvent event) {
+        formatting.countDown();
+        try {
+          // Stage the event only once stop() has swept the staging buffers
+          stopped.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return super.formatEvent(event);
+      }
+    });
+    appender.setStagingEvents(10);
+    appender.setStagingMaxMillis(60000);
+    appender.start();
+    final Logger stopping = redis.logger("com.example.Stopping");
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        stopping.info("Staged while stopping.");
+      }
+    });
+    thread.start();
+    formatting.await();
+    appender.stop();
+    stopped.countDown();
+    thread.join();
+    assertEquals(1, appender.getMetrics().getStoppedCount());
+    assertEquals(0, server.getPushedCount());
+  }
+
+  @Test
+  public void testNotStagingWithASingleProducer() {
+    appender.setSingleProducer(true);
+    appender.start();
+    logger.info("Not staged.");
+    assertTrue(server.awaitPushedCount(1, 10000));
+    assertEquals(0, appender.getStagingEvents());
+  }
+}
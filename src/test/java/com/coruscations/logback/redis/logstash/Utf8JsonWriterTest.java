@@ -0,0 +1,124 @@
+/**
+ * Copyright 2013 Michael K. Werle
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.coruscations.logback.redis.logstash;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+
+import static org.junit.Assert.assertEquals;
+
+public class Utf8JsonWriterTest {
+
+  @Test
+  public void testAsciiPassesThrough() throws UnsupportedEncodingException {
+    assertEscaped("A plain ASCII message: 1 + 1 = 2.");
+  }
+
+  @Test
+  public void testQuotesBackslashesAndControlCharacters() throws UnsupportedEncodingException {
+    assertEscaped("A \"quoted\" C:\\path\\ with a multi-\nline\r\n\ttabbed\u0000\u001F\b\f test.");
+  }
+
+  @Test
+  public void testNonAscii() throws UnsupportedEncodingException {
+    assertEscaped("Caf\u00e9 \u65e5\u672c\u8a9e \ud83d\ude00 end");
+  }
+
+  @Test
+  public void testUnpairedSurrogates() throws UnsupportedEncodingException {
+    assertEscaped("high \ud83d alone, low \ude00 alone, trailing \ud83d");
+  }
+
+  @Test
+  public void testGrowsPastInitialCapacity() throws UnsupportedEncodingException {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) {
+      sb.append("line ").append(i).append("\n\u00e9\"");
+    }
+    Utf8JsonWriter writer = new Utf8JsonWriter(4, 16);
+    writer.writeEscaped(sb.toString());
+    assertEquals(legacyEscape(sb.toString()), new String(writer.toByteArray(), "UTF-8"));
+    writer.reset();
+    writer.writeEscaped("again");
+    assertEquals("again", new String(writer.toByteArray(), "UTF-8"));
+  }
+
+  @Test
+  public void testSubstring() throws UnsupportedEncodingException {
+    Utf8JsonWriter writer = new Utf8JsonWriter(16, 16);
+    writer.writeEscaped("one, \"two\", three", 5, 10);
+    assertEquals("\\\"two\\\"", new String(writer.toByteArray(), "UTF-8"));
+  }
+
+  @Test
+  public void testDigits() throws UnsupportedEncodingException {
+    Utf8JsonWriter writer = new Utf8JsonWriter(1, 16);
+    writer.writeDigits(7, 3);
+    writer.writeDigits(123, 3);
+    assertEquals("007123", new String(writer.toByteArray(), "UTF-8"));
+  }
+
+  private static void assertEscaped(String input) throws UnsupportedEncodingException {
+    Utf8JsonWriter writer = new Utf8JsonWriter(16, 16);
+    writer.writeEscaped(input);
+    assertEquals(new String(legacyEscape(input).getBytes("UTF-8"), "UTF-8"),
+                 new String(writer.toByteArray(), "UTF-8"));
+  }
+
+  /**
+   * The String-based escaping the appender used before Utf8JsonWriter; output must not change.
+   */
+  private static String legacyEscape(String input) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0, length = input.length(); i < length; i++) {
+      char ch = input.charAt(i);
+      switch (ch) {
+        case '\\':
+          sb.append("\\\\\\\\");
+          break;
+        case '"':
+          sb.append("\\\"");
+          break;
+        default:
+          if (ch < 0x20) {
+            switch (ch) {
+              case '\b':
+                sb.append("\\\\b");
+                break;
+              case '\t':
+                sb.append("\\\\t");
+                break;
+              case '\n':
+                sb.append("\\\\n");
+                break;
+              case '\f':
+                sb.append("\\\\f");
+                break;
+              case '\r':
+                sb.append("\\\\r");
+                break;
+              default:
+                sb.append(String.format("\\\\u%04X", (int) ch));
+            }
+          } else {
+            sb.append(ch);
+          }
+      }
+    }
+    return sb.toString();
+  }
+}